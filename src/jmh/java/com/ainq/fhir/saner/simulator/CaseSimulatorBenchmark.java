@@ -0,0 +1,124 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the daily work of the simulator at different numbers of cases.
+ * Creating and discharging cases, and processing days, change the simulation, so those
+ * benchmarks run once on a newly built simulation for each invocation.  Cases are kept
+ * for the whole run, so a simulation run on without limit would measure a growing heap.
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8G" })
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CaseSimulatorBenchmark {
+    /** The number of days run by {@link #processActivity(Full)} */
+    private static final int DAYS = 7;
+
+    /** A simulation with its initial cases, which is only read by the benchmarks using it */
+    @State(Scope.Benchmark)
+    public static class Running {
+        @Param({ "1000", "10000", "100000", "1000000" })
+        int cases;
+        CaseSimulator sim;
+        int day;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            sim = SyntheticData.builder(cases).build();
+            day = sim.getStartDay();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            sim.close();
+        }
+    }
+
+    /** A new simulation for each invocation, with no initial cases */
+    @State(Scope.Thread)
+    public static class Empty {
+        @Param({ "1000", "10000", "100000", "1000000" })
+        int cases;
+        CaseSimulator sim;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            sim = SyntheticData.builder(cases).startingCases(0).build();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            sim.close();
+        }
+    }
+
+    /** A new simulation for each invocation, with its initial cases */
+    @State(Scope.Thread)
+    public static class Full {
+        @Param({ "1000", "10000", "100000", "1000000" })
+        int cases;
+        CaseSimulator sim;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            sim = SyntheticData.builder(cases).build();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            sim.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 10)
+    public int createCases(Empty state) {
+        state.sim.createCases(state.cases, state.sim.getStartDay());
+        return state.sim.getTotalCases();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 10)
+    public int removeInactiveCases(Full state) {
+        // Discharge everyone whose stay ends within the first week
+        return state.sim.removeInactiveCases(state.sim.getStartDay() + 7);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 10)
+    public int processActivity(Full state) {
+        int start = state.sim.getStartDay();
+        for (int day = start + 1; day <= start + DAYS; day++) {
+            state.sim.processActivity(day);
+        }
+        return state.sim.getTotalCases();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public void getIcuBedsUsed(Running state, Blackhole bh) {
+        for (Hospital h: state.sim.getHospitals()) {
+            bh.consume(h.getIcuBedsUsed(state.day));
+        }
+    }
+}
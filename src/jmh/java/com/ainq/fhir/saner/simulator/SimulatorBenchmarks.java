@@ -0,0 +1,26 @@
+package com.ainq.fhir.saner.simulator;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the simulator benchmarks with the GC profiler, so that allocation rates are
+ * reported with throughput.  Accepts the usual JMH command line options, for example
+ * <code>java -jar target/benchmarks.jar CaseSimulatorBenchmark.processActivity -p cases=10000</code>
+ */
+public class SimulatorBenchmarks {
+    public static void main(String args[]) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmd);
+        if (cmd.getIncludes().isEmpty()) {
+            options.include(SimulatorBenchmarks.class.getPackage().getName() + ".*Benchmark");
+        }
+        options.addProfiler(GCProfiler.class);
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,136 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import com.ainq.fhir.saner.sampledata.Generator;
+
+/**
+ * In-memory generators for benchmarks, so that they run without the Synthea
+ * and location data files.
+ */
+final class SyntheticData {
+    private static final long DAY = 24 * 60 * 60 * 1000l;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Create a simulation builder using synthetic data sized for the given number of cases.
+     * The patient pool holds twice as many patients as cases, so that patients are rarely
+     * selected for more than one case.
+     * @param cases The number of cases at the start and end of the simulation.
+     * @return  The builder, with the start day set to 2021-01-01 and the end day far enough out
+     * for any benchmark.
+     */
+    static CaseSimulator.Builder builder(int cases) {
+        // Daily and duplicate patient messages would otherwise dominate the measurements
+        ((Logger) LoggerFactory.getLogger("com.ainq.fhir")).setLevel(Level.ERROR);
+        int start = Days.parse("20210101");
+        return CaseSimulator.builder()
+            .locationGenerator(new Locations(Math.max(10, cases / 1000), cases))
+            .patientGenerator(new Patients(2 * cases))
+            .start(start).end(start + 100000)
+            .startingCases(cases).endingCases(cases);
+    }
+
+    /** Hospitals with enough beds in total for the given number of cases */
+    static class Locations implements Generator<Location> {
+        private final List<Location> locations = new ArrayList<>();
+
+        Locations(int hospitals, int cases) {
+            int beds = Math.max(1, 2 * cases / hospitals);
+            for (int i = 0; i < hospitals; i++) {
+                Location l = new Location();
+                l.setId("Loc-" + i);
+                l.setName(String.format("Hospital %05d", i));
+                l.addExtension("http://test.sanerproject.org/icubeds", new IntegerType(Math.max(1, beds / 10)));
+                l.addExtension("http://test.sanerproject.org/beds", new IntegerType(beds + i % 7));
+                locations.add(l);
+            }
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public Location generate(Map<String, String> properties) {
+            return locations.get(0);
+        }
+
+        @Override
+        public Collection<Location> getAll() {
+            return locations;
+        }
+    }
+
+    /** Patients with a COVID-19 encounter, a quarter of whom also have an ICU stay */
+    static class Patients implements Generator<Patient> {
+        private final List<Patient> patients;
+        private int next = 0;
+
+        Patients(int count) {
+            patients = new ArrayList<>(count);
+            Random random = new Random(count);
+            long base = Days.toDate(Days.parse("20200301")).getTime();
+            for (int i = 0; i < count; i++) {
+                Patient p = new Patient();
+                p.setId(String.format("p%07d", i));
+                Date start = new Date(base + random.nextInt(180) * DAY);
+                Encounter enc = new Encounter();
+                enc.setId("e" + i);
+                enc.setPeriod(new Period().setStart(start).setEnd(new Date(start.getTime() + (2 + random.nextInt(12)) * DAY)));
+                p.setUserData("encounter", enc);
+                if (random.nextInt(4) == 0) {
+                    Encounter icu = new Encounter();
+                    icu.setId("i" + i);
+                    icu.setPeriod(new Period().setStart(enc.getPeriod().getEnd())
+                        .setEnd(new Date(enc.getPeriod().getEnd().getTime() + (1 + random.nextInt(8)) * DAY)));
+                    p.setUserData("icu", icu);
+                }
+                patients.add(p);
+            }
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public Patient generate(Map<String, String> properties) {
+            String id = properties.get("id");
+            if (id != null) {
+                return patients.get(Integer.parseInt(id.substring(1)));
+            }
+            if (next == patients.size()) {
+                reset();
+            }
+            return patients.get(next++);
+        }
+
+        @Override
+        public Collection<Patient> getAll() {
+            return patients;
+        }
+
+        @Override
+        public void reset() {
+            next = 0;
+        }
+    }
+}
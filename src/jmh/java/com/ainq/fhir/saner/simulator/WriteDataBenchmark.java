@@ -0,0 +1,105 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Benchmarks shifting and writing a single clinical resource, either discarding it,
+ * or encoding it as it would be for a file without writing to disk.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class WriteDataBenchmark {
+    @Param({ "null", "encode" })
+    String sink;
+    CaseSimulator sim;
+    Patient patient;
+    Observation observation;
+
+    /** Encodes resources to a writer which discards them */
+    static class EncodingSink implements SimulationSink {
+        private final IParser parser = FhirContext.forR4().newJsonParser().setPrettyPrint(false);
+        private final Writer out = Writer.nullWriter();
+
+        @Override
+        public void census(int day, Hospital hospital, int hospitalBedsUsed, int icuBedsUsed) {
+        }
+
+        @Override
+        public void report(String text) {
+        }
+
+        @Override
+        public void patient(Hospital hospital, Patient patient) throws IOException {
+            resource(patient, patient);
+        }
+
+        @Override
+        public void resource(Patient patient, Resource r) throws IOException {
+            parser.encodeResourceToWriter(r, out);
+            out.write('\n');
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sim = SyntheticData.builder(1000).sink("encode".equals(sink) ? new EncodingSink() : NullSink.INSTANCE).build();
+        patient = new Patient();
+        patient.setId("p0000000");
+        patient.setUserData("offset", 7);
+        observation = new Observation();
+        observation.setId("o1");
+        observation.setSubject(new Reference("Patient/p0000000"));
+        observation.setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "8310-5", "Body temperature")));
+        observation.setEffective(new DateTimeType(new Date()));
+        observation.setIssued(new Date());
+        observation.setValue(new Quantity().setValue(37.2).setUnit("Cel"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        sim.close();
+    }
+
+    @Benchmark
+    public Observation writeData() throws IOException {
+        // Dates keep shifting forward across invocations, which does not change the cost
+        sim.writeData(patient, observation);
+        return observation;
+    }
+}
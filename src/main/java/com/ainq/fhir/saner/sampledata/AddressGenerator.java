@@ -13,6 +13,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -95,8 +96,20 @@ public class AddressGenerator implements Generator<Address> {
 
     @Override
     public Address generate(Map<String, String> properties) {
+        return generate(properties, RANDOM);
+    }
+
+    /**
+     * Generate a random address matching properties, using the given source of random values.
+     * The loaded addresses are shared, so this may be called concurrently from several threads.
+     *
+     * @param properties    The properties to match.
+     * @param random    The source of random values.
+     * @return  The generated address.
+     */
+    public Address generate(Map<String, String> properties, Random random) {
         // Choose a random default address.
-        int selector = RANDOM.nextInt(addressPositions.size());
+        int selector = random.nextInt(addressPositions.size());
         long position = addressPositions.get(selector);
 
         // Get the hospital zip code property
@@ -107,18 +120,18 @@ public class AddressGenerator implements Generator<Address> {
         // If there is a hospital zip code
         if (value != null && (hr = hsaMap.get(value)) != null) {
             // Get zips for HSA (50% of the time) or HRR (remaining 50%)
-            if (RANDOM.nextBoolean()) {
+            if (random.nextBoolean()) {
                 l = hsaZips.get(hr.hsa);
             } else {
                 l = hrrZips.get(hr.hrr);
             }
-            position = getRegionalPosition(l, position);
+            position = getRegionalPosition(l, position, random);
         } else if ((value = properties == null ? null : properties.get("hsa")) != null &&
             (l = hrrZips.get(value)) != null) {
-            position = getRegionalPosition(l, position);
+            position = getRegionalPosition(l, position, random);
         } else if ((value = properties == null ? null : properties.get("hrr")) != null &&
             (l = hrrZips.get(value)) != null) {
-            position = getRegionalPosition(l, position);
+            position = getRegionalPosition(l, position, random);
         }
         return getGeoJsonAsAddress(getRandomAddress(position));
     }
@@ -128,12 +141,13 @@ public class AddressGenerator implements Generator<Address> {
      * list of zip codes.
      * @param l The list of positions at given zip codes.
      * @param position  The current random position.
+     * @param random    The source of random values.
      * @return  An address within the region.
      */
-    private long getRegionalPosition(List<HospitalRegion> l, long position) {
+    private long getRegionalPosition(List<HospitalRegion> l, long position, Random random) {
         int selector;
         int maxValue = l.stream().collect(Collectors.summingInt(z -> z.positions.size()));
-        selector = RANDOM.nextInt(maxValue);
+        selector = random.nextInt(maxValue);
         for (HospitalRegion r: l) {
             if (selector < r.positions.size()) {
                 position = r.positions.get(selector);
@@ -191,8 +205,11 @@ public class AddressGenerator implements Generator<Address> {
     public static String getRandomAddress(long position) {
         byte data[] = new byte[(int) (position & 0x0FFFF)];
         try {
-            addresses.seek(position >> 16);
-            addresses.read(data);
+            // Seek and read as one operation, since the file is shared by all threads.
+            synchronized (addresses) {
+                addresses.seek(position >> 16);
+                addresses.read(data);
+            }
             return new String(data);
         } catch (IOException e) {
             LOGGER.error("Error reading address data");
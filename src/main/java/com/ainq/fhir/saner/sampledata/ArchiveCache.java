@@ -0,0 +1,254 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local cache for remote zip archives, such as the Synthea data used by {@link PatientGenerator}.
+ * An archive is downloaded once and stored under the SHA-256 of its content, with an index mapping
+ * each archive URL to its hash.  Tables are then read from the local copy through {@link ZipFile},
+ * rather than by reopening a jar:https: URL for every table.
+ *
+ * The default cache is in ~/.saner/cache, which can be changed with the saner.cache.dir system property.
+ * Setting the saner.offline system property to true prevents downloads, so that only archives already
+ * in the cache can be read.
+ */
+public class ArchiveCache implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveCache.class);
+    private static final String INDEX = "index.properties";
+    private static ArchiveCache defaultCache = null;
+
+    private final File dir;
+    private boolean offline = false;
+    private final Properties index = new Properties();
+    /** Archives whose content has been checked against their hash since this cache was created */
+    private final Set<String> verified = new HashSet<>();
+    private final Map<File, ZipFile> open = new ConcurrentHashMap<>();
+
+    /**
+     * Create a cache in the given folder.
+     * @param dir   The folder to store archives in.  It is created if it does not exist.
+     */
+    public ArchiveCache(File dir) {
+        this.dir = dir;
+        File f = new File(dir, INDEX);
+        if (f.exists()) {
+            try (InputStream in = Files.newInputStream(f.toPath())) {
+                index.load(in);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot read cache index {}, starting empty", f, e);
+            }
+        }
+    }
+
+    /**
+     * @return The cache configured by the saner.cache.dir and saner.offline system properties.
+     */
+    public static synchronized ArchiveCache getDefault() {
+        if (defaultCache == null) {
+            String folder = System.getProperty("saner.cache.dir",
+                System.getProperty("user.home") + File.separator + ".saner" + File.separator + "cache");
+            defaultCache = new ArchiveCache(new File(folder));
+            defaultCache.setOffline(Boolean.getBoolean("saner.offline"));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * @return the folder archives are stored in
+     */
+    public File getFolder() {
+        return dir;
+    }
+
+    /**
+     * @return true if archives will not be downloaded
+     */
+    public synchronized boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @param offline true to read only archives that are already in the cache
+     * @return This cache.
+     */
+    public synchronized ArchiveCache setOffline(boolean offline) {
+        this.offline = offline;
+        return this;
+    }
+
+    /**
+     * @param theUrl    A URL to read from.
+     * @return true if theUrl is an entry in a remote zip archive, e.g., jar:https://host/data.zip!/folder/table.csv
+     */
+    public static boolean isRemoteArchive(String theUrl) {
+        return (theUrl.startsWith("jar:http:") || theUrl.startsWith("jar:https:")) && theUrl.contains("!/");
+    }
+
+    /**
+     * Open an entry in a remote zip archive, downloading the archive if it is not already cached.
+     * @param theUrl    A jar: URL for the entry, e.g., jar:https://host/data.zip!/folder/table.csv
+     * @return  A stream for the content of the entry.
+     * @throws IOException  If the archive cannot be obtained, or the entry does not exist.
+     */
+    public InputStream open(String theUrl) throws IOException {
+        if (!isRemoteArchive(theUrl)) {
+            throw new IllegalArgumentException(theUrl + " is not an entry in a remote archive");
+        }
+        String archive = theUrl.substring(4, theUrl.indexOf("!/"));
+        String name = theUrl.substring(theUrl.indexOf("!/") + 2);
+        ZipFile zip = getZipFile(archive);
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException(name + " not found in " + archive);
+        }
+        return zip.getInputStream(entry);
+    }
+
+    private ZipFile getZipFile(String archive) throws IOException {
+        File f = getArchive(archive);
+        try {
+            return open.computeIfAbsent(f, k -> {
+                try {
+                    return new ZipFile(k);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the local copy of an archive, downloading it if it is not in the cache or its content
+     * no longer matches its hash.
+     * @param archive   The URL of the archive.
+     * @return  The local copy of the archive.
+     * @throws IOException  If the archive cannot be downloaded, or the cache is offline and does not contain it.
+     */
+    public synchronized File getArchive(String archive) throws IOException {
+        String hash = index.getProperty(archive);
+        if (hash != null) {
+            File f = new File(dir, hash + ".zip");
+            if (verified.contains(hash)) {
+                return f;
+            }
+            if (f.exists() && hash.equals(sha256(f))) {
+                verified.add(hash);
+                return f;
+            }
+            LOGGER.warn("Cached copy of {} is missing or damaged", archive);
+        }
+        if (offline) {
+            String msg = String.format("%s is not in the cache at %s and downloads are disabled", archive, dir);
+            LOGGER.error(msg);
+            throw new IOException(msg);
+        }
+        return download(archive);
+    }
+
+    private File download(String archive) throws IOException {
+        LOGGER.info("Downloading {} to {}", archive, dir);
+        Files.createDirectories(dir.toPath());
+        Path temp = Files.createTempFile(dir.toPath(), "download", ".tmp");
+        try {
+            MessageDigest digest = newDigest();
+            URLConnection conn = new URL(archive).openConnection();
+            long expected = conn.getContentLengthLong(), received;
+            try (InputStream in = new DigestInputStream(conn.getInputStream(), digest);
+                 OutputStream out = Files.newOutputStream(temp)) {
+                received = in.transferTo(out);
+            }
+            // Don't cache a truncated or damaged download, its hash would match on every later check
+            if (expected >= 0 && received != expected) {
+                String msg = String.format("Incomplete download of %s: %d of %d bytes", archive, received, expected);
+                LOGGER.error(msg);
+                throw new IOException(msg);
+            }
+            try (ZipFile zip = new ZipFile(temp.toFile())) {
+                LOGGER.debug("Downloaded {} entries from {}", zip.size(), archive);
+            } catch (ZipException e) {
+                LOGGER.error("Download of {} is not a valid zip archive", archive, e);
+                throw new IOException("Download of " + archive + " is not a valid zip archive", e);
+            }
+            String hash = toHex(digest.digest());
+            Files.move(temp, new File(dir, hash + ".zip").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index.setProperty(archive, hash);
+            saveIndex();
+            verified.add(hash);
+            return new File(dir, hash + ".zip");
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Path temp = Files.createTempFile(dir.toPath(), "index", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            index.store(out, "Archive URL to SHA-256 of content");
+        }
+        Files.move(temp, new File(dir, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String sha256(File f) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(f.toPath()), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte bytes[]) {
+        StringBuilder b = new StringBuilder(bytes.length * 2);
+        for (byte v: bytes) {
+            b.append(Character.forDigit((v >> 4) & 0xF, 16)).append(Character.forDigit(v & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Close the archives opened by this cache.
+     */
+    @Override
+    public void close() throws IOException {
+        for (ZipFile z: open.values()) {
+            z.close();
+        }
+        open.clear();
+    }
+}
@@ -0,0 +1,59 @@
+package com.ainq.fhir.saner.sampledata;
+
+/**
+ * A {@link RowCursor} over rows that have already been split into arrays.
+ */
+public final class ArrayRowCursor implements RowCursor {
+    private String row[];
+    private long rowNumber;
+
+    /**
+     * Create a cursor positioned on a row whose position in its table is not known.
+     * @param row   The values in the row.
+     */
+    public ArrayRowCursor(String row[]) {
+        this(row, -1);
+    }
+
+    /**
+     * Create a cursor positioned on a row.
+     * @param row   The values in the row.
+     * @param rowNumber The position of the row in its table.
+     */
+    public ArrayRowCursor(String row[], long rowNumber) {
+        this.row = row;
+        this.rowNumber = rowNumber;
+    }
+
+    /**
+     * Move the cursor to another row.
+     * @param row   The values in the row.
+     * @param rowNumber The position of the row in its table.
+     * @return  This cursor.
+     */
+    public ArrayRowCursor set(String row[], long rowNumber) {
+        this.row = row;
+        this.rowNumber = rowNumber;
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return row.length;
+    }
+
+    @Override
+    public String get(int column) {
+        return column >= 0 && column < row.length ? row[column] : null;
+    }
+
+    @Override
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    @Override
+    public String[] toArray() {
+        return row.clone();
+    }
+}
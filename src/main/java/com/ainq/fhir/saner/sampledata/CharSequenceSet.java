@@ -0,0 +1,101 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.util.Collection;
+
+/**
+ * An immutable set of strings whose membership can be tested with any CharSequence, without creating
+ * a String.  This is used to select the rows for a set of patient ids from large tables, where most
+ * rows are rejected.
+ */
+public final class CharSequenceSet implements ColumnFilter {
+    private final String table[];
+    private final int hashes[];
+    private final int mask;
+    private final int size;
+
+    /**
+     * Create a set.
+     * @param values    The values in the set.  Null values are ignored.
+     */
+    public CharSequenceSet(Collection<String> values) {
+        int capacity = Integer.highestOneBit(Math.max(4, values.size() * 2 - 1)) << 1;
+        table = new String[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        int count = 0;
+        for (String v: values) {
+            if (v == null) {
+                continue;
+            }
+            int h = v.hashCode();
+            int i = spread(h) & mask;
+            while (table[i] != null && !table[i].equals(v)) {
+                i = (i + 1) & mask;
+            }
+            if (table[i] == null) {
+                table[i] = v;
+                hashes[i] = h;
+                count++;
+            }
+        }
+        size = count;
+    }
+
+    /**
+     * @return The number of values in the set.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param value The value to look for.
+     * @return  true if the set contains a String with the same characters as value.
+     */
+    public boolean contains(CharSequence value) {
+        if (value == null) {
+            return false;
+        }
+        int h = hash(value);
+        for (int i = spread(h) & mask; table[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == h && equals(table[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean matches(CharSequence value) {
+        return contains(value);
+    }
+
+    /** The same hash as String.hashCode() */
+    private static int hash(CharSequence value) {
+        if (value instanceof String) {
+            return value.hashCode();
+        }
+        int h = 0;
+        for (int i = 0, len = value.length(); i < len; i++) {
+            h = 31 * h + value.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(String s, CharSequence value) {
+        int len = s.length();
+        if (len != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.util.function.Predicate;
+
+/**
+ * A test on the value of a single column, which a {@link RowSource} can apply while reading
+ * a row, before the rest of the row is split or decoded.  The value is given as the characters
+ * read, so that most rows can be rejected without creating any strings.
+ */
+@FunctionalInterface
+public interface ColumnFilter extends Predicate<String> {
+    /**
+     * @param value The value of the column, or null if the row has no value for it.
+     *              The value is only valid during the call.
+     * @return  true if the row should be read.
+     */
+    boolean matches(CharSequence value);
+
+    @Override
+    default boolean test(String value) {
+        return matches(value);
+    }
+
+    /**
+     * @param test  A test on a column value.
+     * @return  test if it is a ColumnFilter, or a filter that applies test to the value as a String.
+     */
+    static ColumnFilter of(Predicate<String> test) {
+        if (test instanceof ColumnFilter) {
+            return (ColumnFilter) test;
+        }
+        return v -> test.test(v == null ? null : v.toString());
+    }
+}
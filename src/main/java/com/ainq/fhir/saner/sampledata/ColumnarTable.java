@@ -0,0 +1,856 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A table stored by column in a binary file, which is much faster to read than the CSV it was
+ * converted from.  Columns in which every value is a date (yyyy-MM-dd) are stored as epoch days,
+ * and columns in which every value is a UTC timestamp (yyyy-MM-ddTHH:mm:ssZ) as epoch seconds.
+ * Columns with at most {@link #DICTIONARY_LIMIT} distinct values are dictionary encoded: each
+ * distinct value, such as a code or description, is stored once, and rows store its ordinal.
+ * Other columns, such as resource ids or observed values, are stored as text: the UTF-8 bytes
+ * of the values, and where each row's value ends, both of which are memory mapped, so opening
+ * the table does not read them.  Patient ids (the Id column of patients.csv and the PATIENT column
+ * of the other tables) share one dictionary for all the tables converted to a folder, stored in
+ * {@link #PATIENT_IDS}, so a patient has the same dense ordinal in every table, with the patients
+ * in patients.csv numbered first, in order.  The shared dictionary is read once for all the tables
+ * open in a folder.  Values are converted back
+ * to the same strings found in the CSV, so a table can be read through {@link #rows()} by
+ * {@link CsvResourceLoader} in place of the CSV file, and dates can be read without being
+ * converted to strings through {@link RowCursor#getEpochDay(int)} and {@link RowCursor#getEpochSecond(int)}.
+ *
+ * The column data is memory mapped when the table is opened.  The format is:
+ * <pre>
+ * int magic, int version, int headerLength, header, padding to a multiple of 8, column data
+ * header: int rows, int columns, then for each column:
+ *     string name, byte type, [int size, string values (dictionary columns only)],
+ *     [string file name of the shared dictionary (shared columns only)],
+ *     [long length of the UTF-8 bytes (text columns only)], long offset
+ * string: int length, UTF-8 bytes
+ * shared dictionary: int magic, int size, string values
+ * column data: rows ints (dictionary ordinals or epoch days) or longs (epoch seconds), or for text,
+ *     rows ints (where the value ends in the bytes, or its complement if the row has no value),
+ *     the UTF-8 bytes of the values, and padding to a multiple of 8
+ * </pre>
+ */
+public final class ColumnarTable implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ColumnarTable.class);
+    /** The file extension for columnar tables */
+    public static final String EXTENSION = ".col";
+    /** The tables converted by {@link #main(String[])} when none are named */
+    public static final String TABLES[] = {
+        "patients.csv", "encounters.csv", "conditions.csv", "allergies.csv", "immunizations.csv",
+        "imaging_studies.csv", "medications.csv", "observations.csv", "providers.csv", "procedures.csv"
+    };
+    /** The file holding the patient ids shared by the tables in a folder */
+    public static final String PATIENT_IDS = "patient-ids.dict";
+    private static final int MAGIC = 0x53434F4C;  // SCOL
+    private static final int DICTIONARY_MAGIC = 0x53444943;  // SDIC
+    private static final int VERSION = 3;
+    private static final byte DICTIONARY = 0, DATE = 1, DATETIME = 2, SHARED = 3, TEXT = 4;
+    /** The most distinct values a column may have to be dictionary encoded */
+    public static final int DICTIONARY_LIMIT = 1 << 16;
+    /** The shared dictionaries read so far, by file */
+    private static final Map<File, SharedValues> SHARED_VALUES = new ConcurrentHashMap<>();
+    /** The value stored for a row that is too short to have a value in the column */
+    private static final int MISSING = -1;
+    private static final long MISSING_TIME = Long.MIN_VALUE, EMPTY_TIME = Long.MIN_VALUE + 1;
+    private static final int MISSING_DAY = Integer.MIN_VALUE, EMPTY_DAY = Integer.MIN_VALUE + 1;
+
+    private final FileChannel channel;
+    private final int rowCount;
+    private final String names[];
+    private final byte types[];
+    private final String dictionaries[][];
+    private final ByteBuffer data[];
+    /** The UTF-8 bytes of the values of text columns */
+    private final ByteBuffer text[];
+
+    private ColumnarTable(FileChannel channel, int rowCount, String names[], byte types[], String dictionaries[][],
+        ByteBuffer data[], ByteBuffer text[]) {
+        this.channel = channel;
+        this.rowCount = rowCount;
+        this.names = names;
+        this.types = types;
+        this.dictionaries = dictionaries;
+        this.data = data;
+        this.text = text;
+    }
+
+    /**
+     * Open a columnar table.
+     * @param f The file containing the table.
+     * @return  The table.
+     * @throws IOException  If the file cannot be read or is not a columnar table.
+     */
+    public static ColumnarTable open(File f) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer prefix = ByteBuffer.allocate(12);
+            while (prefix.hasRemaining() && channel.read(prefix) >= 0) {
+                // Read the prefix
+            }
+            prefix.flip();
+            if (prefix.remaining() < 12 || prefix.getInt() != MAGIC) {
+                throw new IOException(f + " is not a columnar table");
+            }
+            int version = prefix.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(String.format("%s has unsupported version %d", f, version));
+            }
+            int headerLength = prefix.getInt();
+            long dataStart = align(12L + headerLength);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 12, headerLength))));
+            int rows = in.readInt();
+            int columns = in.readInt();
+            String names[] = new String[columns];
+            byte types[] = new byte[columns];
+            String dictionaries[][] = new String[columns][];
+            ByteBuffer data[] = new ByteBuffer[columns], text[] = new ByteBuffer[columns];
+            for (int i = 0; i < columns; i++) {
+                names[i] = readString(in);
+                types[i] = in.readByte();
+                if (types[i] == DICTIONARY) {
+                    dictionaries[i] = new String[in.readInt()];
+                    for (int j = 0; j < dictionaries[i].length; j++) {
+                        dictionaries[i][j] = readString(in);
+                    }
+                } else if (types[i] == SHARED) {
+                    dictionaries[i] = getSharedValues(new File(f.getAbsoluteFile().getParentFile(), readString(in)));
+                }
+                long textLength = types[i] == TEXT ? in.readLong() : 0;
+                long offset = in.readLong();
+                long width = types[i] == DATETIME ? 8 : 4;
+                data[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + offset, rows * width);
+                if (types[i] == TEXT) {
+                    text[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + offset + rows * width, textLength);
+                }
+            }
+            return new ColumnarTable(channel, rows, names, types, dictionaries, data, text);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Cannot open columnar table {}", f, e);
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The names of the columns.
+     */
+    public String[] getHeader() {
+        return names.clone();
+    }
+
+    /**
+     * @return The number of rows in the table.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the dictionary ordinal of a value.  The ordinals of patient ids are shared by all
+     * the tables converted to the same folder.
+     * @param row   The row.
+     * @param column    The column, which must be dictionary encoded.
+     * @return  The ordinal, or -1 if the row had no value for the column.
+     * @throws IllegalArgumentException If the column holds dates, timestamps or text.
+     */
+    public int getOrdinal(int row, int column) {
+        if (dictionaries[column] == null) {
+            throw new IllegalArgumentException("Column " + names[column] + " is not dictionary encoded");
+        }
+        return data[column].getInt(row * 4);
+    }
+
+    /**
+     * @param row   The row.
+     * @param column    The column.
+     * @return  The date in the column as an epoch day, or {@link RowCursor#NO_DAY} if the column does not
+     *          hold dates, or the row has no date.
+     */
+    public int getEpochDay(int row, int column) {
+        if (types[column] != DATE) {
+            return RowCursor.NO_DAY;
+        }
+        int day = data[column].getInt(row * 4);
+        return day == MISSING_DAY || day == EMPTY_DAY ? RowCursor.NO_DAY : day;
+    }
+
+    /**
+     * @param row   The row.
+     * @param column    The column.
+     * @return  The timestamp in the column in epoch seconds, or {@link RowCursor#NO_SECOND} if the column
+     *          does not hold timestamps, or the row has no timestamp.
+     */
+    public long getEpochSecond(int row, int column) {
+        if (types[column] != DATETIME) {
+            return RowCursor.NO_SECOND;
+        }
+        long seconds = data[column].getLong(row * 8);
+        return seconds == MISSING_TIME || seconds == EMPTY_TIME ? RowCursor.NO_SECOND : seconds;
+    }
+
+    /**
+     * Get a value from the table.
+     * @param row   The row.
+     * @param column    The column.
+     * @return  The value, as it appeared in the CSV file, or null if the row had no value for the column.
+     */
+    public String get(int row, int column) {
+        switch (types[column]) {
+        case DATE:
+            int day = data[column].getInt(row * 4);
+            return day == MISSING_DAY ? null : day == EMPTY_DAY ? "" : LocalDate.ofEpochDay(day).toString();
+        case DATETIME:
+            long seconds = data[column].getLong(row * 8);
+            return seconds == MISSING_TIME ? null : seconds == EMPTY_TIME ? "" : Instant.ofEpochSecond(seconds).toString();
+        case TEXT:
+            int end = data[column].getInt(row * 4), start = row == 0 ? 0 : data[column].getInt(row * 4 - 4);
+            if (end < 0) {
+                return null;
+            }
+            byte bytes[] = new byte[end - (start < 0 ? ~start : start)];
+            ByteBuffer b = text[column].duplicate();
+            b.position(end - bytes.length);
+            b.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        default:
+            int ordinal = data[column].getInt(row * 4);
+            return ordinal == MISSING ? null : dictionaries[column][ordinal];
+        }
+    }
+
+    /**
+     * @return  true if the row had no value for the column, which is quicker than getting the value.
+     */
+    private boolean isMissing(int row, int column) {
+        switch (types[column]) {
+        case DATE:
+            return data[column].getInt(row * 4) == MISSING_DAY;
+        case DATETIME:
+            return data[column].getLong(row * 8) == MISSING_TIME;
+        case TEXT:
+            return data[column].getInt(row * 4) < 0;
+        default:
+            return data[column].getInt(row * 4) == MISSING;
+        }
+    }
+
+    /**
+     * Open a columnar table for reading by row.
+     * @param f The file containing the table.
+     * @return  The rows of the table.  Closing them closes the table.
+     * @throws IOException  If the file cannot be read or is not a columnar table.
+     */
+    public static RowSource openRows(File f) throws IOException {
+        ColumnarTable table = open(f);
+        CsvResourceLoader.metrics().read(f.length());
+        return table.rows(true);
+    }
+
+    /**
+     * @return  The rows of the table, as they appeared in the CSV file.
+     */
+    public RowSource rows() {
+        return rows(false);
+    }
+
+    private RowSource rows(boolean closeTable) {
+        return new RowSource() {
+            private int row = 0;
+            private final Cursor cursor = new Cursor();
+
+            @Override
+            public String[] getHeader() {
+                return ColumnarTable.this.getHeader();
+            }
+
+            @Override
+            public String[] next() {
+                return next(-1, null);
+            }
+
+            @Override
+            public String[] next(int column, ColumnFilter filter) {
+                RowCursor c = advance(column, filter);
+                return c == null ? null : c.toArray();
+            }
+
+            @Override
+            public RowCursor advance(int column, ColumnFilter filter) {
+                boolean exists = column >= 0 && column < names.length;
+                for (; row < rowCount; row++) {
+                    if (filter == null || filter.matches(exists ? get(row, column) : null)) {
+                        cursor.row = row++;
+                        return cursor;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closeTable) {
+                    ColumnarTable.this.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** The cursor for a row of the table, whose values are only decoded when asked for */
+    private final class Cursor implements RowCursor {
+        private int row;
+
+        @Override
+        public int size() {
+            int length = names.length;
+            while (length > 0 && isMissing(row, length - 1)) {
+                length--;
+            }
+            return length;
+        }
+
+        @Override
+        public String get(int column) {
+            return column >= 0 && column < names.length ? ColumnarTable.this.get(row, column) : null;
+        }
+
+        @Override
+        public int getEpochDay(int column) {
+            return column >= 0 && column < names.length ? ColumnarTable.this.getEpochDay(row, column) : NO_DAY;
+        }
+
+        @Override
+        public long getEpochSecond(int column) {
+            return column >= 0 && column < names.length ? ColumnarTable.this.getEpochSecond(row, column) : NO_SECOND;
+        }
+
+        @Override
+        public long getRowNumber() {
+            return row;
+        }
+    }
+
+    /**
+     * Write the rows from a source to a columnar table.  The values of each column are spooled
+     * to a temporary file as dictionary ordinals, so only the dictionaries are kept in memory.
+     * A column is spooled as text instead once it has more than {@link #DICTIONARY_LIMIT} distinct values.
+     * @param source    The rows to write.
+     * @param out   The file to write to.  It is replaced when the table is complete.
+     * @return  The number of rows written.
+     * @throws IOException  If the rows cannot be read or the table cannot be written.
+     */
+    public static int write(RowSource source, File out) throws IOException {
+        return write(source, out, null, null);
+    }
+
+    /**
+     * Write the rows from a source to a columnar table, with the values of one column in a
+     * shared dictionary.
+     * @param source    The rows to write.
+     * @param out   The file to write to.  It is replaced when the table is complete.
+     * @param sharedColumn  The name of the column stored in the shared dictionary, or null for none.
+     * @param shared    The shared dictionary, to which new values are added.  It must be saved
+     *                  to its file in the folder of out for the table to be read.
+     * @return  The number of rows written.
+     * @throws IOException  If the rows cannot be read or the table cannot be written.
+     */
+    private static int write(RowSource source, File out, String sharedColumn, SharedDictionary shared) throws IOException {
+        String header[] = source.getHeader();
+        Path folder = out.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(folder);
+        List<Column> columns = new ArrayList<>(header.length);
+        Path temp = Files.createTempFile(folder, out.getName(), ".tmp");
+        try {
+            for (String name: header) {
+                Path spool = Files.createTempFile(folder, out.getName(), ".tmp");
+                columns.add(shared != null && name.equals(sharedColumn) ? new Column(name, spool, shared) : new Column(name, spool));
+            }
+            int rows = 0;
+            for (String row[] = source.next(); row != null; row = source.next()) {
+                for (int i = 0; i < columns.size(); i++) {
+                    columns.get(i).add(i < row.length ? row[i] : null);
+                }
+                rows++;
+            }
+
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream h = new DataOutputStream(headerBytes);
+            h.writeInt(rows);
+            h.writeInt(columns.size());
+            long offset = 0;
+            for (Column c: columns) {
+                c.finish();
+                writeString(h, c.name);
+                h.writeByte(c.type);
+                if (c.type == DICTIONARY) {
+                    h.writeInt(c.values.size());
+                    for (String v: c.values) {
+                        writeString(h, v);
+                    }
+                } else if (c.type == SHARED) {
+                    writeString(h, shared.file.getName());
+                } else if (c.type == TEXT) {
+                    h.writeLong(c.textLength);
+                }
+                h.writeLong(offset);
+                offset += c.length(rows);
+            }
+            h.flush();
+
+            try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                o.writeInt(MAGIC);
+                o.writeInt(VERSION);
+                o.writeInt(headerBytes.size());
+                headerBytes.writeTo(o);
+                for (long pad = align(12L + headerBytes.size()) - 12L - headerBytes.size(); pad > 0; pad--) {
+                    o.writeByte(0);
+                }
+                for (Column c: columns) {
+                    c.copyTo(o, rows);
+                }
+            }
+            Files.move(temp, out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return rows;
+        } finally {
+            for (Column c: columns) {
+                c.spooled.close();
+                Files.deleteIfExists(c.spool);
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Convert CSV tables to columnar tables.
+     * @param baseUrl   The URL of the folder containing the CSV files, e.g., {@link PatientGenerator#DATA_URL}.
+     * @param folder    The folder to write the columnar tables to.
+     * @param tables    The names of the CSV files to convert.  Each is written to a file of the same name with {@link #EXTENSION} appended.
+     * @throws IOException  If a table cannot be read or written.
+     */
+    public static void convert(String baseUrl, File folder, String ... tables) throws IOException {
+        // Patients are numbered first, so that their ordinals follow patients.csv
+        List<String> ordered = new ArrayList<>(Arrays.asList(tables));
+        if (ordered.remove("patients.csv")) {
+            ordered.add(0, "patients.csv");
+        }
+        SharedDictionary ids = new SharedDictionary(new File(folder, PATIENT_IDS));
+        for (String table: ordered) {
+            long start = System.currentTimeMillis();
+            File out = new File(folder, getColumnarName(table));
+            try (RowSource rows = CsvResourceLoader.openRows(baseUrl + table)) {
+                int count = write(rows, out, "patients.csv".equals(table) ? "Id" : "PATIENT", ids);
+                LOGGER.info("Converted {} rows of {} to {} in {}ms", count, table, out, System.currentTimeMillis() - start);
+            }
+            // Save the ids after each table, so that the tables written so far can be read
+            ids.save();
+        }
+    }
+
+    /**
+     * @param table The name of a CSV file.
+     * @return  The name of the columnar table for the CSV file.
+     */
+    public static String getColumnarName(String table) {
+        return (table.endsWith(".csv") ? table.substring(0, table.length() - 4) : table) + EXTENSION;
+    }
+
+    /**
+     * Convert the Synthea tables to columnar tables.
+     * @param args  The folder to write to, optionally followed by the URL of the CSV files and the names of the tables.
+     * @throws IOException  If a table cannot be read or written.
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ColumnarTable folder [baseUrl [table ...]]");
+            System.exit(1);
+        }
+        String baseUrl = args.length > 1 ? args[1] : PatientGenerator.DATA_URL;
+        String tables[] = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : TABLES;
+        convert(baseUrl, new File(args[0]), tables);
+    }
+
+    /**
+     * A dictionary shared by the tables in a folder, which is read back when converting more
+     * tables to the folder, so ordinals already written do not change.
+     */
+    private static final class SharedDictionary {
+        private final File file;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> values;
+
+        private SharedDictionary(File file) throws IOException {
+            this.file = file;
+            values = file.exists() ? readDictionary(file) : new ArrayList<>();
+            for (int i = 0; i < values.size(); i++) {
+                dictionary.put(values.get(i), i);
+            }
+        }
+
+        private void save() throws IOException {
+            Path folder = file.getAbsoluteFile().getParentFile().toPath();
+            Path temp = Files.createTempFile(folder, file.getName(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(DICTIONARY_MAGIC);
+                    out.writeInt(values.size());
+                    for (String v: values) {
+                        writeString(out, v);
+                    }
+                }
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * The values of a shared dictionary, which are kept while memory allows, and read again
+     * if the file changes, as it does when more tables are converted to its folder.
+     */
+    private static final class SharedValues {
+        private final long modified, length;
+        private final SoftReference<String[]> values;
+
+        private SharedValues(File f, String values[]) {
+            this.modified = f.lastModified();
+            this.length = f.length();
+            this.values = new SoftReference<>(values);
+        }
+
+        private String[] get(File f) {
+            return f.lastModified() == modified && f.length() == length ? values.get() : null;
+        }
+    }
+
+    /**
+     * @return  The values of a shared dictionary, which are read once for all the tables using them.
+     */
+    private static synchronized String[] getSharedValues(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        SharedValues cached = SHARED_VALUES.get(key);
+        String values[] = cached == null ? null : cached.get(key);
+        if (values == null) {
+            values = readDictionary(key).toArray(new String[0]);
+            SHARED_VALUES.put(key, new SharedValues(key, values));
+        }
+        return values;
+    }
+
+    private static List<String> readDictionary(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f.toPath())))) {
+            if (in.readInt() != DICTIONARY_MAGIC) {
+                throw new IOException(f + " is not a shared dictionary");
+            }
+            int size = in.readInt();
+            List<String> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(readString(in));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * A column being written, with its dictionary and a spool file of ordinals, or once it has
+     * too many distinct values for a dictionary, a spool file of the values themselves.
+     */
+    private static final class Column {
+        private final String name;
+        private Path spool;
+        private DataOutputStream spooled;
+        private Map<String, Integer> dictionary;
+        private List<String> values;
+        private final boolean shared;
+        private boolean dates = true, times = true, hasValues = false, isText = false;
+        private int rows;
+        private long textLength;
+        private byte type;
+
+        private Column(String name, Path spool) throws IOException {
+            this(name, spool, new HashMap<>(), new ArrayList<>(), false);
+        }
+
+        private Column(String name, Path spool, SharedDictionary shared) throws IOException {
+            this(name, spool, shared.dictionary, shared.values, true);
+        }
+
+        private Column(String name, Path spool, Map<String, Integer> dictionary, List<String> values, boolean shared) throws IOException {
+            this.name = name;
+            this.spool = spool;
+            this.dictionary = dictionary;
+            this.values = values;
+            this.shared = shared;
+            this.spooled = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spool)));
+        }
+
+        private void add(String value) throws IOException {
+            rows++;
+            if (isText) {
+                check(value);
+                writeText(value);
+                return;
+            }
+            if (value == null) {
+                spooled.writeInt(MISSING);
+                return;
+            }
+            Integer ordinal = dictionary.get(value);
+            if (ordinal == null) {
+                if (!shared && values.size() >= DICTIONARY_LIMIT) {
+                    toText();
+                    check(value);
+                    writeText(value);
+                    return;
+                }
+                ordinal = values.size();
+                dictionary.put(value, ordinal);
+                values.add(value);
+                check(value);
+            }
+            spooled.writeInt(ordinal);
+        }
+
+        /** Note whether value is a date or timestamp */
+        private void check(String value) {
+            if (value != null && !value.isEmpty()) {
+                hasValues = true;
+                dates = dates && value.length() == 10 && isDate(value);
+                times = times && value.length() == 20 && isDateTime(value);
+            }
+        }
+
+        private void writeText(String value) throws IOException {
+            if (value == null) {
+                spooled.writeInt(MISSING);
+                return;
+            }
+            byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+            spooled.writeInt(bytes.length);
+            spooled.write(bytes);
+            textLength += bytes.length;
+        }
+
+        /**
+         * Spool the values written so far as text, and stop keeping a dictionary for the column.
+         */
+        private void toText() throws IOException {
+            spooled.close();
+            Path ordinals = spool;
+            spool = Files.createTempFile(ordinals.getParent(), ordinals.getFileName().toString(), ".tmp");
+            spooled = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spool)));
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(ordinals)))) {
+                // The row being added is not yet spooled
+                for (int i = 0; i < rows - 1; i++) {
+                    int ordinal = in.readInt();
+                    writeText(ordinal == MISSING ? null : values.get(ordinal));
+                }
+            }
+            Files.delete(ordinals);
+            dictionary = null;
+            values = null;
+            isText = true;
+        }
+
+        private void finish() throws IOException {
+            spooled.close();
+            if (shared) {
+                type = SHARED;
+            } else if (hasValues && dates) {
+                type = DATE;
+            } else if (hasValues && times) {
+                type = DATETIME;
+            } else {
+                type = isText ? TEXT : DICTIONARY;
+            }
+            if (type == TEXT && textLength > Integer.MAX_VALUE) {
+                LOGGER.error("Column {} has {} bytes of text, which is too many to map", name, textLength);
+                throw new IOException("Column " + name + " has too much text to store");
+            }
+        }
+
+        /**
+         * @return  The number of bytes of column data for the column.
+         */
+        private long length(int rows) {
+            return type == DATETIME ? 8L * rows : type == TEXT ? align(4L * rows + textLength) : 4L * rows;
+        }
+
+        private void copyTo(DataOutputStream out, int rows) throws IOException {
+            if (type == TEXT) {
+                copyTextTo(out, rows);
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+                for (int i = 0; i < rows; i++) {
+                    String value;
+                    int ordinal = MISSING;
+                    if (isText) {
+                        value = readText(in);
+                    } else {
+                        ordinal = in.readInt();
+                        value = ordinal == MISSING ? null : values.get(ordinal);
+                    }
+                    switch (type) {
+                    case DATE:
+                        out.writeInt(value == null ? MISSING_DAY : value.isEmpty() ? EMPTY_DAY :
+                            (int) LocalDate.parse(value).toEpochDay());
+                        break;
+                    case DATETIME:
+                        out.writeLong(value == null ? MISSING_TIME : value.isEmpty() ? EMPTY_TIME :
+                            Instant.parse(value).getEpochSecond());
+                        break;
+                    default:
+                        out.writeInt(ordinal);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copy a text column: where each value ends, then the bytes of the values, read in a second pass.
+         */
+        private void copyTextTo(DataOutputStream out, int rows) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+                int end = 0;
+                for (int i = 0; i < rows; i++) {
+                    int length = in.readInt();
+                    if (length == MISSING) {
+                        out.writeInt(~end);
+                    } else {
+                        skipFully(in, length);
+                        out.writeInt(end += length);
+                    }
+                }
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+                byte buffer[] = new byte[8192];
+                for (int i = 0; i < rows; i++) {
+                    for (int length = in.readInt(); length > 0; ) {
+                        int n = Math.min(length, buffer.length);
+                        in.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length -= n;
+                    }
+                }
+            }
+            for (long pad = length(rows) - 4L * rows - textLength; pad > 0; pad--) {
+                out.writeByte(0);
+            }
+        }
+
+        private static String readText(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length == MISSING) {
+                return null;
+            }
+            byte bytes[] = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static void skipFully(DataInputStream in, int length) throws IOException {
+            while (length > 0) {
+                int skipped = in.skipBytes(length);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                length -= skipped;
+            }
+        }
+
+        /** True if value is a date that converts back to the same string */
+        private static boolean isDate(String value) {
+            try {
+                return LocalDate.parse(value).toString().equals(value);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        /** True if value is a timestamp that converts back to the same string */
+        private static boolean isDateTime(String value) {
+            try {
+                return Instant.parse(value).toString().equals(value);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte bytes[] = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Reads the header of a table from a mapped buffer */
+    private static final class ByteBufferInputStream extends java.io.InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
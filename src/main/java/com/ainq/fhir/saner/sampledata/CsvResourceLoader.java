@@ -1,45 +1,43 @@
 package com.ainq.fhir.saner.sampledata;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.AbstractMap;
-import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.ZipException;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
-import org.hl7.fhir.r4.model.Base;
-import org.hl7.fhir.r4.model.DateTimeType;
-import org.hl7.fhir.r4.model.DateType;
-import org.hl7.fhir.r4.model.DomainResource;
-import org.hl7.fhir.r4.model.Element;
-import org.hl7.fhir.r4.model.Extension;
-import org.hl7.fhir.r4.model.InstantType;
-import org.hl7.fhir.r4.model.IntegerType;
-import org.hl7.fhir.r4.model.PrimitiveType;
-import org.hl7.fhir.r4.model.Property;
 import org.hl7.fhir.r4.model.Resource;
-import org.hl7.fhir.r4.model.StringType;
-import org.hl7.fhir.r4.model.UriType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.opencsv.CSVReader;
-import com.opencsv.exceptions.CsvValidationException;
-
 /**
  * This class provides methods to support loading of FHIR Resources
  * from a CSV File.
@@ -203,6 +201,68 @@ public class CsvResourceLoader {
         "valueQuantity.system", "mapValue(http://unitsofmeasure.org)"
     };
 
+    /** The number of rows given to a worker at a time when converting rows on several threads */
+    public static final int BATCH_SIZE = 256;
+
+    private static volatile IdGenerator idGenerator = defaultIdGenerator();
+    private static final LoaderMetrics METRICS = new LoaderMetrics().register();
+
+    /**
+     * @return  The throughput counters for all tables read by this class, which are also
+     *          available through JMX as {@value LoaderMetrics#OBJECT_NAME}.
+     */
+    public static LoaderMetricsMBean getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * @return  The counters, for the other readers in this package.
+     */
+    static LoaderMetrics metrics() {
+        return METRICS;
+    }
+
+    /**
+     * @return  The generator selected by the system properties, or the name-based generator if
+     *          saner.id.strategy is not a known strategy, so that a bad property does not prevent
+     *          this class from loading.
+     */
+    private static IdGenerator defaultIdGenerator() {
+        try {
+            return IdGenerator.fromProperties();
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("{}, using nameBased ids", e.getMessage());
+            return IdGenerator.nameBased(System.getProperty("saner.id.seed", "saner"));
+        }
+    }
+
+    /**
+     * @return  The generator used for genId() in field mappings.
+     */
+    public static IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Set the generator used for genId() in field mappings.  The default is chosen by the
+     * saner.id.strategy system property (see {@link IdGenerator#fromProperties()}), falling
+     * back to name-based ids if the property is not a known strategy.
+     * @param ids   The generator to use.
+     */
+    public static void setIdGenerator(IdGenerator ids) {
+        idGenerator = ids;
+    }
+
+    /**
+     * @param theUrl    The URL of a table.
+     * @return  The name of the table, which is the name of the file without its extension,
+     *          so that a CSV file and its columnar table have the same name.
+     */
+    public static String getTableName(String theUrl) {
+        String name = StringUtils.substringAfterLast("/" + StringUtils.substringBefore(theUrl, "?"), "/");
+        return name.contains(".") ? StringUtils.substringBeforeLast(name, ".") : name;
+    }
+
     public static String[] getMap(String resourceType) {
         switch (resourceType) {
         case "Patient":             return PATIENT_MAP;
@@ -222,392 +282,348 @@ public class CsvResourceLoader {
      * Create resources from data found in CSV files located at the specified URL
      * @param theUrl        A URL pointing to the source of CSV data to extract resources from.
      * @param fieldMapping  A mapping of FHIR fields to values.
+     * @param field         The column to select rows by, or null for all rows.
+     * @param test          The test for the value of field.  A {@link ColumnFilter}, such as a {@link CharSequenceSet},
+     *                      is applied to the raw column as the row is read, so rejected rows are not split.
      */
     public static <T extends Resource> void createResources(Class<T> type, String theUrl, String fieldMapping[], Predicate<T> consumer, String field, Predicate<String> test, int max) {
         try {
-            URL url = new URL(theUrl);
-            URLConnection con = url.openConnection();
-            con.setDoInput(true);
-            con.setDoOutput(false);
-            con.connect();
+            RowSource rows = openRows(theUrl);
             Constructor<T> constructor = type.getConstructor();
-            try (InputStream s = con.getInputStream();
-                 CSVReader r = new CSVReader(new InputStreamReader(s));
-                ) {
+            try (RowSource r = rows) {
                 String fieldNames[] = null;
-                String fieldData[];
-                Map<String, Integer> indexes = new HashMap<>();
-
-                fieldNames = r.readNext();
-                for (int i = 0; i < fieldNames.length; i++) {
-                    indexes.put(fieldNames[i], i);
-                }
-
-                while (true) {
-                    try {
-                        fieldData = r.readNext();
-                        if (fieldData == null) {
-                            break;
-                        }
-                        Map<String, String> feildMap = createMap(fieldNames, indexes, fieldData);
-                        if (field == null || test.test(feildMap.get(field))) {
-                            if (consumer.test(processRow(constructor.newInstance(), feildMap, fieldMapping)) == false) {
+                RowCursor fieldData;
+
+                fieldNames = r.getHeader();
+                MappingPlan plan = new MappingPlan(fieldMapping, fieldNames, getTableName(theUrl), getIdGenerator());
+                int fieldIndex = field == null ? -1 : ArrayUtils.lastIndexOf(fieldNames, field);
+                LoaderMetrics.Tally tally = METRICS.tally();
+                ColumnFilter filter = tally.counting(field == null ? null : ColumnFilter.of(test));
+
+                try {
+                    while (true) {
+                        try {
+                            long start = System.nanoTime();
+                            fieldData = r.advance(fieldIndex, filter);
+                            long read = System.nanoTime();
+                            tally.read(read - start, fieldData != null);
+                            if (fieldData == null) {
+                                break;
+                            }
+                            T resource = plan.apply(constructor.newInstance(), fieldData);
+                            long mapped = System.nanoTime();
+                            tally.mapped(mapped - read, 1);
+                            boolean more = consumer.test(resource);
+                            tally.consumed(System.nanoTime() - mapped);
+                            if (more == false) {
                                 break;
                             }
                             if (--max == 0) {
                                 return;
                             }
+                        } catch (InstantiationException e) {
+                            METRICS.error(LoaderMetrics.REFLECTION);
+                            LOGGER.error("Reflection Error creating {}", type.getName(), e);
+                        } catch (IllegalAccessException e) {
+                            METRICS.error(LoaderMetrics.REFLECTION);
+                            LOGGER.error("Access Error creating {}", type.getName(), e);
+                        } catch (IllegalArgumentException e) {
+                            METRICS.error(LoaderMetrics.REFLECTION);
+                            LOGGER.error("Construction Error creating {}", type.getName(), e);
+                        } catch (InvocationTargetException e) {
+                            METRICS.error(LoaderMetrics.REFLECTION);
+                            LOGGER.error("Exception creating {}", type.getName(), e);
+                        } catch (RuntimeException e) {
+                            METRICS.error(LoaderMetrics.MAPPING);
+                            throw e;
                         }
-                    } catch (CsvValidationException e) {
-                        LOGGER.error("CSV Error in {}", theUrl, e);
-                    } catch (InstantiationException e) {
-                        LOGGER.error("Reflection Error creating {}", type.getName(), e);
-                    } catch (IllegalAccessException e) {
-                        LOGGER.error("Access Error creating {}", type.getName(), e);
-                    } catch (IllegalArgumentException e) {
-                        LOGGER.error("Construction Error creating {}", type.getName(), e);
-                    } catch (InvocationTargetException e) {
-                        LOGGER.error("Exception creating {}", type.getName(), e);
                     }
+                } finally {
+                    tally.flush();
                 }
 
             }  catch (ZipException e) {
+                METRICS.error(LoaderMetrics.ZIP);
                 LOGGER.error("ZIP file format error in {}", theUrl, e);
             } catch (IOException e) {
+                METRICS.error(LoaderMetrics.IO);
                 LOGGER.error("IO error reading {}", theUrl, e);
-            } catch (CsvValidationException e) {
-                LOGGER.error("CSV file format error reading {}", theUrl, e);
             }
 
         } catch (NoSuchMethodException e) {
+            METRICS.error(LoaderMetrics.REFLECTION);
             LOGGER.error("Constructor not found for {}", type.getName(), e);
         } catch (SecurityException e) {
+            METRICS.error(LoaderMetrics.REFLECTION);
             LOGGER.error("Security error accessing constructor for {}", type.getName(), e);
         } catch (IOException e) {
+            METRICS.error(LoaderMetrics.IO);
             LOGGER.error("Cannot open {}", theUrl, e);
         }
     }
 
-    private static Map<String, String> createMap(String fieldNames[], Map<String, Integer> index, String[] fieldData) {
-        Map<String, String> map = new AbstractMap<String, String>() {
-
-            @Override
-            public String get(Object key) {
-                Integer pos = index.get(key);
-                return pos != null && pos < fieldData.length ? fieldData[pos] : null;
-            }
-
-            @Override
-            public Set<Entry<String, String>> entrySet() {
-                return new AbstractSet<Entry<String, String>>() {
-
-                    public Iterator<Entry<String, String>> iterator() {
-                        return new Iterator<Entry<String, String>> () {
-                            int position = 0;
-                            @Override
-                            public boolean hasNext() {
-                                return position <  fieldNames.length;
-                            }
-
-                            @Override
-                            public Entry<String, String> next() {
-                                return new Entry<String, String> () {
-                                    int pos = position++;
-                                    @Override
-                                    public String getKey() {
-                                        return fieldNames[pos];
-                                    }
-
-                                    @Override
-                                    public String getValue() {
-                                        return fieldData[pos];
-                                    }
-
-                                    @Override
-                                    public String setValue(String value) {
-                                        throw new UnsupportedOperationException();
-                                    }};
-                            }
-
-                        };
-                    }
-
-
-                    @Override
-                    public int size() {
-                        return fieldNames.length;
-                    }
-
-                };
-            }
-        };
-        return map;
+    /**
+     * Create resources from data found in CSV files located at the specified URL, converting
+     * rows on several threads.  The calling thread reads the file, splits the selected rows into
+     * batches of {@link #BATCH_SIZE}, and hands each batch to a pool of workers.  Resources are
+     * given to the consumer on the calling thread, so the consumer need not be thread safe.
+     * At most two batches per worker are read ahead of the consumer.
+     *
+     * @param theUrl        A URL pointing to the source of CSV data to extract resources from.
+     * @param fieldMapping  A mapping of FHIR fields to values.
+     * @param max           The maximum number of resources to create, or 0 for no limit.
+     * @param threads       The number of worker threads.  With one or fewer, rows are converted on the calling thread.
+     * @param ordered       True to give resources to the consumer in the order of the rows,
+     *                      false to give them in the order they are converted.
+     */
+    public static <T extends Resource> void createResources(Class<T> type, String theUrl, String fieldMapping[], Predicate<T> consumer,
+        String field, Predicate<String> test, int max, int threads, boolean ordered) {
+        if (threads <= 1) {
+            createResources(type, theUrl, fieldMapping, consumer, field, test, max);
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "csv-convert-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            createResources(type, theUrl, fieldMapping, consumer, field, test, max, executor, 2 * threads, ordered);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     /**
-     * Process a row from the CSV File, collecting data from each field and populating a new resource.
-     * @param <T>   The type of resource to update.
-     * @param resource  The resource to be updated.
-     * @param indexes   A map from field name to field location.
-     * @param fieldData
-     * @param fieldMapping
-     * @return The modified resource.
+     * Create resources from data found in CSV files located at the specified URL, converting
+     * rows on an executor that may be shared with other tables.  The calling thread reads the file,
+     * splits the selected rows into batches of {@link #BATCH_SIZE}, and hands each batch to the
+     * executor.  Resources are given to the consumer on the calling thread, so the consumer need
+     * not be thread safe.  Batches not yet converted when reading stops are cancelled.
+     *
+     * @param theUrl        A URL pointing to the source of CSV data to extract resources from.
+     * @param fieldMapping  A mapping of FHIR fields to values.
+     * @param max           The maximum number of resources to create, or 0 for no limit.
+     * @param executor      The executor to convert rows on.
+     * @param batches       The number of batches that may be read ahead of the consumer.
+     * @param ordered       True to give resources to the consumer in the order of the rows,
+     *                      false to give them in the order they are converted.
      */
-    private static <T extends Resource> T processRow(T resource, Map<String, String> fieldData, String fieldMapping[]) {
-        for (int i = 0; i < fieldMapping.length; i += 2) {
-            String key = fieldMapping[i];
-            String value = fieldMapping[i+1];
-            PrimitiveType<?> t = null;
-            boolean isVariable = false;
-            try {
-                if (value.startsWith("%")) {
-                    String key1 = value.substring(1);
-                    if (fieldData.containsKey(key1)) {
-                        value = fieldData.get(key1);
-                        isVariable = true;
-                    } else {
-                        throw new RuntimeException("Unknown field " + key1);
-                    }
-                }
-                if (!StringUtils.isBlank(value)) {
-                    if (!isVariable && value.contains("(")) {
-                        String function = StringUtils.substringBefore(value, "(");
-                        value = value.substring(function.length() + 1, value.length() - 1);
-                        if (value.startsWith("%")) {
-                            value = fieldData.get(value.substring(1));
+    public static <T extends Resource> void createResources(Class<T> type, String theUrl, String fieldMapping[], Predicate<T> consumer,
+        String field, Predicate<String> test, int max, Executor executor, int batches, boolean ordered) {
+        Constructor<T> constructor;
+        try {
+            constructor = type.getConstructor();
+        } catch (NoSuchMethodException e) {
+            METRICS.error(LoaderMetrics.REFLECTION);
+            LOGGER.error("Constructor not found for {}", type.getName(), e);
+            return;
+        } catch (SecurityException e) {
+            METRICS.error(LoaderMetrics.REFLECTION);
+            LOGGER.error("Security error accessing constructor for {}", type.getName(), e);
+            return;
+        }
+        CompletionService<List<T>> converted = new ExecutorCompletionService<>(executor);
+        Deque<Future<List<T>>> pending = new ArrayDeque<>();
+        int readAhead = Math.max(1, batches);
+        LoaderMetrics.Tally tally = METRICS.tally();
+        try (RowSource r = openRows(theUrl)) {
+            String fieldNames[] = r.getHeader();
+            MappingPlan plan = new MappingPlan(fieldMapping, fieldNames, getTableName(theUrl), getIdGenerator());
+            int fieldIndex = field == null ? -1 : ArrayUtils.lastIndexOf(fieldNames, field);
+            ColumnFilter filter = tally.counting(field == null ? null : ColumnFilter.of(test));
+            int remaining = max > 0 ? max : Integer.MAX_VALUE;
+            boolean more = true;
+
+            while (more || !pending.isEmpty()) {
+                if (more && pending.size() < readAhead) {
+                    List<ArrayRowCursor> rows = new ArrayList<>(BATCH_SIZE);
+                    more = readBatch(r, fieldIndex, filter, rows, Math.min(BATCH_SIZE, remaining), tally);
+                    remaining -= rows.size();
+                    more &= remaining > 0;
+                    if (!rows.isEmpty()) {
+                        Callable<List<T>> batch = () -> convert(constructor, plan, rows);
+                        if (ordered) {
+                            FutureTask<List<T>> task = new FutureTask<>(batch);
+                            executor.execute(task);
+                            pending.add(task);
+                        } else {
+                            pending.add(converted.submit(batch));
                         }
-                        value = mapCode(function, value, fieldData.get("TYPE"));
                     }
-                    if (!StringUtils.isBlank(value)) {
-                        t = getElement(key, resource);
-                        t.setValueAsString(value);
+                    continue;
+                }
+                Future<List<T>> done = ordered ? pending.removeFirst() : converted.take();
+                if (!ordered) {
+                    pending.remove(done);
+                }
+                List<T> resources = done.get();
+                for (T resource: resources) {
+                    long start = System.nanoTime();
+                    boolean wanted = consumer.test(resource);
+                    tally.consumed(System.nanoTime() - start);
+                    if (wanted == false) {
+                        return;
                     }
                 }
-            } catch (Exception ex) {
-                LOGGER.error("Cannot set {}({}) to {}", key, t == null ? "unknown" : t.getClass().getSimpleName(), fieldMapping[i+1], ex);
-                throw ex;
             }
-        }
-        return resource;
-    }
-
-    private static String mapCode(String function, String value, String type) {
-        switch (function) {
-        case "mapRace":
-            return mapRace(value);
-        case "mapGender":
-            return mapGender(value);
-        case "mapEthnicity":
-            return mapEthnicity(value);
-        case "mapMarital":
-            return StringUtils.isBlank(value) ? "" :
-                "http://terminology.hl7.org/CodeSystem/v3-MaritalStatus";
-        case "mapFirst":
-            return StringUtils.substringBefore(value, " ");
-        case "mapLast":
-            return StringUtils.substringAfterLast(value, " ");
-        case "mapPatient":
-            return "Patient/" + value;
-        case "mapEncounter":
-            return "Encounter/" + value;
-        case "mapProvider":
-            return "Practitioner/" + value;
-        case "genId":
-            return UUID.randomUUID().toString();
-        case "mapString":
-            if ("text".equals(type)) {
-                return value;
+        } catch (ZipException e) {
+            METRICS.error(LoaderMetrics.ZIP);
+            LOGGER.error("ZIP file format error in {}", theUrl, e);
+        } catch (IOException e) {
+            METRICS.error(LoaderMetrics.IO);
+            LOGGER.error("IO error reading {}", theUrl, e);
+        } catch (InterruptedException e) {
+            METRICS.error(LoaderMetrics.INTERRUPTED);
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted while reading {}", theUrl, e);
+        } catch (ExecutionException e) {
+            METRICS.error(LoaderMetrics.MAPPING);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            return null;
-        case "mapValue":
-            if (!"text".equals(type)) {
-                return value;
+            LOGGER.error("Error converting {}", theUrl, e.getCause());
+        } finally {
+            tally.flush();
+            for (Future<List<T>> f: pending) {
+                f.cancel(true);
             }
-            return null;
-        case "mapEncClass":
-            return mapEncClass(value);
-        default:
-            throw new RuntimeException("Unknown function " + function);
-        }
-    }
-
-    private static String mapEthnicity(String value) {
-        switch (value) {
-        case "hispanic":    return "2135-2";
-        case "nonhispanic": return "2186-5";
         }
-        return null;
     }
 
-    private static String mapGender(String value) {
-        switch (value) {
-        case "M": case "m":
-        case "male":    return "male";
-        case "F": case "f":
-        case "female": return "female";
-        }
-        return null;
+    /**
+     * Create a stream of resources from data found in CSV files located at the specified URL.
+     * The URL is not opened until a terminal operation begins, and rows are read and converted
+     * only as the stream pulls them.  The table is released when the last row has been read, or
+     * when the stream is closed, so a stream that is not read to the end (e.g., after limit()) should
+     * be closed, as with try-with-resources.
+     *
+     * @param theUrl        A URL pointing to the source of CSV data to extract resources from.
+     * @param fieldMapping  A mapping of FHIR fields to values.
+     * @param field         The column to select rows by, or null for all rows.
+     * @param test          The test for the value of field.
+     * @return  A sequential stream of resources.  An error reading the table is reported by an UncheckedIOException.
+     */
+    public static <T extends Resource> Stream<T> streamResources(Class<T> type, String theUrl, String fieldMapping[], String field, Predicate<String> test) {
+        ResourceReader<T> reader = new ResourceReader<>(type, theUrl, fieldMapping, field, test);
+        Spliterator<T> resources = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                T resource = reader.next();
+                if (resource == null) {
+                    return false;
+                }
+                action.accept(resource);
+                return true;
+            }
+        };
+        return StreamSupport.stream(resources, false).onClose(reader::close);
     }
 
-    private static String mapRace(String value) {
-        switch (value) {
-        case "native":  return "1002-5";
-        case "asian":   return "2028-9";
-        case "black":   return "2054-5";
-        case "other":   return "2076-8";
-        case "white":   return "2106-3";
-        }
-        return null;
+    /**
+     * Create a publisher of resources from data found in CSV files located at the specified URL.
+     * Each subscriber reads the table separately, opening it when resources are first requested.
+     * A row is only read and converted when the subscriber has requested a resource for it, so
+     * a slow subscriber slows the reading of the table rather than causing resources to be buffered.
+     * The table is released on completion, on error, and when the subscription is cancelled.
+     *
+     * @param theUrl        A URL pointing to the source of CSV data to extract resources from.
+     * @param fieldMapping  A mapping of FHIR fields to values.
+     * @param field         The column to select rows by, or null for all rows.
+     * @param test          The test for the value of field.
+     * @param executor      The executor to read the table and deliver resources on.
+     * @return  The publisher.
+     */
+    public static <T extends Resource> Flow.Publisher<T> publishResources(Class<T> type, String theUrl, String fieldMapping[],
+        String field, Predicate<String> test, Executor executor) {
+        return new ResourcePublisher<>(() -> new ResourceReader<>(type, theUrl, fieldMapping, field, test), executor);
     }
 
-    private static String mapEncClass(String value) {
-        switch (value) {
-        case "ambulatory":  return "AMB";
-        case "inpatient":   return "IMP";
-        case "outpatient":  return "AMB";
-        case "emergency":   return "EMER";
-        case "urgentcare":  return "AMB";
-        case "homehealth":  return "AMB";
-        case "wellness":    return "AMB";
-        }
-        return null;
+    /**
+     * Create a publisher of resources that delivers them using {@link ForkJoinPool#commonPool()}.
+     * @see #publishResources(Class, String, String[], String, Predicate, Executor)
+     */
+    public static <T extends Resource> Flow.Publisher<T> publishResources(Class<T> type, String theUrl, String fieldMapping[],
+        String field, Predicate<String> test) {
+        return publishResources(type, theUrl, fieldMapping, field, test, ForkJoinPool.commonPool());
     }
 
     /**
-     * Given a Field name and a resource, return the primitive type
-     * pointed to by the field name.
-     *
-     * @param <T>   The type of resource provided.
-     * @param field The name of field in the resource, with subfields separated by .
-     * @param resource  The resource to extract data from.
-     * @return  The primitive type referenced in key
+     * Open a table for reading by row.  A URL ending in {@link ColumnarTable#EXTENSION} is read as a
+     * columnar table, as is a file: URL for a CSV file that has a columnar table of the same name
+     * beside it (see {@link ColumnarTable#getColumnarName(String)}) that is at least as new as the CSV.
+     * Anything else is read as CSV.
+     * @param theUrl    The URL of the table.
+     * @return  The rows of the table.
+     * @throws IOException  If the table cannot be opened.
      */
-    private static <T extends Resource> PrimitiveType<?> getElement(String field, T resource) {
-        String parts[] = field.split("\\.");
-        List<String> newParts = new ArrayList<>();
-        for (int i = 0; i < parts.length; i++) {
-            if (parts[i].contains("(")) {
-                String value = "";
-                for (; i < parts.length; i++) {
-                    if (value.length() != 0) {
-                        value += ".";
-                    }
-                    value += parts[i];
-                    if (parts[i].endsWith(")")) {
-                        break;
-                    }
-                }
-                newParts.add(value);
-            } else {
-                newParts.add(parts[i]);
+    public static RowSource openRows(String theUrl) throws IOException {
+        if (theUrl.startsWith("file:")) {
+            File f = new File(URI.create(theUrl));
+            if (theUrl.endsWith(ColumnarTable.EXTENSION)) {
+                return ColumnarTable.openRows(f);
             }
-        }
-
-        parts = newParts.toArray(new String[newParts.size()]);
-        Base b = resource;
-        Element elem = null;
-        String found = "";
-        for (String part: parts) {
-            elem = getProperty(b, part);
-            if (elem == null) {
-                String msg = String.format("Cannot find %s%s in %s", found, part, resource.fhirType());
-                LOGGER.error(msg);
-                throw new RuntimeException(msg);
+            File columnar = new File(f.getParentFile(), ColumnarTable.getColumnarName(f.getName()));
+            if (columnar.exists() && (!f.exists() || columnar.lastModified() >= f.lastModified())) {
+                return ColumnarTable.openRows(columnar);
             }
-            b = elem;
-            found += part + ".";
         }
-        if (!(elem instanceof PrimitiveType)) {
-            String msg = String.format("%s.%s is not a primitive type (%s)", resource.fhirType(), found, elem.fhirType());
-            LOGGER.error(msg);
-            throw new RuntimeException(msg);
+        return new CsvRowSource(open(theUrl), theUrl);
+    }
+
+    private static InputStream open(String theUrl) throws IOException {
+        if (ArchiveCache.isRemoteArchive(theUrl)) {
+            return METRICS.count(ArchiveCache.getDefault().open(theUrl));
         }
-        return (PrimitiveType<?>) elem;
+        URL url = new URL(theUrl);
+        URLConnection con = url.openConnection();
+        con.setDoInput(true);
+        con.setDoOutput(false);
+        con.connect();
+        return METRICS.count(con.getInputStream());
     }
 
     /**
-     * Get the element referenced by a field.  If the property
-     * @param b     The Resource or FHIR type to access data from
-     * @param part  The name of the field to access. If part references a
-     * @return  A FHIR data type representing the named field.
+     * Read up to count selected rows.
+     * @return false if the end of the file was reached.
      */
-    private static Element getProperty(Base b, String part) {
-        if (part.startsWith("extension('")) {
-            String url = part.substring(11, part.length() - 2);
-            Extension ex = null;
-            if (b instanceof DomainResource) {
-                ex = ((DomainResource) b).getExtensionByUrl(url);
-            } else {
-                ex = ((Element) b).getExtensionByUrl(url);
-            }
-            if (ex == null) {
-                ex = (Extension) ((IBaseHasExtensions) b).addExtension().setUrl(url);
-            }
-            return ex;
-        }
-        Property p = b.getNamedProperty(part);
-        if (p == null) {
-            /*
-             * At this stage, we might be looking at something like Observation.valueQuantity.
-             * But getNamedProperty won't return it, b/c we did something like create valueString
-             * already.
-             */
-            return null;
-        }
-        if (!p.hasValues()) {
-            String typeCode = p.getTypeCode();
-            if (typeCode.length() > 0 && Character.isLowerCase(typeCode.charAt(0))) {
-                switch (p.getTypeCode()) {
-                case "date":
-                    b.setProperty(part, new DateType());
-                    break;
-                case "dateTime":
-                    b.setProperty(part, new DateTimeType());
-                    break;
-                case "instant":
-                    b.setProperty(part, new InstantType());
-                    break;
-                case "id":
-                    return ((Resource)b).getIdElement();
-                case "uri":
-                    b.setProperty(part, new UriType(""));
-                    break;
-                case "string": case "code":
-                    b.setProperty(part, new StringType(""));
-                    break;
-                default:
-                    if (isComposite(typeCode, part)) {
-                        return (Element) b.addChild(part);
-                    } else if (typeCode.contains("dateTime")) {
-                        b.setProperty(part, new DateTimeType());
-                    } else if (typeCode.contains("date")) {
-                        b.setProperty(part, new DateType());
-                    } else {
-                        b.setProperty(part, new IntegerType(0));
-                    }
-                }
-                return (Element) b.getNamedProperty(part).getValues().get(0);
-            } else {
-                return (Element) b.addChild(part);
+    private static boolean readBatch(RowSource r, int fieldIndex, ColumnFilter filter, List<ArrayRowCursor> rows, int count,
+        LoaderMetrics.Tally tally) throws IOException {
+        while (rows.size() < count) {
+            long start = System.nanoTime();
+            RowCursor fieldData = r.advance(fieldIndex, filter);
+            tally.read(System.nanoTime() - start, fieldData != null);
+            if (fieldData == null) {
+                return false;
             }
+            rows.add(new ArrayRowCursor(fieldData.toArray(), fieldData.getRowNumber()));
         }
-        List<Base> values = p.getValues();
-        return (Element) values.get(values.size() - 1);
+        return true;
     }
 
-    /**
-     * Return true if the field being looked for is a composite.
-     *
-     * @param typeCode  The typeCode values available for this element.
-     * @param part  The specific field being looked for.
-     * @return True if the type being sought is a composite.
-     */
-    private static boolean isComposite(String typeCode, String part) {
-        for (String type: typeCode.split("\\|")) {
-            if (part.endsWith(type.trim())) {
-                return true;
+    private static <T extends Resource> List<T> convert(Constructor<T> constructor, MappingPlan plan, List<ArrayRowCursor> rows) {
+        long start = System.nanoTime();
+        List<T> resources = new ArrayList<>(rows.size());
+        String name = constructor.getDeclaringClass().getName();
+        for (ArrayRowCursor fieldData: rows) {
+            try {
+                resources.add(plan.apply(constructor.newInstance(), fieldData));
+            } catch (InstantiationException e) {
+                METRICS.error(LoaderMetrics.REFLECTION);
+                LOGGER.error("Reflection Error creating {}", name, e);
+            } catch (IllegalAccessException e) {
+                METRICS.error(LoaderMetrics.REFLECTION);
+                LOGGER.error("Access Error creating {}", name, e);
+            } catch (IllegalArgumentException e) {
+                METRICS.error(LoaderMetrics.REFLECTION);
+                LOGGER.error("Construction Error creating {}", name, e);
+            } catch (InvocationTargetException e) {
+                METRICS.error(LoaderMetrics.REFLECTION);
+                LOGGER.error("Exception creating {}", name, e);
             }
         }
-        return false;
+        METRICS.mapped(System.nanoTime() - start, resources.size());
+        return resources;
     }
 }
@@ -0,0 +1,254 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.opencsv.CSVParser;
+
+/**
+ * Reads rows from a CSV file whose first line names the columns, giving the same values as
+ * opencsv's CSVReader with its default settings.  Lines without quotes or escapes, which are
+ * most of the lines in the Synthea tables, are split directly.  When reading with a
+ * {@link ColumnFilter}, only the tested column of such a line is located, and a line that
+ * is rejected is skipped without being split.  Other lines are parsed by opencsv.
+ */
+public class CsvRowSource implements RowSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CsvRowSource.class);
+    private final BufferedReader reader;
+    private final CSVParser parser = new CSVParser();
+    private final String name;
+    private final String header[];
+    private final Slice slice = new Slice();
+    private final Cursor cursor = new Cursor();
+
+    /**
+     * Start reading a CSV file.
+     * @param in    The content of the file.
+     * @param name  The name of the file, for error messages.
+     * @throws IOException  If the header cannot be read.
+     */
+    public CsvRowSource(InputStream in, String name) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(in));
+        this.name = name;
+        try {
+            header = next();
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        if (header == null) {
+            reader.close();
+            throw new IOException(name + " is empty");
+        }
+        cursor.rowNumber = -1;
+    }
+
+    @Override
+    public String[] getHeader() {
+        return header;
+    }
+
+    @Override
+    public String[] next() throws IOException {
+        return toArray(advance(-1, null));
+    }
+
+    @Override
+    public String[] next(int column, ColumnFilter filter) throws IOException {
+        return toArray(advance(column, filter));
+    }
+
+    @Override
+    public RowCursor advance(int column, ColumnFilter filter) throws IOException {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            cursor.rowNumber++;
+            if (isPlain(line)) {
+                if (filter == null || filter.matches(find(line, column))) {
+                    return cursor.split(line);
+                }
+            } else {
+                String row[] = parse(line);
+                if (filter == null || filter.matches(column >= 0 && column < row.length ? row[column] : null)) {
+                    return cursor.set(row);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String[] toArray(RowCursor row) {
+        return row == null ? null : row.toArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /** True if a line has no quotes or escapes, and so is a complete row that can be split at each comma */
+    private static boolean isPlain(String line) {
+        for (int i = 0, len = line.length(); i < len; i++) {
+            char c = line.charAt(i);
+            if (c == '"' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Locate a column in a plain line.
+     * @return  The characters of the column, or null if the line has no such column.
+     */
+    private CharSequence find(String line, int column) {
+        if (column < 0) {
+            return null;
+        }
+        int start = 0;
+        for (int i = 0; i < column; i++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+        int end = line.indexOf(',', start);
+        return slice.set(line, start, end < 0 ? line.length() : end);
+    }
+
+    /** Parse a row that may have quoted values, and may continue onto following lines */
+    private String[] parse(String line) throws IOException {
+        String row[] = null;
+        while (true) {
+            String part[] = parser.parseLineMulti(line);
+            if (row == null) {
+                row = part;
+            } else {
+                String joined[] = new String[row.length + part.length];
+                System.arraycopy(row, 0, joined, 0, row.length);
+                System.arraycopy(part, 0, joined, row.length, part.length);
+                row = joined;
+            }
+            if (!parser.isPending()) {
+                return row;
+            }
+            line = reader.readLine();
+            if (line == null) {
+                String msg = String.format("Unterminated quoted value at end of %s", name);
+                LOGGER.error(msg);
+                throw new IOException(msg);
+            }
+        }
+    }
+
+    /**
+     * The cursor for the current row.  A plain line is kept whole, with the bounds of each value,
+     * and values are only copied out of it when asked for.
+     */
+    private static final class Cursor implements RowCursor {
+        private String line;
+        private String row[];
+        private int bounds[] = new int[64];
+        private Slice slices[] = new Slice[0];
+        private int size;
+        private long rowNumber = -1;
+
+        private Cursor split(String line) {
+            this.line = line;
+            this.row = null;
+            int count = 0, start = 0;
+            while (true) {
+                if (2 * count + 2 > bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                int end = line.indexOf(',', start);
+                bounds[2 * count] = start;
+                bounds[2 * count + 1] = end < 0 ? line.length() : end;
+                count++;
+                if (end < 0) {
+                    break;
+                }
+                start = end + 1;
+            }
+            size = count;
+            return this;
+        }
+
+        private Cursor set(String row[]) {
+            this.line = null;
+            this.row = row;
+            size = row.length;
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long getRowNumber() {
+            return rowNumber;
+        }
+
+        @Override
+        public String get(int column) {
+            if (column < 0 || column >= size) {
+                return null;
+            }
+            return row != null ? row[column] : line.substring(bounds[2 * column], bounds[2 * column + 1]);
+        }
+
+        @Override
+        public CharSequence getChars(int column) {
+            if (column < 0 || column >= size || row != null) {
+                return get(column);
+            }
+            if (column >= slices.length) {
+                slices = Arrays.copyOf(slices, Math.max(size, column + 1));
+            }
+            if (slices[column] == null) {
+                slices[column] = new Slice();
+            }
+            return slices[column].set(line, bounds[2 * column], bounds[2 * column + 1]);
+        }
+    }
+
+    /** A reusable view of part of a line */
+    private static final class Slice implements CharSequence {
+        private String line;
+        private int start, end;
+
+        private Slice set(String line, int start, int end) {
+            this.line = line;
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return line.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return line.substring(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return line.substring(start, end);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.util.Calendar;
+
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Date handling shared by the loaders, emitters and the simulator.
+ */
+public final class Dates {
+    private Dates() {
+    }
+
+    /**
+     * Shift a date by a number of days in the local time zone, keeping its precision.
+     * @param cal   A calendar to use for the computation.
+     * @param t     The date to shift.
+     * @param dateOffset    The number of days to shift by.
+     */
+    public static void shift(Calendar cal, BaseDateTimeType t, int dateOffset) {
+        cal.setTime(t.getValue());
+        cal.add(Calendar.DATE, dateOffset);
+        t.setValue(cal.getTime());
+    }
+
+    /**
+     * Shift all dates in a resource by a number of days.
+     * @param terser    The terser used to find the dates.
+     * @param r The resource to adjust.
+     * @param dateOffset    The number of days to shift by.
+     */
+    public static void shiftAll(FhirTerser terser, Resource r, int dateOffset) {
+        Calendar cal = Calendar.getInstance();
+        for (BaseDateTimeType t: terser.getAllPopulatedChildElementsOfType(r, BaseDateTimeType.class)) {
+            shift(cal, t, dateOffset);
+        }
+    }
+}
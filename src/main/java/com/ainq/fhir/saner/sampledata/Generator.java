@@ -9,10 +9,14 @@ import java.util.Random;
 import org.hl7.fhir.r4.model.Base;
 
 public interface Generator<B extends Base> {
+    /**
+     * The seed for the shared source of random information.
+     */
+    public static final long SEED = 0x53414E5221l;
     /**
      * A source of random information that can be used by all generators.
      */
-    public static final Random RANDOM = new Random(0x53414E5221l);
+    public static final Random RANDOM = new Random(SEED);
     /**
      * Initialize the generator.
      */
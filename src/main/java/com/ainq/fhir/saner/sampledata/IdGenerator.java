@@ -0,0 +1,116 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the ids of resources that have no id in their table, for the genId() function
+ * in a field mapping.  The generator used by {@link CsvResourceLoader} is set with
+ * {@link CsvResourceLoader#setIdGenerator(IdGenerator)}, or chosen by the saner.id.strategy
+ * system property: nameBased (the default), counter, or random.
+ */
+@FunctionalInterface
+public interface IdGenerator {
+    /** The RFC 4122 namespace for URLs, which name-based ids are created in */
+    UUID NAMESPACE = UUID.fromString("6ba7b811-9dad-11d1-80b4-00c04fd430c8");
+
+    /**
+     * Create an id for a resource.
+     * @param table The name of the table the resource is created from, e.g., observations.
+     * @param row   The position of the row in the table, or -1 if it is not known.
+     * @return  The id.
+     */
+    String newId(String table, long row);
+
+    /**
+     * @return  A generator of random (version 4) UUIDs.  These differ between runs, and use SecureRandom.
+     */
+    static IdGenerator random() {
+        return (table, row) -> UUID.randomUUID().toString();
+    }
+
+    /**
+     * @return  A generator of numeric ids, unique within the process.  Each thread takes ids from
+     *          its own block of numbers, so the ids are only the same between runs when tables are
+     *          converted in the same order on a single thread.
+     */
+    static IdGenerator counter() {
+        final int block = 1024;
+        AtomicLong next = new AtomicLong();
+        ThreadLocal<long[]> range = ThreadLocal.withInitial(() -> new long[2]);
+        return (table, row) -> {
+            long r[] = range.get();
+            if (r[0] == r[1]) {
+                r[0] = next.getAndAdd(block);
+                r[1] = r[0] + block;
+            }
+            return Long.toString(r[0]++);
+        };
+    }
+
+    /**
+     * Create a generator of name-based (version 5) UUIDs, named by the seed, table and row as
+     * seed/table/row in the {@link #NAMESPACE} namespace.  The same row of the same table always
+     * has the same id for a given seed, however the table is read.  Rows whose position is not
+     * known are given random ids.
+     * @param seed  The seed, which can be changed to create a different set of ids.
+     * @return  The generator.
+     */
+    static IdGenerator nameBased(String seed) {
+        ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+        });
+        byte namespace[] = toBytes(NAMESPACE);
+        byte prefix[] = (seed + "/").getBytes(StandardCharsets.UTF_8);
+        return (table, row) -> {
+            if (row < 0) {
+                return UUID.randomUUID().toString();
+            }
+            MessageDigest d = digests.get();
+            d.update(namespace);
+            d.update(prefix);
+            d.update((table + "/" + row).getBytes(StandardCharsets.UTF_8));
+            byte hash[] = d.digest();
+            hash[6] = (byte) ((hash[6] & 0x0f) | 0x50);
+            hash[8] = (byte) ((hash[8] & 0x3f) | 0x80);
+            long msb = 0, lsb = 0;
+            for (int i = 0; i < 8; i++) {
+                msb = (msb << 8) | (hash[i] & 0xff);
+                lsb = (lsb << 8) | (hash[i + 8] & 0xff);
+            }
+            return new UUID(msb, lsb).toString();
+        };
+    }
+
+    /**
+     * @return  The generator selected by the saner.id.strategy system property, with the seed for
+     *          name-based ids given by saner.id.seed.
+     */
+    static IdGenerator fromProperties() {
+        String strategy = System.getProperty("saner.id.strategy", "nameBased");
+        switch (strategy) {
+        case "random":      return random();
+        case "counter":     return counter();
+        case "nameBased":   return nameBased(System.getProperty("saner.id.seed", "saner"));
+        default:
+            throw new IllegalArgumentException("Unknown saner.id.strategy " + strategy);
+        }
+    }
+
+    private static byte[] toBytes(UUID uuid) {
+        byte b[] = new byte[16];
+        long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (msb >>> (56 - 8 * i));
+            b[i + 8] = (byte) (lsb >>> (56 - 8 * i));
+        }
+        return b;
+    }
+}
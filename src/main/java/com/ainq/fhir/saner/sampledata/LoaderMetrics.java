@@ -0,0 +1,250 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The throughput counters for {@link CsvResourceLoader}.  Readers count into a {@link Tally}
+ * of their own, which is added to the shared counters every {@link #FLUSH_ROWS} rows and when
+ * the table is finished, so that threads do not contend on the counters for every row.
+ */
+public final class LoaderMetrics implements LoaderMetricsMBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoaderMetrics.class);
+    /** The JMX name of the loader's metrics */
+    public static final String OBJECT_NAME = "com.ainq.fhir.saner:type=CsvResourceLoader";
+    /** Error kinds */
+    public static final String IO = "io", ZIP = "zip", REFLECTION = "reflection", MAPPING = "mapping", INTERRUPTED = "interrupted";
+    /** The number of rows a tally counts before adding them to the shared counters */
+    static final int FLUSH_ROWS = 1024;
+
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsFiltered = new LongAdder();
+    private final LongAdder rowsConverted = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder tokenizeNanos = new LongAdder();
+    private final LongAdder mappingNanos = new LongAdder();
+    private final LongAdder consumerNanos = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Register these metrics with the platform MBean server as {@link #OBJECT_NAME}.  A failure
+     * to register is logged, since metrics are not needed to load data.
+     * @return  These metrics.
+     */
+    LoaderMetrics register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Cannot register {}", OBJECT_NAME, e);
+        }
+        return this;
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    @Override
+    public long getRowsFiltered() {
+        return rowsFiltered.sum();
+    }
+
+    @Override
+    public long getRowsConverted() {
+        return rowsConverted.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getTokenizeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tokenizeNanos.sum());
+    }
+
+    @Override
+    public long getMappingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mappingNanos.sum());
+    }
+
+    @Override
+    public long getConsumerMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(consumerNanos.sum());
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((k, v) -> counts.put(k, v.sum()));
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        rowsRead.reset();
+        rowsFiltered.reset();
+        rowsConverted.reset();
+        bytesRead.reset();
+        tokenizeNanos.reset();
+        mappingNanos.reset();
+        consumerNanos.reset();
+        errors.clear();
+    }
+
+    /**
+     * Count an error.
+     * @param kind  The kind of error, e.g., {@link #IO}.
+     */
+    void error(String kind) {
+        errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param in    A stream to read a table from.
+     * @return  A stream that counts the bytes read from it.
+     */
+    InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                if (c >= 0) {
+                    bytesRead.increment();
+                }
+                return c;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesRead.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Count bytes read other than through {@link #count(InputStream)}.
+     * @param bytes The number of bytes.
+     */
+    void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Record the mapping of rows on a thread that does not have a tally.
+     * @param nanos The time taken.
+     * @param rows  The number of rows mapped.
+     */
+    void mapped(long nanos, int rows) {
+        mappingNanos.add(nanos);
+        rowsConverted.add(rows);
+    }
+
+    /**
+     * @return  A new tally for one reader of one table.
+     */
+    Tally tally() {
+        return new Tally();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("read %d rows (%d filtered, %d converted, %d bytes), tokenize %d ms, mapping %d ms, consumer %d ms, errors %s",
+            getRowsRead(), getRowsFiltered(), getRowsConverted(), getBytesRead(), getTokenizeMillis(), getMappingMillis(),
+            getConsumerMillis(), getErrors());
+    }
+
+    /**
+     * Counts for one reader, used by one thread at a time.  Times are measured by the reader
+     * with System.nanoTime() around each stage.
+     */
+    final class Tally {
+        private long tested, selected, converted, tokenize, mapping, consumer;
+
+        /**
+         * @param filter    The filter a reader applies, or null.
+         * @return  A filter that counts the rows it tests, or null for no filter.
+         */
+        ColumnFilter counting(ColumnFilter filter) {
+            if (filter == null) {
+                return null;
+            }
+            return v -> {
+                tested++;
+                return filter.matches(v);
+            };
+        }
+
+        /**
+         * Record the reading of a row.
+         * @param nanos The time taken to read it.
+         * @param found True if a row was found, false at the end of the table.
+         */
+        void read(long nanos, boolean found) {
+            tokenize += nanos;
+            if (found) {
+                selected++;
+            }
+            if (tested + selected >= FLUSH_ROWS) {
+                flush();
+            }
+        }
+
+        /**
+         * Record the mapping of rows.
+         * @param nanos The time taken.
+         * @param rows  The number of rows mapped.
+         */
+        void mapped(long nanos, int rows) {
+            mapping += nanos;
+            converted += rows;
+        }
+
+        /**
+         * Record time spent in a consumer.
+         * @param nanos The time taken.
+         */
+        void consumed(long nanos) {
+            consumer += nanos;
+        }
+
+        /**
+         * Add the counts to the shared counters, and clear them.
+         */
+        void flush() {
+            // With a filter, every row read is tested; without one, every row read is selected.
+            long read = Math.max(tested, selected);
+            rowsRead.add(read);
+            rowsFiltered.add(read - selected);
+            rowsConverted.add(converted);
+            tokenizeNanos.add(tokenize);
+            mappingNanos.add(mapping);
+            consumerNanos.add(consumer);
+            tested = selected = converted = tokenize = mapping = consumer = 0;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.util.Map;
+
+/**
+ * Throughput counters for {@link CsvResourceLoader}, totalled over every table read since the
+ * counters were last reset.  The counters are available from {@link CsvResourceLoader#getMetrics()},
+ * and through JMX as {@value LoaderMetrics#OBJECT_NAME}.  Times are the sum over all threads,
+ * so may exceed the elapsed time when rows are converted on several threads.
+ */
+public interface LoaderMetricsMBean {
+    /**
+     * @return The number of rows read from tables, including rows rejected by a filter.
+     */
+    long getRowsRead();
+
+    /**
+     * @return The number of rows rejected by a filter.
+     */
+    long getRowsFiltered();
+
+    /**
+     * @return The number of rows converted to resources.
+     */
+    long getRowsConverted();
+
+    /**
+     * @return The number of bytes read from CSV files, plus the size of the columnar tables read
+     *         in their place, which are memory mapped rather than read.
+     */
+    long getBytesRead();
+
+    /**
+     * @return The time spent reading, splitting and filtering rows, in milliseconds.
+     */
+    long getTokenizeMillis();
+
+    /**
+     * @return The time spent mapping rows to resources or JSON, in milliseconds.
+     */
+    long getMappingMillis();
+
+    /**
+     * @return The time spent in the consumers of resources, in milliseconds.
+     */
+    long getConsumerMillis();
+
+    /**
+     * @return The number of errors of each kind, e.g., io, zip, reflection, or mapping.
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * Set all of the counters to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,599 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+
+/**
+ * A field mapping (one of the *_MAP arrays in CsvResourceLoader) compiled for the
+ * columns of a CSV table.  Column names are resolved to indexes, functions to
+ * {@link Function} values, and FHIR paths to a list of steps, once when the plan is
+ * created rather than for every row.  A plan may be used from several threads at once.
+ */
+final class MappingPlan {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappingPlan.class);
+
+    /** The functions that can be used in a field mapping */
+    enum Function {
+        MAP_RACE("mapRace"), MAP_GENDER("mapGender"), MAP_ETHNICITY("mapEthnicity"), MAP_MARITAL("mapMarital"),
+        MAP_FIRST("mapFirst"), MAP_LAST("mapLast"), MAP_PATIENT("mapPatient"), MAP_ENCOUNTER("mapEncounter"),
+        MAP_PROVIDER("mapProvider"), GEN_ID("genId"), MAP_STRING("mapString"), MAP_VALUE("mapValue"),
+        MAP_ENC_CLASS("mapEncClass");
+
+        private static final Map<String, Function> BY_NAME = new HashMap<>();
+        static {
+            for (Function f: values()) {
+                BY_NAME.put(f.functionName, f);
+            }
+        }
+        private final String functionName;
+
+        Function(String functionName) {
+            this.functionName = functionName;
+        }
+
+        /**
+         * @param name  The name of the function used in a field mapping.
+         * @return  The function, or null if there is no such function.
+         */
+        static Function of(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+
+    /** The kinds of value a field can be set from */
+    private enum Source { CONSTANT, COLUMN, FUNCTION }
+
+    private final Assignment assignments[];
+    private final String table;
+    private final IdGenerator ids;
+
+    /**
+     * Compile a field mapping for a table.
+     * @param fieldMapping  Pairs of FHIR paths and the values to set them to.
+     * @param fieldNames    The names of the columns in the table.
+     * @param table The name of the table, which genId() uses with the row number to create ids.
+     * @param ids   The generator for genId().
+     */
+    MappingPlan(String fieldMapping[], String fieldNames[], String table, IdGenerator ids) {
+        this.table = table;
+        this.ids = ids;
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < fieldNames.length; i++) {
+            indexes.put(fieldNames[i], i);
+        }
+        assignments = new Assignment[fieldMapping.length / 2];
+        for (int i = 0; i < fieldMapping.length; i += 2) {
+            assignments[i / 2] = new Assignment(fieldMapping[i], fieldMapping[i + 1], indexes);
+        }
+    }
+
+    /**
+     * Populate a resource from a row of the table.
+     * @param <T>   The type of resource to update.
+     * @param resource  The resource to be updated.
+     * @param row   The values in the row.
+     * @return  The modified resource.
+     */
+    <T extends Resource> T apply(T resource, RowCursor row) {
+        for (Assignment a: assignments) {
+            a.apply(resource, row);
+        }
+        return resource;
+    }
+
+    /**
+     * @return  The number of assignments in this plan.
+     */
+    int size() {
+        return assignments.length;
+    }
+
+    /**
+     * Compute the value of an assignment for a row.
+     * @param i     The index of the assignment.
+     * @param row   The values in the row.
+     * @return  The value to set, or null if the field is left unset for this row.
+     */
+    String getValue(int i, RowCursor row) {
+        Assignment a = assignments[i];
+        try {
+            return a.value(row);
+        } catch (RuntimeException ex) {
+            a.failed(null, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Set the field of an assignment in a resource.
+     * @param i     The index of the assignment.
+     * @param resource  The resource to update.
+     * @param value The value to set.
+     */
+    void set(int i, Resource resource, String value) {
+        Assignment a = assignments[i];
+        PrimitiveType<?> t = null;
+        try {
+            t = a.path.resolve(resource);
+            t.setValueAsString(value);
+        } catch (RuntimeException ex) {
+            a.failed(t, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Report a failure to set the field of an assignment.
+     * @param i     The index of the assignment.
+     * @param t     The primitive that could not be set.
+     * @param ex    The failure.
+     */
+    void failed(int i, PrimitiveType<?> t, Exception ex) {
+        assignments[i].failed(t, ex);
+    }
+
+    /**
+     * Find the elements along the path of an assignment, creating them as needed, without
+     * reporting an error if the path cannot be followed.
+     * @param i     The index of the assignment.
+     * @param resource  The resource to follow the path in.
+     * @return  The element for each step of the path, or null if the path cannot be followed.
+     */
+    Element[] trace(int i, Resource resource) {
+        return assignments[i].path.trace(resource);
+    }
+
+    /**
+     * @param i     The index of the assignment.
+     * @return  The steps in the path of the assignment, e.g., name, given, or extension('url').
+     */
+    String[] getSteps(int i) {
+        Step steps[] = assignments[i].path.steps;
+        String parts[] = new String[steps.length];
+        for (int j = 0; j < steps.length; j++) {
+            parts[j] = steps[j].part;
+        }
+        return parts;
+    }
+
+    /** Sets one FHIR path from a constant, a column, or a function of either */
+    private final class Assignment {
+        private final String key, mapping;
+        private final Path path;
+        private final Source source;
+        /** The constant value, the missing column name, the function argument, or the unknown function name */
+        private final String text;
+        /** The column for the value or the function argument, or -1 */
+        private final int column;
+        private final Function function;
+        private final int typeColumn;
+
+        private Assignment(String key, String value, Map<String, Integer> indexes) {
+            this.key = key;
+            this.mapping = value;
+            this.path = new Path(key);
+            this.typeColumn = indexes.getOrDefault("TYPE", -1);
+            if (value.startsWith("%")) {
+                source = Source.COLUMN;
+                text = value.substring(1);
+                column = indexes.getOrDefault(text, -1);
+                function = null;
+            } else if (!StringUtils.isBlank(value) && value.contains("(")) {
+                source = Source.FUNCTION;
+                String name = StringUtils.substringBefore(value, "(");
+                String arg = value.substring(name.length() + 1, value.length() - 1);
+                function = Function.of(name);
+                if (arg.startsWith("%")) {
+                    column = indexes.getOrDefault(arg.substring(1), -1);
+                    text = function == null ? name : null;
+                } else {
+                    column = -1;
+                    text = function == null ? name : arg;
+                }
+            } else {
+                source = Source.CONSTANT;
+                text = value;
+                column = -1;
+                function = null;
+            }
+        }
+
+        private void apply(Resource resource, RowCursor row) {
+            PrimitiveType<?> t = null;
+            try {
+                if (source == Source.COLUMN && column >= 0) {
+                    long seconds = row.getEpochSecond(column);
+                    int day = seconds == RowCursor.NO_SECOND ? row.getEpochDay(column) : RowCursor.NO_DAY;
+                    if (seconds != RowCursor.NO_SECOND || day != RowCursor.NO_DAY) {
+                        t = path.resolve(resource);
+                        setTemporal(t, seconds, day, row);
+                        return;
+                    }
+                }
+                String value = value(row);
+                if (value != null) {
+                    t = path.resolve(resource);
+                    t.setValueAsString(value);
+                }
+            } catch (Exception ex) {
+                failed(t, ex);
+                throw ex;
+            }
+        }
+
+        /**
+         * Set a date or timestamp stored by the row source, without formatting it as a string
+         * for the primitive to parse again.
+         */
+        private void setTemporal(PrimitiveType<?> t, long seconds, int day, RowCursor row) {
+            if (!(t instanceof BaseDateTimeType)) {
+                t.setValueAsString(row.get(column));
+            } else if (seconds != RowCursor.NO_SECOND) {
+                BaseDateTimeType d = (BaseDateTimeType) t;
+                d.setValue(new Date(seconds * 1000), TemporalPrecisionEnum.SECOND);
+                d.setTimeZoneZulu(true);
+            } else {
+                Date date = Date.from(LocalDate.ofEpochDay(day).atStartOfDay(ZoneId.systemDefault()).toInstant());
+                ((BaseDateTimeType) t).setValue(date, TemporalPrecisionEnum.DAY);
+            }
+        }
+
+        /**
+         * @param row   The values in the row.
+         * @return  The value for this assignment, or null if it is blank.
+         */
+        private String value(RowCursor row) {
+            String value;
+            switch (source) {
+            case COLUMN:
+                if (column < 0) {
+                    throw new RuntimeException("Unknown field " + text);
+                }
+                if (StringUtils.isBlank(row.getChars(column))) {
+                    return null;
+                }
+                return row.get(column);
+            case FUNCTION:
+                if (function == null) {
+                    throw new RuntimeException("Unknown function " + text);
+                }
+                value = mapCode(function, column >= 0 ? row.get(column) : text, typeColumn >= 0 ? row.get(typeColumn) : null, row);
+                break;
+            default:
+                value = text;
+            }
+            return StringUtils.isBlank(value) ? null : value;
+        }
+
+        private void failed(PrimitiveType<?> t, Exception ex) {
+            LOGGER.error("Cannot set {}({}) to {}", key, t == null ? "unknown" : t.getClass().getSimpleName(), mapping, ex);
+        }
+    }
+
+    private String mapCode(Function function, String value, String type, RowCursor row) {
+        switch (function) {
+        case MAP_RACE:
+            return mapRace(value);
+        case MAP_GENDER:
+            return mapGender(value);
+        case MAP_ETHNICITY:
+            return mapEthnicity(value);
+        case MAP_MARITAL:
+            return StringUtils.isBlank(value) ? "" :
+                "http://terminology.hl7.org/CodeSystem/v3-MaritalStatus";
+        case MAP_FIRST:
+            return StringUtils.substringBefore(value, " ");
+        case MAP_LAST:
+            return StringUtils.substringAfterLast(value, " ");
+        case MAP_PATIENT:
+            return "Patient/" + value;
+        case MAP_ENCOUNTER:
+            return "Encounter/" + value;
+        case MAP_PROVIDER:
+            return "Practitioner/" + value;
+        case GEN_ID:
+            return ids.newId(table, row.getRowNumber());
+        case MAP_STRING:
+            if ("text".equals(type)) {
+                return value;
+            }
+            return null;
+        case MAP_VALUE:
+            if (!"text".equals(type)) {
+                return value;
+            }
+            return null;
+        case MAP_ENC_CLASS:
+            return mapEncClass(value);
+        default:
+            throw new RuntimeException("Unknown function " + function);
+        }
+    }
+
+    static String mapEthnicity(String value) {
+        switch (value) {
+        case "hispanic":    return "2135-2";
+        case "nonhispanic": return "2186-5";
+        }
+        return null;
+    }
+
+    static String mapGender(String value) {
+        switch (value) {
+        case "M": case "m":
+        case "male":    return "male";
+        case "F": case "f":
+        case "female": return "female";
+        }
+        return null;
+    }
+
+    static String mapRace(String value) {
+        switch (value) {
+        case "native":  return "1002-5";
+        case "asian":   return "2028-9";
+        case "black":   return "2054-5";
+        case "other":   return "2076-8";
+        case "white":   return "2106-3";
+        }
+        return null;
+    }
+
+    private static String mapEncClass(String value) {
+        switch (value) {
+        case "ambulatory":  return "AMB";
+        case "inpatient":   return "IMP";
+        case "outpatient":  return "AMB";
+        case "emergency":   return "EMER";
+        case "urgentcare":  return "AMB";
+        case "homehealth":  return "AMB";
+        case "wellness":    return "AMB";
+        }
+        return null;
+    }
+
+    /** A FHIR path to a primitive, split into steps */
+    private static final class Path {
+        private final Step steps[];
+
+        /**
+         * @param field The name of field in the resource, with subfields separated by .
+         */
+        private Path(String field) {
+            String parts[] = field.split("\\.");
+            List<Step> newParts = new ArrayList<>();
+            for (int i = 0; i < parts.length; i++) {
+                if (parts[i].contains("(")) {
+                    String value = "";
+                    for (; i < parts.length; i++) {
+                        if (value.length() != 0) {
+                            value += ".";
+                        }
+                        value += parts[i];
+                        if (parts[i].endsWith(")")) {
+                            break;
+                        }
+                    }
+                    newParts.add(new Step(value));
+                } else {
+                    newParts.add(new Step(parts[i]));
+                }
+            }
+            steps = newParts.toArray(new Step[newParts.size()]);
+        }
+
+        /**
+         * Return the primitive type pointed to by this path in the resource,
+         * creating the elements along the path as needed.
+         *
+         * @param resource  The resource to extract data from.
+         * @return  The primitive type referenced by the path
+         */
+        private PrimitiveType<?> resolve(Resource resource) {
+            Base b = resource;
+            Element elem = null;
+            for (int i = 0; i < steps.length; i++) {
+                elem = steps[i].get(b);
+                if (elem == null) {
+                    String msg = String.format("Cannot find %s%s in %s", found(i), steps[i].part, resource.fhirType());
+                    LOGGER.error(msg);
+                    throw new RuntimeException(msg);
+                }
+                b = elem;
+            }
+            if (!(elem instanceof PrimitiveType)) {
+                String msg = String.format("%s.%s is not a primitive type (%s)", resource.fhirType(), found(steps.length), elem.fhirType());
+                LOGGER.error(msg);
+                throw new RuntimeException(msg);
+            }
+            return (PrimitiveType<?>) elem;
+        }
+
+        /**
+         * Follow this path in the resource, creating the elements along the path as needed.
+         * @param resource  The resource to follow the path in.
+         * @return  The element for each step, or null if a step cannot be found.
+         */
+        private Element[] trace(Resource resource) {
+            Element trail[] = new Element[steps.length];
+            Base b = resource;
+            for (int i = 0; i < steps.length; i++) {
+                if ((trail[i] = steps[i].get(b)) == null) {
+                    return null;
+                }
+                b = trail[i];
+            }
+            return trail;
+        }
+
+        private String found(int count) {
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                b.append(steps[i].part).append('.');
+            }
+            return b.toString();
+        }
+    }
+
+    /**
+     * One step in a path: a named property, or an extension with a given url.  The
+     * type of a property is looked up by name once for each class it is used with, and
+     * its values are then read by hash where the model supports that.
+     */
+    private static final class Step {
+        private final String part;
+        private final int hash;
+        private final String url;
+        /** The type information for the last class this step was used with */
+        private volatile Resolved resolved;
+
+        private static final class Resolved {
+            private final Class<?> owner;
+            private final String typeCode;
+            /** True if values can be read by hash for this property */
+            private final boolean byHash;
+
+            private Resolved(Class<?> owner, String typeCode, boolean byHash) {
+                this.owner = owner;
+                this.typeCode = typeCode;
+                this.byHash = byHash;
+            }
+        }
+
+        private Step(String part) {
+            this.part = part;
+            this.hash = part.hashCode();
+            this.url = part.startsWith("extension('") ? part.substring(11, part.length() - 2) : null;
+        }
+
+        /**
+         * Get the element referenced by this step, creating it if it does not exist.
+         * @param b     The Resource or FHIR type to access data from
+         * @return  A FHIR data type representing the named field, or null if it cannot be found.
+         */
+        private Element get(Base b) {
+            if (url != null) {
+                Extension ex = null;
+                if (b instanceof DomainResource) {
+                    ex = ((DomainResource) b).getExtensionByUrl(url);
+                } else {
+                    ex = ((Element) b).getExtensionByUrl(url);
+                }
+                if (ex == null) {
+                    ex = (Extension) ((IBaseHasExtensions) b).addExtension().setUrl(url);
+                }
+                return ex;
+            }
+            Resolved r = resolved;
+            if (r == null || r.owner != b.getClass()) {
+                Property p = b.getNamedProperty(part);
+                if (p == null) {
+                    /*
+                     * At this stage, we might be looking at something like Observation.valueQuantity.
+                     * But getNamedProperty won't return it, b/c we did something like create valueString
+                     * already.
+                     */
+                    return null;
+                }
+                resolved = r = new Resolved(b.getClass(), p.getTypeCode(), b.getProperty(hash, part, false) != null);
+            }
+            if (r.byHash) {
+                Base values[] = b.getProperty(hash, part, false);
+                if (values.length != 0) {
+                    return (Element) values[values.length - 1];
+                }
+            } else {
+                Property p = b.getNamedProperty(part);
+                if (p == null) {
+                    return null;
+                }
+                if (p.hasValues()) {
+                    List<Base> values = p.getValues();
+                    return (Element) values.get(values.size() - 1);
+                }
+            }
+            return create(b, r);
+        }
+
+        private Element create(Base b, Resolved r) {
+            String typeCode = r.typeCode;
+            if (typeCode.length() > 0 && Character.isLowerCase(typeCode.charAt(0))) {
+                switch (typeCode) {
+                case "date":
+                    b.setProperty(part, new DateType());
+                    break;
+                case "dateTime":
+                    b.setProperty(part, new DateTimeType());
+                    break;
+                case "instant":
+                    b.setProperty(part, new InstantType());
+                    break;
+                case "id":
+                    return ((Resource)b).getIdElement();
+                case "uri":
+                    b.setProperty(part, new UriType(""));
+                    break;
+                case "string": case "code":
+                    b.setProperty(part, new StringType(""));
+                    break;
+                default:
+                    if (isComposite(typeCode, part)) {
+                        return (Element) b.addChild(part);
+                    } else if (typeCode.contains("dateTime")) {
+                        b.setProperty(part, new DateTimeType());
+                    } else if (typeCode.contains("date")) {
+                        b.setProperty(part, new DateType());
+                    } else {
+                        b.setProperty(part, new IntegerType(0));
+                    }
+                }
+                return r.byHash ? (Element) b.getProperty(hash, part, false)[0] :
+                    (Element) b.getNamedProperty(part).getValues().get(0);
+            } else {
+                return (Element) b.addChild(part);
+            }
+        }
+
+        /**
+         * Return true if the field being looked for is a composite.
+         *
+         * @param typeCode  The typeCode values available for this element.
+         * @param part  The specific field being looked for.
+         * @return True if the type being sought is a composite.
+         */
+        private static boolean isComposite(String typeCode, String part) {
+            for (String type: typeCode.split("\\|")) {
+                if (part.endsWith(type.trim())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+
+/**
+ * Writes rows of a table as FHIR JSON without building HAPI resources.  The field mapping is
+ * compiled once into a tree of JSON properties, using the HAPI model to find the name, order and
+ * cardinality of each element along each path.  Each row then only fills in the leaves of the tree
+ * and writes the populated part of it, in the same form that IParser.encodeResourceToString()
+ * produces for the resource CsvResourceLoader would have created.
+ *
+ * Strings, codes and URIs are copied to the output as they are.  Other primitives (dates, numbers,
+ * booleans, and enumerated codes) are parsed and formatted by the HAPI type for the element, so that
+ * values are validated and formatted as they would be in a resource.  An emitter may be used from
+ * several threads at once.
+ */
+public final class NdjsonEmitter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NdjsonEmitter.class);
+    private static final FhirContext CONTEXT = FhirContext.forR4();
+
+    /** How the value of a leaf is written */
+    private enum Kind {
+        /** Written as a JSON string, as given */
+        TEXT,
+        /** Written as a JSON string, as formatted by the HAPI type */
+        FORMATTED,
+        /** Written as a JSON number or boolean, as formatted by the HAPI type */
+        NUMBER,
+        /** Written as a JSON string after shifting, as formatted by the HAPI type */
+        DATE,
+        /** The id of the resource */
+        ID
+    }
+
+    private final Class<? extends Resource> type;
+    private final String resourceType;
+    private final MappingPlan plan;
+    private final Node root;
+    /** The leaf for each assignment in the plan, or null if its path cannot be followed */
+    private final Node leaves[];
+    private final int nodeCount;
+
+    /**
+     * Compile a field mapping for a table.
+     * @param type  The type of resource to write.
+     * @param fieldMapping  Pairs of FHIR paths and the values to set them to, e.g., {@link CsvResourceLoader#PATIENT_MAP}.
+     * @param fieldNames    The names of the columns in the table.
+     * @param table The name of the table, for ids created by genId() (see {@link CsvResourceLoader#getIdGenerator()}).
+     */
+    public NdjsonEmitter(Class<? extends Resource> type, String fieldMapping[], String fieldNames[], String table) {
+        this.type = type;
+        this.plan = new MappingPlan(fieldMapping, fieldNames, table, CsvResourceLoader.getIdGenerator());
+        BaseRuntimeElementCompositeDefinition<?> def = CONTEXT.getResourceDefinition(type);
+        this.resourceType = def.getName();
+        this.root = new Node(null, null, null, def, -1, false);
+        this.leaves = new Node[plan.size()];
+        int count = 1;
+        for (int i = 0; i < leaves.length; i++) {
+            // Follow each path in a new resource, so that the elements are created as they would be when set alone.
+            Element trail[] = plan.trace(i, newResource());
+            if (trail == null || !(trail[trail.length - 1] instanceof PrimitiveType)) {
+                // Reported by MappingPlan.set() if a row has a value for this field
+                continue;
+            }
+            String steps[] = plan.getSteps(i);
+            Node n = root;
+            for (int j = 0; j < trail.length; j++) {
+                Node child = n.getChild(steps[j], trail[j]);
+                if (child.id < 0) {
+                    child.id = count++;
+                }
+                n = child;
+            }
+            n.setLeaf((PrimitiveType<?>) trail[trail.length - 1], trail.length == 1);
+            leaves[i] = n;
+        }
+        this.nodeCount = count;
+    }
+
+    /**
+     * Write a row as a line of NDJSON.
+     * @param row   The values in the row.
+     * @param dateOffset    The number of days to shift dates by, as CaseSimulator does for the resources it writes.
+     * @param out   The place to write the resource and the line ending to.
+     */
+    public void write(RowCursor row, int dateOffset, StringBuilder out) {
+        String text[] = new String[nodeCount];
+        int stamp[] = new int[nodeCount];
+        Calendar cal = null;
+        for (int i = 0; i < leaves.length; i++) {
+            String value = plan.getValue(i, row);
+            if (value == null) {
+                continue;
+            }
+            Node leaf = leaves[i];
+            if (leaf == null) {
+                plan.set(i, newResource(), value);
+                // set() cannot succeed where the path could not be followed, but just in case.
+                throw new IllegalStateException("Cannot find path for field " + i + " in " + resourceType);
+            }
+            activate(i, leaf, stamp);
+            if (leaf.kind == Kind.DATE && cal == null) {
+                cal = Calendar.getInstance();
+            }
+            text[leaf.id] = format(i, leaf, value, cal, dateOffset);
+        }
+        out.append("{\"resourceType\":\"").append(resourceType).append('"');
+        writeChildren(root, text, stamp, out, true);
+        out.append("}\n");
+    }
+
+    /**
+     * Write the resources for the rows of a table as NDJSON.
+     * @param type  The type of resource to write.
+     * @param theUrl    A URL pointing to the source of CSV data.
+     * @param fieldMapping  A mapping of FHIR fields to values.
+     * @param out   Where to write the resources.
+     * @param field The column to select rows by, or null for all rows.
+     * @param test  The test for the value of field.
+     * @param dateOffset    The number of days to shift dates by.
+     * @return  The number of resources written.
+     * @throws IOException  If the table cannot be read, or the output written.
+     */
+    public static int write(Class<? extends Resource> type, String theUrl, String fieldMapping[], Writer out,
+        String field, Predicate<String> test, int dateOffset) throws IOException {
+        int count = 0;
+        try (RowSource r = CsvResourceLoader.openRows(theUrl)) {
+            String fieldNames[] = r.getHeader();
+            NdjsonEmitter emitter = new NdjsonEmitter(type, fieldMapping, fieldNames, CsvResourceLoader.getTableName(theUrl));
+            int fieldIndex = field == null ? -1 : ArrayUtils.lastIndexOf(fieldNames, field);
+            LoaderMetrics.Tally tally = CsvResourceLoader.metrics().tally();
+            ColumnFilter filter = tally.counting(field == null ? null : ColumnFilter.of(test));
+            StringBuilder b = new StringBuilder();
+            try {
+                while (true) {
+                    long start = System.nanoTime();
+                    RowCursor row = r.advance(fieldIndex, filter);
+                    long read = System.nanoTime();
+                    tally.read(read - start, row != null);
+                    if (row == null) {
+                        break;
+                    }
+                    b.setLength(0);
+                    emitter.write(row, dateOffset, b);
+                    long mapped = System.nanoTime();
+                    tally.mapped(mapped - read, 1);
+                    out.append(b);
+                    tally.consumed(System.nanoTime() - mapped);
+                    count++;
+                }
+            } catch (RuntimeException e) {
+                CsvResourceLoader.metrics().error(LoaderMetrics.MAPPING);
+                throw e;
+            } finally {
+                tally.flush();
+            }
+        } catch (IOException e) {
+            CsvResourceLoader.metrics().error(LoaderMetrics.IO);
+            LOGGER.error("IO error converting {}", theUrl, e);
+            throw e;
+        }
+        return count;
+    }
+
+    private Resource newResource() {
+        try {
+            return type.getConstructor().newInstance();
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+            String msg = String.format("Cannot create %s", type.getName());
+            LOGGER.error(msg, e);
+            throw new RuntimeException(msg, e);
+        }
+    }
+
+    /**
+     * Mark the nodes on the path to a leaf as present in the row, recording the order in which
+     * they appear so that repeated elements are written in the order they would be created.
+     */
+    private void activate(int assignment, Node leaf, int stamp[]) {
+        for (Node n = leaf; n != root && stamp[n.id] == 0; n = n.parent) {
+            if (!n.array) {
+                // Only one of the types of a choice, such as valueString or valueQuantity, can be present.
+                for (Node sibling: n.parent.children) {
+                    if (sibling != n && sibling.order == n.order && stamp[sibling.id] != 0) {
+                        RuntimeException ex = new RuntimeException(String.format("Cannot set %s in %s, %s is already present",
+                            n.name, resourceType, sibling.name));
+                        plan.failed(assignment, null, ex);
+                        throw ex;
+                    }
+                }
+            }
+            stamp[n.id] = assignment + 1;
+        }
+    }
+
+    private String format(int assignment, Node leaf, String value, Calendar cal, int dateOffset) {
+        PrimitiveType<?> t = null;
+        try {
+            switch (leaf.kind) {
+            case TEXT:
+                return quote(value);
+            case ID:
+                return quote(new IdType(value).getIdPart());
+            case DATE:
+                t = (PrimitiveType<?>) leaf.prototype.copy();
+                t.setValueAsString(value);
+                Dates.shift(cal, (BaseDateTimeType) t, dateOffset);
+                return quote(t.getValueAsString());
+            case NUMBER:
+                t = (PrimitiveType<?>) leaf.prototype.copy();
+                t.setValueAsString(value);
+                return t.getValueAsString();
+            default:
+                t = (PrimitiveType<?>) leaf.prototype.copy();
+                t.setValueAsString(value);
+                return quote(t.getValueAsString());
+            }
+        } catch (RuntimeException ex) {
+            plan.failed(assignment, t, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Write the children of a node that are present in the row.
+     * @return  true if anything has been written to the enclosing object.
+     */
+    private static boolean writeChildren(Node node, String text[], int stamp[], StringBuilder out, boolean written) {
+        if (node.url != null) {
+            out.append("\"url\":").append(quote(node.url));
+            written = true;
+        }
+        List<Node> children = node.children;
+        Node present[] = new Node[children.size()];
+        for (int i = 0; i < children.size(); ) {
+            // Children for the same element definition, such as several extensions, are written together.
+            int order = children.get(i).order, count = 0;
+            for (; i < children.size() && children.get(i).order == order; i++) {
+                Node c = children.get(i);
+                if (stamp[c.id] != 0) {
+                    int j = count++;
+                    for (; j > 0 && stamp[present[j - 1].id] > stamp[c.id]; j--) {
+                        present[j] = present[j - 1];
+                    }
+                    present[j] = c;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            if (written) {
+                out.append(',');
+            }
+            written = true;
+            out.append('"').append(present[0].name).append("\":");
+            if (present[0].array) {
+                out.append('[');
+            }
+            for (int j = 0; j < count; j++) {
+                if (j != 0) {
+                    out.append(',');
+                }
+                Node c = present[j];
+                if (c.kind != null) {
+                    out.append(text[c.id]);
+                } else {
+                    out.append('{');
+                    writeChildren(c, text, stamp, out, false);
+                    out.append('}');
+                }
+            }
+            if (present[0].array) {
+                out.append(']');
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Quote a string as the HAPI JSON parser does.
+     * @param value The value to quote.
+     * @return  The value as a JSON string.
+     */
+    static String quote(String value) {
+        StringBuilder b = null;
+        int last = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+            case '"':   replacement = "\\\""; break;
+            case '\\':  replacement = "\\\\"; break;
+            case '\t':  replacement = "\\t"; break;
+            case '\b':  replacement = "\\b"; break;
+            case '\n':  replacement = "\\n"; break;
+            case '\r':  replacement = "\\r"; break;
+            case '\f':  replacement = "\\f"; break;
+            case '\u2028':  replacement = "\\u2028"; break;
+            case '\u2029':  replacement = "\\u2029"; break;
+            default:
+                if (c >= ' ') {
+                    continue;
+                }
+                replacement = String.format("\\u%04x", (int) c);
+            }
+            if (b == null) {
+                b = new StringBuilder(value.length() + 16).append('"');
+            }
+            b.append(value, last, i).append(replacement);
+            last = i + 1;
+        }
+        if (b == null) {
+            return "\"" + value + "\"";
+        }
+        return b.append(value, last, value.length()).append('"').toString();
+    }
+
+    /** A JSON property for an element along one or more of the paths in the mapping */
+    private static final class Node {
+        private final Node parent;
+        /** The JSON name of the element, e.g., valueQuantity for value[x] */
+        private final String name;
+        /** The url of an extension, or null */
+        private final String url;
+        private final BaseRuntimeElementDefinition<?> def;
+        /** The position of the element's definition in its parent, which orders the output */
+        private final int order;
+        private final boolean array;
+        private final List<Node> children = new ArrayList<>();
+        private final Map<String, Node> byStep = new HashMap<>();
+        private int id = -1;
+        /** For leaves, how the value is written, otherwise null */
+        private Kind kind;
+        private PrimitiveType<?> prototype;
+
+        private Node(Node parent, String name, String url, BaseRuntimeElementDefinition<?> def, int order, boolean array) {
+            this.parent = parent;
+            this.name = name;
+            this.url = url;
+            this.def = def;
+            this.order = order;
+            this.array = array;
+        }
+
+        /**
+         * Get the child for a step of a path, adding it if needed.
+         * @param step  The step, e.g., name, deceased[x], or extension('url').
+         * @param elem  The element the step resolved to.
+         * @return  The child node.
+         */
+        private Node getChild(String step, Element elem) {
+            Node child = byStep.get(step);
+            if (child != null) {
+                return child;
+            }
+            String url = step.startsWith("extension('") ? step.substring(11, step.length() - 2) : null;
+            BaseRuntimeElementCompositeDefinition<?> composite = (BaseRuntimeElementCompositeDefinition<?>) def;
+            BaseRuntimeChildDefinition childDef = composite.getChildByName(url == null ? step : "extension");
+            if (childDef == null) {
+                String msg = String.format("Cannot find definition for %s in %s", step, def.getName());
+                LOGGER.error(msg);
+                throw new RuntimeException(msg);
+            }
+            String name = childDef instanceof RuntimeChildChoiceDefinition ?
+                ((RuntimeChildChoiceDefinition) childDef).getChildNameByDatatype(elem.getClass()) : childDef.getElementName();
+            child = new Node(this, name, url, childDef.getChildByName(name), composite.getChildren().indexOf(childDef),
+                childDef.getMax() != 1);
+            byStep.put(step, child);
+            int i = children.size();
+            while (i > 0 && children.get(i - 1).order > child.order) {
+                i--;
+            }
+            children.add(i, child);
+            return child;
+        }
+
+        private void setLeaf(PrimitiveType<?> leaf, boolean top) {
+            prototype = (PrimitiveType<?>) leaf.copy();
+            if (top && leaf instanceof IdType) {
+                kind = Kind.ID;
+            } else if (leaf instanceof BaseDateTimeType) {
+                kind = Kind.DATE;
+            } else if (leaf instanceof DecimalType || leaf instanceof IntegerType || leaf instanceof BooleanType) {
+                kind = Kind.NUMBER;
+            } else if (leaf instanceof StringType || (leaf instanceof UriType && !(leaf instanceof IdType))) {
+                kind = Kind.TEXT;
+            } else {
+                kind = Kind.FORMATTED;
+            }
+        }
+    }
+}
@@ -1,72 +1,234 @@
 package com.ainq.fhir.saner.sampledata;
 
-import java.time.ZoneId;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Coding;
-import org.hl7.fhir.r4.model.DateType;
-import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ainq.fhir.saner.simulator.CaseSimulator;
-
 public class PatientGenerator implements Generator<Patient> {
     private static final Logger LOGGER = LoggerFactory.getLogger(PatientGenerator.class);
     public final static String DATA_URL = "jar:https://storage.googleapis.com/synthea-public/100k_synthea_covid19_csv.zip!/100k_synthea_covid19_csv/";
     public final static String LOCAL_URL = "jar:classpath:synthetic-data.zip!/10k_synthea_covid19_csv/";
+    /** Indexes of the fields patients are selected by */
+    private static final int AGE = 0, GENDER = 1, RACE = 2, ETHNICITY = 3;
+    /** The order in which fields are relaxed when no available patient matches a request */
+    private static final int RELAX_ORDER[] = { RACE, ETHNICITY, AGE, GENDER };
+    private static final int NO_CELLS[] = {};
+    /** The number of times a draw may land on a patient already taken before the matching cells are scanned */
+    private static final int MAX_REJECTIONS = 32;
+
+    /**
+     * @return The URL of the folder to read Synthea tables from: the saner.data.url system property if set,
+     * e.g. a file: URL for a folder of tables written by {@link ColumnarTable}, otherwise {@link #DATA_URL}.
+     */
+    public static String getDataUrl() {
+        return System.getProperty("saner.data.url", DATA_URL);
+    }
 
     Integer ageGroupBounds[] = { 5, 10, 15, 20, 25, 30, 35, 40, 45, 50, 55, 60, 65, 70, 75, 80, 85, 110 };
-    List<Set<String>> patientsByAge = new ArrayList<>(ageGroupBounds.length);
-    {
-        for (@SuppressWarnings("unused") int age: ageGroupBounds) {
-            patientsByAge.add(new TreeSet<>());
+    String genders[] = { "male", "female" };
+    String raceOrEthnicity[] = { "2135-2", "2186-5", "1002-5", "2028-9", "2054-5", "2076-8", "2106-3" };
+
+    /** The patients, which are numbered by their position in the store */
+    PatientStore store;
+
+    /*
+     * Patients are sampled from cells, one for each combination of age group, gender, race and
+     * ethnicity, so that each patient is in exactly one cell.  A request is served from the union
+     * of the cells that match it.  These are shared by copies of the generator.
+     */
+    /** The number of patients in each age group, gender, and race or ethnicity */
+    int patientsByAge[] = new int[ageGroupBounds.length];
+    int patientsByGender[] = new int[genders.length];
+    int patientsByRaceOrEthnicity[] = new int[raceOrEthnicity.length];
+    /** The cell of each patient, and the cells that have patients */
+    int cellOf[] = NO_CELLS, occupied[] = NO_CELLS;
+    /** The patients in each cell */
+    int cells[][] = {};
+    /** The cells matching each request, by {@link #key(int[])} */
+    Map<Integer, Matches> matching = new ConcurrentHashMap<>();
+
+    /** The patients available from this generator */
+    private final AtomicReference<Pool> pool = new AtomicReference<>(new Pool(0, cells, null, NO_CELLS));
+    private volatile Random random = new Random(SEED);
+
+    /**
+     * The patients available in one epoch.  The patients in each cell are drawn in a random order
+     * chosen for the epoch, and a patient is reserved by atomically incrementing the count of patients
+     * taken from its cell, so no patient is given to two callers in the same epoch, and no lock is needed.
+     * A pool is never refilled: once every patient has been taken, it is replaced by the pool
+     * for the next epoch, while callers still drawing from the old one find it empty and retry.
+     */
+    private static final class Pool {
+        /** The number of rounds of the Feistel network that orders a cell */
+        private static final int ROUNDS = 4;
+        private final int epoch;
+        private final int order[][];
+        /**
+         * The key of the permutation each cell is drawn in, which is chosen at random for each epoch,
+         * or null to draw each cell in order.
+         */
+        private final long keys[];
+        private final AtomicIntegerArray taken;
+
+        private Pool(int epoch, int order[][], long keys[], int taken[]) {
+            this.epoch = epoch;
+            this.order = order;
+            this.keys = keys;
+            this.taken = new AtomicIntegerArray(taken);
         }
-    }
 
-    String genders[] = { "male", "female" };
-    List<Set<String>> patientsByGender = new ArrayList<>(genders.length);
-    {
-        for (@SuppressWarnings("unused") String gender: genders) {
-            patientsByGender.add(new TreeSet<>());
+        private int available(int cell) {
+            return Math.max(0, order[cell].length - taken.get(cell));
+        }
+
+        /**
+         * @return  The patient drawn at the given position in the cell.
+         */
+        private int patient(int cell, int position) {
+            int members[] = order[cell];
+            return members[keys == null ? position : permute(position, members.length, keys[cell])];
+        }
+
+        /**
+         * Map a position to another in a random permutation of size positions, without storing it.
+         * This is a Feistel network over the smallest power of 4 that holds size, which is applied
+         * again until it gives a position less than size.  As that power is less than 4 * size, it is
+         * applied fewer than 4 times on average.
+         *
+         * @param position  The position to map.
+         * @param size  The number of positions.
+         * @param key   The key selecting the permutation.
+         * @return  The mapped position.
+         */
+        private static int permute(int position, int size, long key) {
+            int half = (33 - Integer.numberOfLeadingZeros(size - 1)) / 2, mask = (1 << half) - 1;
+            do {
+                int left = position >>> half, right = position & mask;
+                for (int round = 0; round < ROUNDS; round++) {
+                    int next = left ^ ((int) mix(key + round * 0x9E3779B97F4A7C15L + right) & mask);
+                    left = right;
+                    right = next;
+                }
+                position = (left << half) | right;
+            } while (position >= size);
+            return position;
+        }
+
+        /**
+         * @return  The bits of value mixed by the SplitMix64 finalizer.
+         */
+        private static long mix(long value) {
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            return value ^ (value >>> 31);
         }
     }
 
-    String raceOrEthnicity[] = { "2135-2", "2186-5", "1002-5", "2028-9", "2054-5", "2076-8", "2106-3" };
-    List<Set<String>> patientsByRaceOrEthnicity = new ArrayList<>(raceOrEthnicity.length);
-    {
-        for (@SuppressWarnings("unused") String re: raceOrEthnicity) {
-            patientsByRaceOrEthnicity.add(new TreeSet<>());
+    /**
+     * The cells matching a request, and where each starts in the patients of all of them,
+     * so that a patient can be drawn from them by a binary search.
+     */
+    private static final class Matches {
+        private final int cells[];
+        private final int starts[];
+        private final int total;
+
+        private Matches(int cells[], int sizes[][]) {
+            this.cells = cells;
+            this.starts = new int[cells.length];
+            int total = 0;
+            for (int i = 0; i < cells.length; i++) {
+                starts[i] = total;
+                total += sizes[cells[i]].length;
+            }
+            this.total = total;
         }
+
+        /**
+         * @return  The index in cells of the cell holding the given patient of all of them.
+         */
+        private int indexOf(int n) {
+            int i = Arrays.binarySearch(starts, n);
+            return i < 0 ? -i - 2 : i;
+        }
+    }
+
+    public PatientGenerator() {
+    }
+
+    /**
+     * Create a patient generator which shares the patients and indexes loaded by
+     * another, but selects patients from its own pool.  The source must already
+     * be initialized.  The copy's random values are seeded from the source's, so
+     * copies made one after another select patients in different orders.
+     *
+     * @param source    The generator to share loaded data with.
+     */
+    public PatientGenerator(PatientGenerator source) {
+        this(source, source.random.nextLong());
+    }
+
+    /**
+     * Create a patient generator which shares the patients and indexes loaded by
+     * another, but selects patients from its own pool, using random values from
+     * the given seed.  The source must already be initialized, and is not modified
+     * by the copy.
+     *
+     * @param source    The generator to share loaded data with.
+     * @param seed  The seed for the random values used to select patients.
+     */
+    public PatientGenerator(PatientGenerator source, long seed) {
+        random = new Random(seed);
+        store = source.store;
+        patientsByAge = source.patientsByAge;
+        patientsByGender = source.patientsByGender;
+        patientsByRaceOrEthnicity = source.patientsByRaceOrEthnicity;
+        cellOf = source.cellOf;
+        occupied = source.occupied;
+        cells = source.cells;
+        matching = source.matching;
+        reset();
     }
 
-    Map<String, Patient> patientMap = new TreeMap<>();
-    Set<String> patients = new TreeSet<>();
     @Override
     public Patient generate(Map<String, String> properties) {
-        Set<String> matches = patients;
-        boolean fixGender = false, fixAge = false, fixRace = false, fixEthnicity = false;
-        Set<String> add;
+        return generate(properties, random);
+    }
+
+    /**
+     * Select a patient matching properties, using the given source of random values.  This may
+     * be called concurrently from several threads, and never gives the same patient to two
+     * callers until every patient has been selected.
+     *
+     * @param properties    The properties to match.
+     * @param random    The source of random values.
+     * @return  The selected patient.
+     */
+    public Patient generate(Map<String, String> properties, Random random) {
+        // The stratum wanted for each field, or -1 for any
+        int requested[] = { -1, -1, -1, -1 }, wanted[];
 
         if (properties.containsKey("id")) {
-            String id = properties.get("id");
-            return patientMap.get(id);
+            int ordinal = store == null ? -1 : store.indexOf(properties.get("id"));
+            return ordinal < 0 ? null : store.getPatient(ordinal);
         }
         /**
          * Map the properties into appropriate values for query.
@@ -79,50 +241,50 @@ public class PatientGenerator implements Generator<Patient> {
                 gender = properties.get("gender");
 
         if (gender != null) {
-            add = findMatchingSet("gender", gender, genders, patientsByGender, f -> gender.equals(f));
-            fixGender = add.isEmpty();
-            if (!fixGender) {
-                matches = merge(matches, add);
-            }
+            requested[GENDER] = findStratum(gender, genders, patientsByGender, f -> gender.equals(f));
         }
 
         if (age != null) {
             int ageValue = Integer.parseInt(age);
-            add = findMatchingSet("age", age, ageGroupBounds, patientsByAge, f -> ageValue < f);
-            fixAge = add.isEmpty();
-            if (!fixAge) {
-                matches = merge(matches, add);
-            }
+            requested[AGE] = findStratum(age, ageGroupBounds, patientsByAge, f -> ageValue < f);
         }
 
         if (race1 != null) {
-            add = findMatchingSet("race", race1, raceOrEthnicity, patientsByRaceOrEthnicity, f -> race1.equals(f));
-            fixRace = add.isEmpty();
-            if (!fixRace) {
-                matches = merge(matches, add);
-            }
+            requested[RACE] = findStratum(race1, raceOrEthnicity, patientsByRaceOrEthnicity, f -> race1.equals(f));
         }
 
         // Ignore race2, we'll set it if necessary.
         if (ethnicity != null) {
-            add = findMatchingSet("ethnicity", ethnicity, raceOrEthnicity, patientsByRaceOrEthnicity, f -> ethnicity.equals(f));
-            fixEthnicity = add.isEmpty();
-            if (!fixEthnicity) {
-                matches = merge(matches, add);
-            }
+            requested[ETHNICITY] = findStratum(ethnicity, raceOrEthnicity, patientsByRaceOrEthnicity, f -> ethnicity.equals(f));
         }
 
-        if (matches.isEmpty()) {
-            return null;
-        }
-
-        Patient p = null;
-        for (String id: matches) {
-            p = patientMap.get(id);
-            if (p != null) {
+        int ordinal;
+        for (Pool p = pool.get(); ; p = pool.get()) {
+            wanted = requested.clone();
+            ordinal = draw(p, wanted, random);
+            // If no available patient matches, relax the request a field at a time
+            for (int i = 0; ordinal < 0 && i < RELAX_ORDER.length; i++) {
+                if (wanted[RELAX_ORDER[i]] >= 0) {
+                    wanted[RELAX_ORDER[i]] = -1;
+                    ordinal = draw(p, wanted, random);
+                }
+            }
+            if (ordinal >= 0) {
                 break;
             }
+            // The pool ran out while drawing; use the next one
+            refill(p, random);
+            if (p == pool.get()) {
+                return null;
+            }
         }
+        Patient p = store.getPatient(ordinal);
+
+        // Fields that were relaxed, or have no patients, are set on the patient
+        boolean fixGender = gender != null && wanted[GENDER] < 0,
+                fixAge = age != null && wanted[AGE] < 0,
+                fixRace = race1 != null && wanted[RACE] < 0,
+                fixEthnicity = ethnicity != null && wanted[ETHNICITY] < 0;
 
         // Adjust p if necessary
         if (fixRace) {
@@ -133,7 +295,7 @@ public class PatientGenerator implements Generator<Patient> {
             } else {
                 e = e.getExtensionByUrl("ombCategory");
             }
-            e.setValue(new Coding().setSystem("urn:oid:2.16.840.1.113883.6.238").setCode(race2));
+            e.setValue(new Coding().setSystem("urn:oid:2.16.840.1.113883.6.238").setCode(race1));
 
         }
         if (!StringUtils.isEmpty(race2)) {
@@ -154,215 +316,305 @@ public class PatientGenerator implements Generator<Patient> {
             e.setValue(new Coding().setSystem("urn:oid:2.16.840.1.113883.6.238").setCode(ethnicity));
         }
         if (fixAge) {
-            p.setUserData("age", age);
+            p.setUserData("age", Integer.parseInt(age));
             // This is icky, what do we do?
         }
         if (fixGender) {
             p.setGender(AdministrativeGender.fromCode(gender));
         }
-        // Ensure this patient isn't selected again.
-        patients.remove(p.getIdElement().getIdPart());
-        if (patients.isEmpty()) {
-            // start over again
-            LOGGER.error("Ran out of patients");
-            reset();
-        }
         return p;
     }
 
-    private Set<String> merge(Set<String> matches, Set<String> filter) {
-        Set<String> smaller = matches.size() > filter.size() ? filter : matches,
-                    larger =  matches.size() > filter.size() ? matches : filter;
-
-        smaller = new HashSet<String>(smaller);
-        smaller.retainAll(larger);
-        return smaller;
-    }
-
-    private <T> Set<String> findMatchingSet(String fieldName, String field, T fieldValues[], List<Set<String>> list, Predicate<T> test) {
+    /**
+     * @return  The index of the stratum matching field, or -1 if there is none, or it has no patients.
+     */
+    private <T> int findStratum(String field, T fieldValues[], int counts[], Predicate<T> test) {
         if (!StringUtils.isEmpty(field)) {
             for (int i = 0; i < fieldValues.length; i++) {
                 if (test.test(fieldValues[i])) {
-                    return list.get(i);
+                    return counts[i] == 0 ? -1 : i;
                 }
             }
         }
-        return Collections.emptySet();
+        return -1;
     }
 
-    @Override
-    public void initialize() {
-        readPatients();
-        getCovidEncounterData();
-        index(patientMap.values());
-    }
-
-    private void index(Collection<Patient> patients) {
-        Set<String> match = null;
-        for (Patient p: patients) {
-            int age = (int) p.getUserData("age");
-            for (int i = 0; i < ageGroupBounds.length; i++) {
-                if (age < ageGroupBounds[i]) {
-                    match = patientsByAge.get(i);
-                    match.add(p.getIdElement().getIdPart());
-                    break;
+    /**
+     * Draw an available patient at random from the cells matching a request, and reserve it.
+     * Every available patient that matches is equally likely to be drawn.  When the last
+     * patient in the pool is drawn, the pool is replaced.
+     *
+     * A position is picked at random from all the patients in the matching cells, and the
+     * draw is kept if the position is one not yet taken from its cell, so a cell is chosen
+     * in proportion to the patients available in it.  This takes constant expected time
+     * while a fair share of the matching patients is available; once most of them are taken,
+     * the matching cells are counted instead.
+     *
+     * @param p The pool to draw from.
+     * @param wanted    The stratum wanted for each field, or -1 for any.
+     * @param random    The source of random values.
+     * @return  The number of the patient, or -1 if no available patient matches.
+     */
+    private int draw(Pool p, int wanted[], Random random) {
+        Matches m = matching.computeIfAbsent(key(wanted), k -> match(wanted));
+        if (m.total == 0) {
+            return -1;
+        }
+        for (int tries = 0; tries < MAX_REJECTIONS; tries++) {
+            int n = random.nextInt(m.total), i = m.indexOf(n), c = m.cells[i];
+            if (n - m.starts[i] >= p.taken.get(c)) {
+                int ordinal = take(p, c, random);
+                if (ordinal >= 0) {
+                    return ordinal;
                 }
             }
-            for (int i = 0; i < genders.length; i++) {
-                if (genders[i].equals(p.getGender().toCode())) {
-                    match = patientsByGender.get(i);
-                    match.add(p.getIdElement().getIdPart());
+        }
+        while (true) {
+            int total = 0;
+            for (int c: m.cells) {
+                total += p.available(c);
+            }
+            if (total == 0) {
+                return -1;
+            }
+            int n = random.nextInt(total);
+            for (int c: m.cells) {
+                int count = p.available(c);
+                if (n < count) {
+                    int ordinal = take(p, c, random);
+                    if (ordinal >= 0) {
+                        return ordinal;
+                    }
+                    // Other callers emptied the cell first; draw again
                     break;
                 }
+                n -= count;
             }
+        }
+    }
 
-            int count = 2;
-            for (int i = 0; i < raceOrEthnicity.length; i++) {
-                Coding value1 =
-                    (Coding) p
-                        .getExtensionByUrl("http://hl7.org/fhir/us/core/StructureDefinition/us-core-race")
-                        .getExtensionByUrl("ombCategory").getValue(),
-                       value2 =
-                           (Coding) p
-                           .getExtensionByUrl("http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity")
-                           .getExtensionByUrl("ombCategory").getValue();
-
-                if (raceOrEthnicity[i].equals(value1.getCode()) || raceOrEthnicity[i].equals(value2.getCode())) {
-                    match = this.patientsByRaceOrEthnicity.get(i);
-                    match.add(p.getIdElement().getIdPart());
-                    if (--count == 0) {
-                        break;
-                    }
-                }
+    /**
+     * Reserve the next patient in a cell.
+     * @return  The number of the patient, or -1 if other callers have taken every patient in the cell.
+     */
+    private int take(Pool p, int cell, Random random) {
+        int position = p.taken.getAndIncrement(cell);
+        if (position >= p.order[cell].length) {
+            return -1;
+        }
+        if (position == p.order[cell].length - 1) {
+            refill(p, random);
+        }
+        return p.patient(cell, position);
+    }
+
+    /**
+     * Replace a pool by the pool for the next epoch if every patient in it has been taken.
+     * This takes time proportional to the number of cells, not patients, and callers drawing
+     * from other cells are not stopped.
+     */
+    private void refill(Pool p, Random random) {
+        for (int c: occupied) {
+            if (p.available(c) != 0) {
+                return;
             }
         }
+        if (occupied.length != 0 && pool.compareAndSet(p, newPool(p.epoch + 1, random))) {
+            // start over again
+            LOGGER.error("Ran out of patients");
+        }
     }
 
-    private void readPatients() {
-
-        String map[] = CsvResourceLoader.getMap("Patient");
-        int counter[] = new int[1];
-        CsvResourceLoader.createResources(
-            Patient.class, DATA_URL + "patients.csv", map,
-            p -> {
-                if (++counter[0] % 100 == 0) {
-                    System.out.print(".");
-                    if (counter[0]/100 % 100 == 0) {
-                        System.out.println();
-                    }
-                }
-                String id = p.getIdElement().getIdPart();
-                patientMap.put(id, p);
-                patients.add(id);
-                return true;
-            }, null, null, 0);
+    /**
+     * @return  A full pool, with each cell drawn in a new random order.
+     */
+    private Pool newPool(int epoch, Random random) {
+        long keys[] = new long[cells.length];
+        for (int c: occupied) {
+            keys[c] = random.nextLong();
+        }
+        return new Pool(epoch, cells, keys, new int[cells.length]);
     }
 
-    private void getCovidEncounterData() {
-        String map[] = CsvResourceLoader.getMap("Encounter");
-        int counter[] = new int[3];
-        System.out.println();
-        CsvResourceLoader.createResources(
-            Encounter.class, DATA_URL + "encounters.csv", map,
-            enc -> {
-                Patient p = patientMap.get(enc.getSubject().getReferenceElement().getIdPart());
-                if ("840539006".equals(enc.getReasonCode().get(0).getCoding().get(0).getCode()) &&
-                    "1505002".equals(enc.getType().get(0).getCoding().get(0).getCode())) {
-                    /*
-                     * Check for a COVID Encounter
-                     * inpatient_ids = encounters[(encounters.REASONCODE == 840539006) & (encounters.CODE == 1505002)].PATIENT
-                     */
-
-                    if (p != null) {
-                        // Compute patient age at time of encounter
-                        int age = java.time.Period.between(
-                            p.getBirthDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate(),
-                            enc.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate()
-                        ).getYears();
-                        int los = CaseSimulator.lengthInDays(enc.getPeriod());
-                        p.setUserData("age", age);
-                        p.setUserData("encounter", enc);
-                        p.setUserData("los", los);
-
-
-                        if (++counter[0] % 100 == 0) {
-                            System.out.print(".");
-                            if ((counter[0] + counter[1])/100 % 100 == 0) {
-                                System.out.println();
-                            }
-                        }
-                    }
-                } else if ("305351004".equals(enc.getType().get(0).getCoding().get(0).getCode())) {
-                    /*
-                     * icu_ids = encounters[encounters.CODE == 305351004].PATIENT
-                     * cp['icu_admit'] = cp.Id.isin(icu_ids)
-                     */
-                    if (p != null) {
-                        Encounter inp = (Encounter) p.getUserData("encounter");
-                        if (inp != null) {
-                            if (p.getUserData("icu") != null) {
-                                LOGGER.error("Multiple ICU Stays");
-                            }
-                            if (overlaps(inp.getPeriod(), enc.getPeriod())) {
-                                p.setUserData("icu", enc);
-                                if (++counter[1] % 100 == 0) {
-                                    System.out.print("*");
-                                    if ((counter[0] + counter[1])/100 % 100 == 0) {
-                                        System.out.println();
-                                    }
-                                }
-
-                            } else if (!overlaps(inp.getPeriod(), enc.getPeriod())){
-//                                LOGGER.error("ICU stay {}-{} not overlapping or adjacent to COVID-19 encounter {}-{}",
-//                                    enc.getPeriod().getStartElement().asStringValue(),
-//                                    enc.getPeriod().getEndElement().asStringValue(),
-//                                    inp.getPeriod().getStartElement().asStringValue(),
-//                                    inp.getPeriod().getEndElement().asStringValue());
-                            }
-                        }
-                    }
-                }
+    private Matches match(int wanted[]) {
+        return new Matches(Arrays.stream(occupied).filter(c -> matches(c, wanted)).toArray(), cells);
+    }
 
-                return true;
-            }, "PATIENT", p -> { counter[2]++; return patientMap.containsKey(p); } , 0);
-        /* vent_ids = procedures[procedures.CODE == 26763009].PATIENT
-         * cp['ventilated'] = cp.Id.isin(vent_ids)
-         */
+    /**
+     * @return  A number identifying the request, made the same way as a cell number, with -1 (any) as 0.
+     */
+    private int key(int wanted[]) {
+        return cell(wanted[AGE] + 1, wanted[GENDER] + 1, wanted[RACE] + 1, wanted[ETHNICITY] + 1);
+    }
 
-        List<String> idsToRemove = patientMap.values().stream()
-            .filter(p -> p.getUserData("age") == null)
-            .map(p -> p.getIdElement().getIdPart()).collect(Collectors.toList());
+    private boolean matches(int cell, int wanted[]) {
+        int r = raceOrEthnicity.length + 1, e = cell % r, race = (cell / r) % r,
+            gender = (cell / r / r) % (genders.length + 1), age = cell / r / r / (genders.length + 1);
+        return (wanted[AGE] < 0 || wanted[AGE] == age) &&
+               (wanted[GENDER] < 0 || wanted[GENDER] == gender) &&
+               (wanted[RACE] < 0 || wanted[RACE] == race || wanted[RACE] == e) &&
+               (wanted[ETHNICITY] < 0 || wanted[ETHNICITY] == race || wanted[ETHNICITY] == e);
+    }
 
-        int total = patientMap.size();
-        idsToRemove.forEach(key -> patientMap.remove(key));
-        System.out.printf("\nInitial Patients: %d\nPatients without Hospital Encounters: %d\nTotal Hospitalized: %d\nTotal Encounters: %d\n",
-            total, idsToRemove.size(), patientMap.size(), counter[2]);
+    private int cell(int age, int gender, int race, int ethnicity) {
+        int r = raceOrEthnicity.length + 1;
+        return ((age * (genders.length + 1) + gender) * r + race) * r + ethnicity;
+    }
+
+    /**
+     * Read the hospitalized patients from {@link #getDataUrl()}, and index them.  Patients are
+     * stored in a {@link PatientStore}, and a new {@link Patient} is created from the store each
+     * time one is selected, so the resource returned by {@link #generate(Map)} may be modified.
+     */
+    @Override
+    public void initialize() {
+        store = PatientStore.load(getDataUrl());
+        LOGGER.info("Read {} hospitalized patients, loader {}", store.size(), CsvResourceLoader.getMetrics());
+        index();
         reset();
     }
 
-    private boolean overlaps(Period period, Period period2) {
-        Date    p1Start = new DateType(period.getStart()).getValue(),
-                p2Start = new DateType(period2.getStart()).getValue(),
-                p1End = new DateType(period.getEnd()).getValue();
+    private void index() {
+        int size = store.size(), none = raceOrEthnicity.length;
+        int sizes[] = new int[cell(ageGroupBounds.length, genders.length, none, none) + 1];
+        cellOf = new int[size];
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int age = store.getAge(ordinal), ageGroup = 0;
+            while (ageGroup < ageGroupBounds.length && age >= ageGroupBounds[ageGroup]) {
+                ageGroup++;
+            }
+            int gender = indexOf(genders, PatientStore.GENDERS, store.getGender(ordinal)),
+                race = indexOf(raceOrEthnicity, PatientStore.RACES, store.getRace(ordinal)),
+                ethnicity = indexOf(raceOrEthnicity, PatientStore.ETHNICITIES, store.getEthnicity(ordinal));
+            count(patientsByAge, ageGroup);
+            count(patientsByGender, gender);
+            count(patientsByRaceOrEthnicity, race);
+            count(patientsByRaceOrEthnicity, ethnicity);
+            sizes[cellOf[ordinal] = cell(ageGroup, gender, race, ethnicity)]++;
+        }
 
-        if (p2Start.equals(p1End)) {
-            return true;
+        cells = new int[sizes.length][];
+        List<Integer> used = new ArrayList<>();
+        for (int c = 0; c < sizes.length; c++) {
+            cells[c] = sizes[c] == 0 ? NO_CELLS : new int[sizes[c]];
+            if (sizes[c] != 0) {
+                used.add(c);
+            }
+            sizes[c] = 0;
         }
-        if (p2Start.after(p1Start) && p2Start.before(p1End)) {
-            return true;
+        occupied = used.stream().mapToInt(Integer::intValue).toArray();
+        matching = new ConcurrentHashMap<>();
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int c = cellOf[ordinal];
+            cells[c][sizes[c]++] = ordinal;
         }
-        return false;
     }
 
+    /**
+     * @return  The index in values of the code, or values.length if it is not there.
+     */
+    private static int indexOf(String values[], String codes[], byte code) {
+        int i = code == PatientStore.NO_CODE ? -1 : ArrayUtils.indexOf(values, codes[code]);
+        return i < 0 ? values.length : i;
+    }
+
+    private static void count(int counts[], int stratum) {
+        if (stratum < counts.length) {
+            counts[stratum]++;
+        }
+    }
 
     @Override
     public Collection<Patient> getAll() {
-        return patientMap.values();
+        if (store == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<Patient>() {
+            @Override
+            public Patient get(int index) {
+                return store.getPatient(index);
+            }
+
+            @Override
+            public int size() {
+                return store.size();
+            }
+        };
+    }
+
+    /**
+     * @return the ids of the patients that have not yet been selected, in the order they will be drawn from each cell.
+     */
+    public Collection<String> getAvailable() {
+        Pool p = pool.get();
+        List<String> ids = new ArrayList<>();
+        for (int c: occupied) {
+            for (int i = p.taken.get(c); i < p.order[c].length; i++) {
+                ids.add(store.getId(p.patient(c, i)));
+            }
+        }
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Restore the set of patients that have not yet been selected.  This should not be
+     * called while other threads are selecting patients.
+     * @param ids   The ids of the available patients, in the order they are drawn from each cell.
+     */
+    public void setAvailable(Collection<String> ids) {
+        Pool p = pool.get();
+        boolean isAvailable[] = new boolean[cellOf.length];
+        List<Integer> available = new ArrayList<>();
+        for (String id: ids) {
+            int ordinal = store.indexOf(id);
+            if (ordinal >= 0 && !isAvailable[ordinal]) {
+                isAvailable[ordinal] = true;
+                available.add(ordinal);
+            }
+        }
+        // The patients taken come first in each cell, followed by the available patients
+        int order[][] = new int[cells.length][], taken[] = new int[cells.length];
+        for (int c = 0; c < cells.length; c++) {
+            order[c] = cells[c].length == 0 ? NO_CELLS : new int[cells[c].length];
+            for (int i = 0; i < cells[c].length; i++) {
+                int ordinal = p.patient(c, i);
+                if (!isAvailable[ordinal]) {
+                    order[c][taken[c]++] = ordinal;
+                }
+            }
+        }
+        int next[] = taken.clone();
+        for (int ordinal: available) {
+            int c = cellOf[ordinal];
+            order[c][next[c]++] = ordinal;
+        }
+        pool.set(new Pool(p.epoch + 1, order, null, taken));
+    }
+
+    /**
+     * @return  The source of random numbers used to select patients.
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * @param random    The source of random numbers used to select patients, e.g., one restored from a checkpoint.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
     }
 
+    /**
+     * Make every patient available again, by starting a new epoch.  This takes time proportional
+     * to the number of cells, not patients.  Callers still drawing from the previous epoch may
+     * be given patients that are also available in the new one.
+     */
     @Override
     public void reset() {
-        patients.clear();
-        patients.addAll(patientMap.keySet());
+        Pool p;
+        do {
+            p = pool.get();
+        } while (!pool.compareAndSet(p, newPool(p.epoch + 1, random)));
     }
 }
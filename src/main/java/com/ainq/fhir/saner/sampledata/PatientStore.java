@@ -0,0 +1,296 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ainq.fhir.saner.simulator.CaseSimulator;
+
+/**
+ * The hospitalized patients read from a Synthea data set, stored column by column in arrays
+ * indexed by patient number, with patients numbered in id order.  The values patients are
+ * selected by are kept as primitives.  The rest of each patient, and of its COVID-19 and ICU
+ * encounters, is kept as the source row packed into a single String, and only converted to a
+ * {@link Patient} and {@link Encounter} when the patient is asked for.
+ *
+ * A store is not modified once loaded, and may be shared by several generators and threads.
+ */
+final class PatientStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatientStore.class);
+    /** Codes for gender, race and ethnicity, which the byte columns index */
+    static final String GENDERS[] = { "male", "female" };
+    static final String RACES[] = { "1002-5", "2028-9", "2054-5", "2076-8", "2106-3" };
+    static final String ETHNICITIES[] = { "2135-2", "2186-5" };
+    /** The value of a code column for a patient without the code */
+    static final byte NO_CODE = -1;
+    /** Separates the values of a packed row */
+    private static final char SEPARATOR = 0x1f;
+    private static final String COVID_19 = "840539006", INPATIENT = "1505002", ICU = "305351004";
+
+    private final String ids[];
+    private final int birthDay[];
+    private final byte gender[], race[], ethnicity[];
+    /** Start and end of the COVID-19 encounter, in epoch milliseconds */
+    private final long start[], end[];
+    private final String patientRows[], encounterRows[], icuRows[];
+    private final MappingPlan patientPlan, encounterPlan;
+
+    private PatientStore(int size, String patientHeader[], String encounterHeader[]) {
+        ids = new String[size];
+        birthDay = new int[size];
+        gender = new byte[size];
+        race = new byte[size];
+        ethnicity = new byte[size];
+        start = new long[size];
+        end = new long[size];
+        patientRows = new String[size];
+        encounterRows = new String[size];
+        icuRows = new String[size];
+        IdGenerator generator = CsvResourceLoader.getIdGenerator();
+        patientPlan = new MappingPlan(CsvResourceLoader.PATIENT_MAP, patientHeader, "patients", generator);
+        encounterPlan = new MappingPlan(CsvResourceLoader.ENCOUNTER_MAP, encounterHeader, "encounters", generator);
+    }
+
+    /**
+     * Read the patients with a COVID-19 inpatient encounter from patients.csv and encounters.csv.
+     * Patients are read twice, first for their ids and birth dates, and then for the rows of
+     * the patients that were hospitalized, so that only those rows are kept.
+     *
+     * @param dataUrl   The URL of the folder containing the tables.
+     * @return  The store.
+     * @throws UncheckedIOException If the tables cannot be read.
+     */
+    static PatientStore load(String dataUrl) {
+        try {
+            return read(dataUrl);
+        } catch (IOException e) {
+            LOGGER.error("IO error reading patients from {}", dataUrl, e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static PatientStore read(String dataUrl) throws IOException {
+        // The patients by id, with their birth dates
+        Map<String, Integer> all = new HashMap<>();
+        List<String> allIds = new ArrayList<>();
+        int birthDays[] = new int[1024];
+        try (RowSource rows = CsvResourceLoader.openRows(dataUrl + "patients.csv")) {
+            String header[] = rows.getHeader();
+            int id = column(header, "Id"), birth = column(header, "BIRTHDATE");
+            for (RowCursor row = rows.advance(-1, null); row != null; row = rows.advance(-1, null)) {
+                if (allIds.size() == birthDays.length) {
+                    birthDays = Arrays.copyOf(birthDays, birthDays.length * 2);
+                }
+                int day = row.getEpochDay(birth);
+                birthDays[allIds.size()] = day != RowCursor.NO_DAY ? day : (int) toLocalDate(new DateType(row.get(birth)).getValue()).toEpochDay();
+                all.put(row.get(id), allIds.size());
+                allIds.add(row.get(id));
+            }
+        }
+
+        // The COVID-19 inpatient encounter and ICU stay of each patient
+        int n = allIds.size();
+        String encounterRows[] = new String[n], icuRows[] = new String[n], encounterHeader[];
+        long times[][] = new long[2][n];
+        int counter[] = new int[1];
+        CharSequenceSet patients = new CharSequenceSet(allIds);
+        try (RowSource rows = CsvResourceLoader.openRows(dataUrl + "encounters.csv")) {
+            encounterHeader = rows.getHeader();
+            int patient = column(encounterHeader, "PATIENT"), code = column(encounterHeader, "CODE"),
+                reason = column(encounterHeader, "REASONCODE"), begin = column(encounterHeader, "START"),
+                finish = column(encounterHeader, "STOP");
+            ColumnFilter filter = v -> {
+                counter[0]++;
+                return patients.matches(v);
+            };
+            for (RowCursor row = rows.advance(patient, filter); row != null; row = rows.advance(patient, filter)) {
+                int p = all.get(row.get(patient));
+                if (COVID_19.equals(row.get(reason)) && INPATIENT.equals(row.get(code))) {
+                    encounterRows[p] = pack(row);
+                    times[0][p] = toMillis(row, begin);
+                    times[1][p] = toMillis(row, finish);
+                } else if (ICU.equals(row.get(code)) && encounterRows[p] != null) {
+                    if (icuRows[p] != null) {
+                        LOGGER.error("Multiple ICU Stays");
+                    }
+                    long icuBegin = toMillis(row, begin);
+                    if (icuBegin == times[1][p] || (icuBegin > times[0][p] && icuBegin < times[1][p])) {
+                        icuRows[p] = pack(row);
+                    }
+                }
+            }
+        }
+
+        // Keep the hospitalized patients, in id order
+        List<String> hospitalized = new ArrayList<>();
+        for (int p = 0; p < n; p++) {
+            if (encounterRows[p] != null) {
+                hospitalized.add(allIds.get(p));
+            }
+        }
+        hospitalized.sort(null);
+        LOGGER.info("Initial Patients: {}, Patients without Hospital Encounters: {}, Total Hospitalized: {}, Total Encounters: {}",
+            n, n - hospitalized.size(), hospitalized.size(), counter[0]);
+
+        try (RowSource rows = CsvResourceLoader.openRows(dataUrl + "patients.csv")) {
+            String header[] = rows.getHeader();
+            PatientStore store = new PatientStore(hospitalized.size(), header, encounterHeader);
+            int id = column(header, "Id"), sex = column(header, "GENDER"), races = column(header, "RACE"),
+                ethnicities = column(header, "ETHNICITY");
+            CharSequenceSet selected = new CharSequenceSet(hospitalized);
+            String ordered[] = hospitalized.toArray(new String[hospitalized.size()]);
+            for (RowCursor row = rows.advance(id, selected); row != null; row = rows.advance(id, selected)) {
+                int i = Arrays.binarySearch(ordered, row.get(id)), p = all.get(ordered[i]);
+                store.ids[i] = ordered[i];
+                store.birthDay[i] = birthDays[p];
+                store.gender[i] = code(GENDERS, MappingPlan.mapGender(StringUtils.defaultString(row.get(sex))));
+                store.race[i] = code(RACES, MappingPlan.mapRace(StringUtils.defaultString(row.get(races))));
+                store.ethnicity[i] = code(ETHNICITIES, MappingPlan.mapEthnicity(StringUtils.defaultString(row.get(ethnicities))));
+                store.patientRows[i] = pack(row);
+                store.encounterRows[i] = encounterRows[p];
+                store.start[i] = times[0][p];
+                store.end[i] = times[1][p];
+                store.icuRows[i] = icuRows[p];
+            }
+            return store;
+        }
+    }
+
+    private static int column(String header[], String name) throws IOException {
+        int column = ArrayUtils.lastIndexOf(header, name);
+        if (column < 0) {
+            throw new IOException("Column " + name + " not found");
+        }
+        return column;
+    }
+
+    private static byte code(String codes[], String code) {
+        return (byte) ArrayUtils.indexOf(codes, code);
+    }
+
+    private static long toMillis(RowCursor row, int column) {
+        long seconds = row.getEpochSecond(column);
+        return seconds != RowCursor.NO_SECOND ? seconds * 1000 : new DateTimeType(row.get(column)).getValue().getTime();
+    }
+
+    private static LocalDate toLocalDate(Date date) {
+        return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    private static String pack(RowCursor row) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < row.size(); i++) {
+            if (i != 0) {
+                b.append(SEPARATOR);
+            }
+            b.append(StringUtils.defaultString(row.get(i)));
+        }
+        return b.toString();
+    }
+
+    private static RowCursor unpack(String row) {
+        return new ArrayRowCursor(StringUtils.splitPreserveAllTokens(row, SEPARATOR));
+    }
+
+    /**
+     * @return  The number of patients.
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param id    The id of a patient.
+     * @return  The number of the patient, or -1 if there is no such patient.
+     */
+    int indexOf(String id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * @param patient   The number of the patient.
+     * @return  The id of the patient.
+     */
+    String getId(int patient) {
+        return ids[patient];
+    }
+
+    /**
+     * @param patient   The number of the patient.
+     * @return  The age of the patient in years at the start of the COVID-19 encounter.
+     */
+    int getAge(int patient) {
+        return java.time.Period.between(
+            LocalDate.ofEpochDay(birthDay[patient]),
+            toLocalDate(new Date(start[patient]))
+        ).getYears();
+    }
+
+    /**
+     * @param patient   The number of the patient.
+     * @return  The index of the patient's gender in {@link #GENDERS}, or {@link #NO_CODE}.
+     */
+    byte getGender(int patient) {
+        return gender[patient];
+    }
+
+    /**
+     * @param patient   The number of the patient.
+     * @return  The index of the patient's race in {@link #RACES}, or {@link #NO_CODE}.
+     */
+    byte getRace(int patient) {
+        return race[patient];
+    }
+
+    /**
+     * @param patient   The number of the patient.
+     * @return  The index of the patient's ethnicity in {@link #ETHNICITIES}, or {@link #NO_CODE}.
+     */
+    byte getEthnicity(int patient) {
+        return ethnicity[patient];
+    }
+
+    /**
+     * @param patient   The number of the patient.
+     * @return  The length of the COVID-19 encounter in days.
+     */
+    int getLengthOfStay(int patient) {
+        return CaseSimulator.lengthInDays(new Date(start[patient]), new Date(end[patient]));
+    }
+
+    /**
+     * Create the resource for a patient, with the user data that
+     * {@link com.ainq.fhir.saner.simulator.Case} reads: age, los, encounter and icu.
+     * A new resource is created for every call, so may be modified by the caller.
+     *
+     * @param patient   The number of the patient.
+     * @return  The patient.
+     */
+    Patient getPatient(int patient) {
+        Patient p = patientPlan.apply(new Patient(), unpack(patientRows[patient]));
+        p.setUserData("age", getAge(patient));
+        p.setUserData("encounter", encounterPlan.apply(new Encounter(), unpack(encounterRows[patient])));
+        p.setUserData("los", getLengthOfStay(patient));
+        if (icuRows[patient] != null) {
+            p.setUserData("icu", encounterPlan.apply(new Encounter(), unpack(icuRows[patient])));
+        }
+        return p;
+    }
+}
@@ -0,0 +1,85 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.util.SplittableRandom;
+import java.util.function.LongFunction;
+
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * The reference data used by simulations: hospital locations, patients and addresses.
+ * The data is loaded once and shared.  Each simulation gets its own patient generator,
+ * which selects from the shared patients using its own pool of available patients, and
+ * random values derived from the simulation's seed.
+ */
+public final class ReferenceData {
+    private final Generator<Location> locationGenerator;
+    private final LongFunction<? extends Generator<Patient>> patientGenerators;
+    private final Generator<Address> addressGenerator;
+
+    /**
+     * Create reference data from loaded generators.
+     * @param locationGenerator The generator for hospital locations, which is shared.
+     * @param patientGenerators Creates a new patient generator for each simulation from the simulation's seed.
+     * @param addressGenerator  The generator for addresses, which is shared.
+     */
+    public ReferenceData(Generator<Location> locationGenerator, LongFunction<? extends Generator<Patient>> patientGenerators,
+        Generator<Address> addressGenerator) {
+        this.locationGenerator = locationGenerator;
+        this.patientGenerators = patientGenerators;
+        this.addressGenerator = addressGenerator;
+    }
+
+    /**
+     * Load the locations, patients and addresses.
+     * @return  The loaded reference data.
+     */
+    public static ReferenceData load() {
+        LocationGenerator l = new LocationGenerator();
+        l.initialize();
+        PatientGenerator p = new PatientGenerator();
+        p.initialize();
+        AddressGenerator a = new AddressGenerator();
+        a.initialize();
+        return of(l, p, a);
+    }
+
+    /**
+     * Create reference data from loaded generators, giving each simulation a copy of
+     * the patient generator seeded from the simulation's seed.  The copy's seed is mixed
+     * so its values differ from the simulation's other streams.
+     *
+     * @param locationGenerator The generator for hospital locations, which is shared.
+     * @param patients  The initialized patient generator to copy.
+     * @param addressGenerator  The generator for addresses, which is shared.
+     * @return  The reference data.
+     */
+    public static ReferenceData of(Generator<Location> locationGenerator, PatientGenerator patients, Generator<Address> addressGenerator) {
+        return new ReferenceData(locationGenerator,
+            seed -> new PatientGenerator(patients, new SplittableRandom(seed).nextLong()), addressGenerator);
+    }
+
+    /**
+     * @return the shared location generator
+     */
+    public Generator<Location> getLocationGenerator() {
+        return locationGenerator;
+    }
+
+    /**
+     * @param seed  The seed of the simulation the generator is for.
+     * @return a new patient generator sharing the loaded patients, which selects
+     * the same patients whenever it is created with the same seed
+     */
+    public Generator<Patient> newPatientGenerator(long seed) {
+        return patientGenerators.apply(seed);
+    }
+
+    /**
+     * @return the shared address generator
+     */
+    public Generator<Address> getAddressGenerator() {
+        return addressGenerator;
+    }
+}
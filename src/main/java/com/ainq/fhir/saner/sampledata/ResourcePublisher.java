@@ -0,0 +1,139 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cold publisher of the resources in a table.  Each subscriber reads the table separately,
+ * and a row is only read and converted when the subscriber has requested it, so nothing is
+ * buffered beyond the subscriber's demand.  Resources are delivered on the given executor,
+ * one at a time.  The table is closed on completion, on error, and on cancel.  A subscriber
+ * that throws from onNext is treated as having cancelled, and is sent the exception through
+ * onError.
+ *
+ * @param <T>   The type of resource published.
+ */
+final class ResourcePublisher<T extends Resource> implements Flow.Publisher<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourcePublisher.class);
+    private final Supplier<ResourceReader<T>> readers;
+    private final Executor executor;
+
+    ResourcePublisher(Supplier<ResourceReader<T>> readers, Executor executor) {
+        this.readers = readers;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Subscription s = new Subscription(subscriber, readers.get());
+        subscriber.onSubscribe(s);
+    }
+
+    private final class Subscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final ResourceReader<T> reader;
+        private final AtomicLong requested = new AtomicLong();
+        /** The number of times delivery has been asked for while it was running, to avoid running it twice */
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest = null;
+        /** Only used by the delivery loop */
+        private boolean done = false;
+
+        private Subscription(Flow.Subscriber<? super T> subscriber, ResourceReader<T> reader) {
+            this.subscriber = subscriber;
+            this.reader = reader;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Subscriber requested " + n + " resources");
+            } else {
+                requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                deliver();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver() {
+            if (done) {
+                return;
+            }
+            long sent = 0, limit = requested.get();
+            while (true) {
+                if (cancelled) {
+                    finish();
+                    return;
+                }
+                if (badRequest != null) {
+                    finish();
+                    subscriber.onError(badRequest);
+                    return;
+                }
+                if (sent == limit) {
+                    limit = requested.addAndGet(-sent);
+                    sent = 0;
+                    if (limit == 0) {
+                        return;
+                    }
+                }
+                T resource;
+                try {
+                    resource = reader.next();
+                } catch (RuntimeException e) {
+                    finish();
+                    subscriber.onError(e);
+                    return;
+                }
+                if (resource == null) {
+                    finish();
+                    subscriber.onComplete();
+                    return;
+                }
+                try {
+                    subscriber.onNext(resource);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Subscriber failed to accept {}", resource.getIdElement().getIdPart(), e);
+                    cancelled = true;
+                    finish();
+                    subscriber.onError(e);
+                    return;
+                }
+                sent++;
+            }
+        }
+
+        private void finish() {
+            done = true;
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads resources from a table one at a time, for the pull-based forms of
+ * {@link CsvResourceLoader#createResources}.  The table is not opened until the first
+ * resource is asked for, and is closed when the last has been read, or when the
+ * reader is closed.  A reader is used by one thread at a time.
+ *
+ * @param <T>   The type of resource to read.
+ */
+final class ResourceReader<T extends Resource> implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceReader.class);
+
+    private final Class<T> type;
+    private final String theUrl;
+    private final String fieldMapping[];
+    private final String field;
+    private final Predicate<String> test;
+
+    private RowSource rows;
+    private Constructor<T> constructor;
+    private MappingPlan plan;
+    private int fieldIndex;
+    private ColumnFilter filter;
+    private boolean closed = false;
+    private final LoaderMetrics.Tally tally = CsvResourceLoader.metrics().tally();
+
+    ResourceReader(Class<T> type, String theUrl, String fieldMapping[], String field, Predicate<String> test) {
+        this.type = type;
+        this.theUrl = theUrl;
+        this.fieldMapping = fieldMapping;
+        this.field = field;
+        this.test = test;
+    }
+
+    /**
+     * @return  The resource for the next selected row, or null at the end of the table.
+     * @throws UncheckedIOException If the table cannot be read.
+     */
+    T next() {
+        if (closed) {
+            return null;
+        }
+        try {
+            if (rows == null) {
+                open();
+            }
+            long start = System.nanoTime();
+            RowCursor fieldData = rows.advance(fieldIndex, filter);
+            long read = System.nanoTime();
+            tally.read(read - start, fieldData != null);
+            if (fieldData == null) {
+                close();
+                return null;
+            }
+            T resource = plan.apply(constructor.newInstance(), fieldData);
+            tally.mapped(System.nanoTime() - read, 1);
+            return resource;
+        } catch (IOException e) {
+            CsvResourceLoader.metrics().error(LoaderMetrics.IO);
+            LOGGER.error("IO error reading {}", theUrl, e);
+            close();
+            throw new UncheckedIOException(e);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            CsvResourceLoader.metrics().error(LoaderMetrics.REFLECTION);
+            LOGGER.error("Exception creating {}", type.getName(), e);
+            close();
+            throw new RuntimeException("Cannot create " + type.getName(), e);
+        } catch (RuntimeException e) {
+            CsvResourceLoader.metrics().error(LoaderMetrics.MAPPING);
+            close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        try {
+            constructor = type.getConstructor();
+        } catch (NoSuchMethodException e) {
+            LOGGER.error("Constructor not found for {}", type.getName(), e);
+            throw new IllegalArgumentException("Constructor not found for " + type.getName(), e);
+        }
+        rows = CsvResourceLoader.openRows(theUrl);
+        String fieldNames[] = rows.getHeader();
+        plan = new MappingPlan(fieldMapping, fieldNames, CsvResourceLoader.getTableName(theUrl), CsvResourceLoader.getIdGenerator());
+        fieldIndex = field == null ? -1 : ArrayUtils.lastIndexOf(fieldNames, field);
+        filter = tally.counting(field == null ? null : ColumnFilter.of(test));
+    }
+
+    /**
+     * Release the table.  Further calls to {@link #next()} return null.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            tally.flush();
+        }
+        closed = true;
+        if (rows != null) {
+            try {
+                rows.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing {}", theUrl, e);
+            }
+            rows = null;
+        }
+    }
+}
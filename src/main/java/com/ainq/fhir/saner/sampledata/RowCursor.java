@@ -0,0 +1,72 @@
+package com.ainq.fhir.saner.sampledata;
+
+/**
+ * A view of the current row of a {@link RowSource}.  A source reuses the same cursor for
+ * every row, so values are only split out of the row, and Strings only created, for the
+ * columns that are asked for.  A cursor is only valid until the source advances.
+ */
+public interface RowCursor {
+    /** Returned by {@link #getEpochDay(int)} for a value that is not stored as a date */
+    int NO_DAY = Integer.MIN_VALUE;
+    /** Returned by {@link #getEpochSecond(int)} for a value that is not stored as a timestamp */
+    long NO_SECOND = Long.MIN_VALUE;
+
+    /**
+     * @return The number of values in the row, which may be less than the number of columns.
+     */
+    int size();
+
+    /**
+     * @param column    The index of the column.
+     * @return  The value in the column, or null if the row has no value for it.
+     */
+    String get(int column);
+
+    /**
+     * @return The position of the row in its table, counting from 0 for the first row after the
+     *         header and including rows skipped by a filter, or -1 if it is not known.
+     */
+    long getRowNumber();
+
+    /**
+     * Get the characters of a value without creating a String, for callers that only
+     * test or compare it.
+     * @param column    The index of the column.
+     * @return  The characters of the value, or null if the row has no value for it.
+     *          The characters are only valid until the source advances.
+     */
+    default CharSequence getChars(int column) {
+        return get(column);
+    }
+
+    /**
+     * Get a date without converting it to a String, for sources that store dates.
+     * @param column    The index of the column.
+     * @return  The date in the column as an epoch day, or {@link #NO_DAY} if the value is not
+     *          stored as a date, in which case it is read with {@link #get(int)}.
+     */
+    default int getEpochDay(int column) {
+        return NO_DAY;
+    }
+
+    /**
+     * Get a UTC timestamp without converting it to a String, for sources that store timestamps.
+     * @param column    The index of the column.
+     * @return  The timestamp in the column in epoch seconds, or {@link #NO_SECOND} if the value is not
+     *          stored as a timestamp, in which case it is read with {@link #get(int)}.
+     */
+    default long getEpochSecond(int column) {
+        return NO_SECOND;
+    }
+
+    /**
+     * @return A copy of the values in the row, which remains valid after the source advances.
+     */
+    default String[] toArray() {
+        String values[] = new String[size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ainq.fhir.saner.sampledata;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A table of string values read one row at a time, such as a CSV file or a {@link ColumnarTable}.
+ * This is what {@link CsvResourceLoader} maps to FHIR resources.
+ */
+public interface RowSource extends Closeable {
+    /**
+     * @return The names of the columns.
+     */
+    String[] getHeader();
+
+    /**
+     * Read the next row.  A row may have fewer values than there are columns.
+     * @return  The values in the next row, or null at the end of the table.
+     * @throws IOException  If the table cannot be read.
+     */
+    String[] next() throws IOException;
+
+    /**
+     * Read the next row whose value in a column passes a filter.  Sources override this to test
+     * the column before the rest of the row is split or decoded.
+     * @param column    The index of the column to test, or -1 to test null for every row.
+     * @param filter    The test to apply.
+     * @return  The values in the next row that passes the filter, or null at the end of the table.
+     * @throws IOException  If the table cannot be read.
+     */
+    default String[] next(int column, ColumnFilter filter) throws IOException {
+        for (String row[] = next(); row != null; row = next()) {
+            if (filter.matches(column >= 0 && column < row.length ? row[column] : null)) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Advance to the next row whose value in a column passes a filter.  Sources override this to
+     * return the same cursor for every row, and to locate values in the row only when asked for.
+     * @param column    The index of the column to test, or -1 to test null for every row.
+     * @param filter    The test to apply, or null to read every row.
+     * @return  A cursor on the row, which is valid until the next call, or null at the end of the table.
+     * @throws IOException  If the table cannot be read.
+     */
+    default RowCursor advance(int column, ColumnFilter filter) throws IOException {
+        String row[] = filter == null ? next() : next(column, filter);
+        return row == null ? null : new ArrayRowCursor(row);
+    }
+}
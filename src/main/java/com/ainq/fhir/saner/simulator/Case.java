@@ -1,16 +1,14 @@
 package com.ainq.fhir.saner.simulator;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.UUID;
-import java.util.function.Consumer;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
@@ -22,24 +20,33 @@ import com.ainq.fhir.saner.sampledata.Generator;
 public class Case {
     private static final Logger LOGGER = LoggerFactory.getLogger(Case.class);
     private static final boolean USE_UUID = false;
-    private static int caseCount = 0;
     private final Set<String> riskFactor = new TreeSet<String>();
-    private String patientId = generateIdentifier();
+    private String patientId;
     private String gender;
     private Set<String> race = new TreeSet<String>();
     private String ethnicity;
     private int age;
     private Date dob;
     private int hospLOS, icuLOS;
-    private Date startDate, endDate, icuStart, icuEnd;
+    /** Number of days by which the patient's source data is shifted to match this case */
+    private int offset;
+    /** Start and end of the stay and of the ICU stay as epoch days */
+    private int startDay, endDay, icuStartDay, icuEndDay;
     private Patient patient;
     private Encounter encounter;
-    private static String generateIdentifier() {
-        return USE_UUID ? UUID.randomUUID().toString() : Integer.toString(++caseCount);
-    }
-
-    public Case(Date day, boolean isInitialCase) {
-        generateRandomData(day, isInitialCase);
+    /**
+     * Create a case for a patient that has already been selected.  This constructor
+     * does not modify the patient, so cases for different hospitals can be created
+     * concurrently.
+     *
+     * @param day   The epoch day on which the case is created.
+     * @param isInitialCase True if this case is present at the start of the simulation.
+     * @param patient   The patient for the case.
+     * @param random    The source of random values for the case.
+     */
+    Case(int day, boolean isInitialCase, Patient patient, Random random) {
+        this.patient = patient;
+        generateRandomData(day, isInitialCase, random);
         patientId = patient.getIdElement().getIdPart();
     }
 
@@ -55,6 +62,25 @@ public class Case {
         return result;
     }
 
+    /**
+     * Restore a case from a checkpoint.
+     *
+     * @param patient   The patient for the case.
+     * @param startDay  The epoch day on which the stay starts.
+     * @param hospLOS   The length of the hospital stay.
+     * @param icuLOS    The length of the ICU stay.
+     * @param offset    The number of days the patient's source data is shifted by.
+     */
+    Case(Patient patient, int startDay, int hospLOS, int icuLOS, int offset) {
+        this.patient = patient;
+        this.patientId = patient.getIdElement().getIdPart();
+        this.encounter = (Encounter) patient.getUserData("encounter");
+        this.hospLOS = hospLOS;
+        this.icuLOS = icuLOS;
+        this.offset = offset;
+        setStartDay(startDay);
+    }
+
     /**
      * @return the patientId
      */
@@ -124,12 +150,6 @@ public class Case {
      */
     public void setAge(int age) {
         this.age = age;
-        // Get today's date
-        Calendar day = Calendar.getInstance();
-        // Subtract the patient age
-        day.add(Calendar.YEAR, -age);
-        // Pick a random day in the previous year.
-        day.add(Calendar.DAY_OF_YEAR, -(int) (Math.random() * 365));
     }
 
     /**
@@ -179,49 +199,52 @@ public class Case {
     }
 
     /**
-     * @return the startDate
+     * @return the number of days the patient's source data is shifted by for this case
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the start day as an epoch day
      */
-    public Date getStartDate() {
-        return startDate;
+    public int getStartDay() {
+        return startDay;
     }
 
     /**
-     * @param startDate the startDate to set
+     * @param startDay the start day to set as an epoch day
      */
-    public void setStartDate(Date startDate) {
-        this.startDate = startDate;
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(startDate);
-        cal.add(Calendar.DATE, getLOS());
-        endDate = cal.getTime();
+    public void setStartDay(int startDay) {
+        this.startDay = startDay;
+        endDay = startDay + getLOS();
         if (icuLOS > 0) {
             // TODO: Adjust it backwards a little bit.  One typically
             // isn't discharged straight from ICU except for death.
-            icuEnd = endDate;
-            cal.add(Calendar.DATE, - icuLOS);
-            icuStart = cal.getTime();
+            icuEndDay = endDay;
+            icuStartDay = endDay - icuLOS;
         }
     }
 
     /**
-     * @return the endDate
+     * @return the end day as an epoch day
      */
-    public Date getEndDate() {
-        return endDate;
+    public int getEndDay() {
+        return endDay;
     }
 
     /**
-     * @return the icuStart
+     * @return the ICU start day as an epoch day
      */
-    public Date getIcuStart() {
-        return icuStart;
+    public int getIcuStartDay() {
+        return icuStartDay;
     }
 
     /**
-     * @return the icuEnd
+     * @return the ICU end day as an epoch day
      */
-    public Date getIcuEnd() {
-        return icuEnd;
+    public int getIcuEndDay() {
+        return icuEndDay;
     }
 
     /**
@@ -231,102 +254,43 @@ public class Case {
         return riskFactor;
     }
 
-    private void generateRandomData(Date day, boolean isInitialCase) {
-        int errors = 0;
-        boolean wasReset = false;
-        do {
-//            double variate = Generator.RANDOM.nextDouble();
-//            variate = rankAndSet(variate, 0.654, "2106-3", this::addRace);   // White
-//            variate = rankAndSet(variate, 0.238, "2054-5", this::addRace);   // Black or African American
-//            variate = rankAndSet(variate, 0.007, "1002-5", this::addRace);   // American Indian or Alaska Native
-//            variate = rankAndSet(variate, 0.079, "2028-9", this::addRace);   // Asian
-//            variate = rankAndSet(variate, 0.001, "2076-8", this::addRace);   // Native Hawaiian or Other Pacific Islander
-//            if (getRace().size() == 0) {
-//                // Multiple races for the remainder.
-//                while (getRace().size() <  2) {
-//                    variate = Generator.RANDOM.nextDouble();
-//                    variate = rankAndSet(variate, 0.654, "2106-3", this::addRace);   // White
-//                    variate = rankAndSet(variate, 0.238, "2054-5", this::addRace);   // Black or African American
-//                    variate = rankAndSet(variate, 0.007, "1002-5", this::addRace);   // American Indian or Alaska Native
-//                    variate = rankAndSet(variate, 0.079, "2028-9", this::addRace);   // Asian
-//                    variate = rankAndSet(variate, 0.001, "2076-8", this::addRace);   // Native Hawaiian or Other Pacific Islander
-//                }
-//            }
-//
-//            variate = Generator.RANDOM.nextDouble();
-//            variate = rankAndSet(variate, 0.256, "2135-2", this::setEthnicity);   // Hispanic
-//            variate = rankAndSet(variate, 0.744, "2186-5", this::setEthnicity);   // Non-Hispanic
-//
-//            variate = Generator.RANDOM.nextDouble();
-//            double ageRange = Generator.RANDOM.nextDouble();
-//            variate = rankAndSet(variate, 0.060, (int) (ageRange * 5) + 0, this::setAge);
-//            variate = rankAndSet(variate, 0.057, (int) (ageRange * 5) + 5, this::setAge);
-//            variate = rankAndSet(variate, 0.063, (int) (ageRange * 5) + 10, this::setAge);
-//            variate = rankAndSet(variate, 0.060, (int) (ageRange * 5) + 15, this::setAge);
-//            variate = rankAndSet(variate, 0.063, (int) (ageRange * 5) + 20, this::setAge);
-//            variate = rankAndSet(variate, 0.163, (int) (ageRange * 10) + 25, this::setAge);
-//            variate = rankAndSet(variate, 0.136, (int) (ageRange * 10) + 35, this::setAge);
-//            variate = rankAndSet(variate, 0.124, (int) (ageRange * 10) + 45, this::setAge);
-//            variate = rankAndSet(variate, 0.062, (int) (ageRange * 5) + 55, this::setAge);
-//            variate = rankAndSet(variate, 0.061, (int) (ageRange * 5) + 60, this::setAge);
-//            variate = rankAndSet(variate, 0.087, (int) (ageRange * 10) + 65, this::setAge);
-//            variate = rankAndSet(variate, 0.045, (int) (ageRange * 10) + 75, this::setAge);
-//            variate = rankAndSet(variate, 0.020, (int) (ageRange * 15) + 85, this::setAge);
-//
-//            setGender(Generator.RANDOM.nextDouble() < 0.479 ? "male" : "female");
-//
-            Map<String, String> properties = new HashMap<>();
-//            int count = 0;
-//            for (String race: getRace()) {
-//                properties.put("race" + count++, race);
-//            }
-//            properties.put("ethnicity", getEthnicity());
-//            properties.put("age", Integer.toString(getAge()));
-//            properties.put("gender", getGender());
-
-            patient = CaseSimulator.getPatientGenerator().generate(properties);
-            if (patient == null) {
-                LOGGER.warn("Error: could not generate patient with {}", properties);
-                if (++errors > 10) {
-                    if (wasReset) {
-                        LOGGER.error("Error: could not generate patient after reset with {}", properties);
-                        throw new RuntimeException("Error: could not generate patient with " + properties);
-                    }
-                    CaseSimulator.getPatientGenerator().reset();
-                    wasReset = true;
-                    errors = 0;
-                    LOGGER.warn("Reset Patient Data");
-                }
-            }
-        } while (patient == null);  // Try another case on failure
+    /**
+     * Select a patient for a new case from the patient generator, with demographics drawn
+     * from a target population.
+     * @param generator The generator to select patients from.
+     * @param demographics  The target population, or null to select any patient.
+     * @param random    The source of random numbers for the demographics.
+     * @return  The selected patient.
+     * @throws RuntimeException if the generator has no patients.  The generator relaxes requests
+     * that no available patient matches, and starts over when every patient has been selected,
+     * so this only happens when it has none at all.
+     */
+    static Patient selectPatient(Generator<Patient> generator, DemographicSampler demographics, Random random) {
+        Map<String, String> properties = demographics == null ? new HashMap<>() : demographics.sample(random);
+        Patient patient = generator.generate(properties);
+        if (patient == null) {
+            LOGGER.error("Error: could not generate patient with {}, the patient data is empty", properties);
+            throw new RuntimeException("Error: could not generate patient with " + properties + ", the patient data is empty");
+        }
+        return patient;
+    }
+
+    private void generateRandomData(int day, boolean isInitialCase, Random random) {
         encounter = (Encounter) patient.getUserData("encounter");
         Encounter   icu = (Encounter) patient.getUserData("icu");
 
         int los = CaseSimulator.lengthInDays(encounter.getPeriod());
         int iculos = icu == null ? 0 : CaseSimulator.lengthInDays(icu.getPeriod());
-        int offset = CaseSimulator.lengthInDays(encounter.getPeriod().getStart(), day);
-        patient.setUserData("offset", offset);
+        offset = day - Days.of(encounter.getPeriod().getStart());
         setHospLOS(los + iculos);
         setIcuLOS(iculos);
 
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(day);
-
         int pos = 0;
         if (isInitialCase) {
             // Back up the start day to a random position within the stay.
-            pos = Generator.RANDOM.nextInt(getLOS());
-            cal.add(Calendar.DATE, -pos);
-        }
-        setStartDate(cal.getTime());
-    }
-
-    private <T> double rankAndSet(double variable, double percentile, T value, Consumer<T> t) {
-        if (variable > 0 && variable < percentile) {
-            t.accept(value);
+            pos = random.nextInt(getLOS());
         }
-        variable -= percentile;
-        return variable;
+        setStartDay(day - pos);
     }
 
     static List<List<Prevalence<?>>> cartesianProduct(int index, List<List<Prevalence<?>>> sets) {
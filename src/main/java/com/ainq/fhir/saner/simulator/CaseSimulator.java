@@ -1,30 +1,46 @@
 package com.ainq.fhir.saner.simulator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.AllergyIntolerance;
-import org.hl7.fhir.r4.model.BaseDateTimeType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
@@ -44,62 +60,277 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ainq.fhir.saner.sampledata.AddressGenerator;
+import com.ainq.fhir.saner.sampledata.CharSequenceSet;
 import com.ainq.fhir.saner.sampledata.CsvResourceLoader;
+import com.ainq.fhir.saner.sampledata.Dates;
 import com.ainq.fhir.saner.sampledata.Generator;
 import com.ainq.fhir.saner.sampledata.LocationGenerator;
 import com.ainq.fhir.saner.sampledata.PatientGenerator;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
-import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.util.FhirTerser;
 
 /**
  * CaseSimulator is used to generate simulated data (individual or aggregate)
  * for hospital cases.
  *
+ * A simulation is created using a {@link Builder}, stepped through each day of the
+ * simulation, and its outputs are sent to a {@link SimulationSink}.  Simulations
+ * share no mutable state, so more than one can run in the same JVM.
+ *
  * @author Keith W. Boone
  *
  */
-public class CaseSimulator {
+public class CaseSimulator implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(CaseSimulator.class);
     public static final String  HSA = "http://terminology.hl7.org/codesystem/dartmouthatlas/HSA",
                                 HRR = "http://terminology.hl7.org/codesystem/dartmouthatlas/HRR",
                                 HSLOC = "https://www.cdc.gov/nhsn/cdaportal/terminology/codesystem/hsloc.html";
     private static final double RANDOM_VARIANCE = 0.05,
                                 DAILY_VARIANCE = 0.15;
+    /** Identifies a checkpoint file, and the version of its format */
+    private static final int CHECKPOINT_MAGIC = 0x534E5243,
+                             CHECKPOINT_VERSION = 2;
 
     /** The hospitals for which this case is simulated. */
     private final Set<Hospital> hospitals = new TreeSet<Hospital>(Comparator.comparing(h -> h.getName()));
+    /** The hospitals in name order, used to partition work by hospital. */
+    private final List<Hospital> hospitalList = new ArrayList<>();
+
+    /** Default generators, used by simulations which are not given their own */
+    private static Generator<Location> defaultLocationGenerator;
+    private static Generator<Patient> defaultPatientGenerator;
+    private static Generator<Address> defaultAddressGenerator;
 
     /** Location generator (for hospitals) */
-    private static Generator<Location> locationGenerator;
+    private final Generator<Location> locationGenerator;
 
     /** Patient Generator */
-    private static Generator<Patient> patientGenerator;
+    private final Generator<Patient> patientGenerator;
 
     /** Generator for other data elements (e.g., risks, comorbidities, procedures, et cetera) */
-    private static Generator<Address> addressGenerator;
+    private final Generator<Address> addressGenerator;
+
+    /** The population new cases are drawn from, or null for any patient */
+    private final DemographicSampler demographics;
 
-    /** Date Formatter for date comparison */
-    final static SimpleDateFormat SDF = new SimpleDateFormat("yyyyMMdd");
+    /** The default storage location used by main */
     private static final File DATA_FOLDER = new File(".", "hospitalData");
-    private static PrintWriter OUT = null;
+    /** Receives the outputs of the simulation */
+    private final SimulationSink sink;
 
-    private static final Set<String> patients = new HashSet<>();
+    /** The ids of patients selected for cases */
+    private final Set<String> patients = new HashSet<>();
+    /** The copies of the patients written for cases, by id */
+    private final Map<String, Patient> outputPatients = new HashMap<>();
 
     /** The starting and ending counts for cases */
     private int startingCases = 3992,
                 endingCases = 2467;
     /** Daily rate of change to apply to get from starting to ending case counts */
     private double dailyRateOfChange;
-    /** Starting and ending dates for the simulation */
-    private Date startDate, endDate;
+    /** Starting and ending days for the simulation as epoch days */
+    private int startDay, endDay;
+    /** The last day for which activity was processed, as an epoch day */
+    private int currentDay;
+    /** The file to write checkpoints to, and the number of days between checkpoints */
+    private File checkpointFile;
+    private int checkpointInterval;
     /** Used to find data fields of a given type in resources */
     private FhirTerser terser = new FhirTerser(FhirContext.forR4());
-    /** For serializing the output data */
-    private IParser parser = FhirContext.forR4().newJsonParser().setPrettyPrint(false);
+    /** The seed for the random streams used by the simulation */
+    private final long seed;
+    /** The source of random values for simulation wide decisions */
+    private Random random;
+    /** The pool used to process hospitals in parallel, or null to process them serially */
+    private final ForkJoinPool pool;
+
+    /**
+     * Builds a simulation.  Generators which are not set default to those set using the
+     * static setters of CaseSimulator, and outputs are discarded unless a sink is set.
+     */
+    public static class Builder {
+        private int start, end;
+        private int startingCases = 3992, endingCases = 2467;
+        private long seed = Generator.SEED;
+        private int parallelism = 1;
+        private Generator<Location> locationGenerator;
+        private Generator<Patient> patientGenerator;
+        private Generator<Address> addressGenerator;
+        private DemographicSampler demographics;
+        private SimulationSink sink = NullSink.INSTANCE;
+        private File checkpointFile;
+        private int checkpointInterval;
+
+        private Builder() {
+        }
+
+        /**
+         * @param start The starting epoch day for the simulation.
+         * @return  This builder.
+         */
+        public Builder start(int start) {
+            this.start = start;
+            return this;
+        }
+
+        /**
+         * @param end   The ending epoch day for the simulation.
+         * @return  This builder.
+         */
+        public Builder end(int end) {
+            this.end = end;
+            return this;
+        }
+
+        /**
+         * @param startingCases The initial number of cases at the start.
+         * @return  This builder.
+         */
+        public Builder startingCases(int startingCases) {
+            this.startingCases = startingCases;
+            return this;
+        }
+
+        /**
+         * @param endingCases   The number of cases at the end of the simulation.
+         * @return  This builder.
+         */
+        public Builder endingCases(int endingCases) {
+            this.endingCases = endingCases;
+            return this;
+        }
+
+        /**
+         * @param seed  The seed for the random streams used by the simulation.
+         * @return  This builder.
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @return the seed for the random streams used by the simulation
+         */
+        long getSeed() {
+            return seed;
+        }
+
+        /**
+         * @param parallelism   The number of threads used to process hospitals.
+         * @return  This builder.
+         */
+        public Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @param locationGenerator The generator for hospital locations.
+         * @return  This builder.
+         */
+        public Builder locationGenerator(Generator<Location> locationGenerator) {
+            this.locationGenerator = locationGenerator;
+            return this;
+        }
+
+        /**
+         * @param patientGenerator  The generator for patients.
+         * @return  This builder.
+         */
+        public Builder patientGenerator(Generator<Patient> patientGenerator) {
+            this.patientGenerator = patientGenerator;
+            return this;
+        }
+
+        /**
+         * @param addressGenerator  The generator for patient addresses.
+         * @return  This builder.
+         */
+        public Builder addressGenerator(Generator<Address> addressGenerator) {
+            this.addressGenerator = addressGenerator;
+            return this;
+        }
+
+        /**
+         * @param demographics  The population to draw the demographics of new cases from, or null
+         *                      (the default) to select any available patient.  A simulation resumed
+         *                      from a checkpoint must be given the same population.
+         * @return  This builder.
+         */
+        public Builder demographics(DemographicSampler demographics) {
+            this.demographics = demographics;
+            return this;
+        }
+
+        /**
+         * @param sink  The sink to receive the outputs of the simulation.
+         * @return  This builder.
+         */
+        public Builder sink(SimulationSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        /**
+         * @param checkpointFile    The file to write checkpoints to.
+         * @param interval  The number of days between checkpoints, or 0 to disable checkpoints.
+         * @return  This builder.
+         */
+        public Builder checkpoint(File checkpointFile, int interval) {
+            this.checkpointFile = checkpointFile;
+            this.checkpointInterval = interval;
+            return this;
+        }
+
+        /**
+         * Create the simulation and its initial cases.
+         * @return  The simulation.
+         */
+        public CaseSimulator build() {
+            return new CaseSimulator(this, true);
+        }
+
+        /**
+         * Restore a simulation from a checkpoint.  The days, case counts and seed are
+         * taken from the checkpoint.  The location and patient generators must be
+         * initialized with the same data used for the simulation that wrote the checkpoint.
+         *
+         * @param f The checkpoint file.
+         * @return  The restored simulation, ready to continue from the day after the checkpoint.
+         * @throws IOException  If there is an error reading the checkpoint, or it does not match the loaded data.
+         */
+        public CaseSimulator resume(File f) throws IOException {
+            return CaseSimulator.restore(this, f);
+        }
+
+        private void validate() {
+            if (locationGenerator == null) {
+                locationGenerator = defaultLocationGenerator;
+            }
+            if (patientGenerator == null) {
+                patientGenerator = defaultPatientGenerator;
+            }
+            if (addressGenerator == null) {
+                addressGenerator = defaultAddressGenerator;
+            }
+            if (locationGenerator == null || patientGenerator == null) {
+                throw new IllegalStateException("Location and patient generators must be set");
+            }
+            if (end < start) {
+                throw new IllegalStateException("The end day " + Days.format(end) + " is before the start day " + Days.format(start));
+            }
+        }
+    }
 
+    /**
+     * @return a new builder for a simulation.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
 
     /**
      * Create a case simulator for the given time period that will generate
@@ -108,58 +339,99 @@ public class CaseSimulator {
      *
      * The shape of the cases is a simple linear interpolation from start to end.
      *
-     * @param start The starting date for the simulation.
-     * @param end   The ending date for the simulation.
+     * @param start The starting epoch day for the simulation.
+     * @param end   The ending epoch day for the simulation.
+     * @param startingCases The initial number of cases at the start.
+     * @param endingCases   The number of cases at the end of the simulation.
+     */
+    public CaseSimulator(int start, int end, int startingCases, int endingCases) {
+        this(start, end, startingCases, endingCases, Generator.SEED, 1);
+    }
+
+    /**
+     * Create a case simulator as above, which processes hospitals using the given number of threads.
+     * Each hospital has its own random stream derived from the seed, so the results of the simulation
+     * depend on the seed, but not on the number of threads.
+     *
+     * @param start The starting epoch day for the simulation.
+     * @param end   The ending epoch day for the simulation.
      * @param startingCases The initial number of cases at the start.
      * @param endingCases   The number of cases at the end of the simulation.
+     * @param seed  The seed for the random streams used by the simulation.
+     * @param parallelism   The number of threads used to process hospitals.
      */
-    public CaseSimulator(Date start, Date end, int startingCases, int endingCases) {
-        this.startDate = start;
-        this.endDate = end;
-        this.startingCases = startingCases;
-        this.endingCases = endingCases;
+    public CaseSimulator(int start, int end, int startingCases, int endingCases, long seed, int parallelism) {
+        this(builder().start(start).end(end).startingCases(startingCases).endingCases(endingCases)
+            .seed(seed).parallelism(parallelism), true);
+    }
+
+    private CaseSimulator(Builder b, boolean createInitialCases) {
+        b.validate();
+        this.startDay = b.start;
+        this.currentDay = b.start;
+        this.endDay = b.end;
+        this.startingCases = b.startingCases;
+        this.endingCases = b.endingCases;
+        this.seed = b.seed;
+        this.random = new Random(seed);
+        this.pool = b.parallelism > 1 ? new ForkJoinPool(b.parallelism) : null;
+        this.locationGenerator = b.locationGenerator;
+        this.patientGenerator = b.patientGenerator;
+        this.addressGenerator = b.addressGenerator;
+        this.demographics = b.demographics;
+        this.sink = b.sink;
+        setCheckpoint(b.checkpointFile, b.checkpointInterval);
         adjustRateOfChange();
         initializeHospitals();
-        createCases(startingCases, start);
+        if (createInitialCases) {
+            createCases(startingCases, startDay);
+        }
     }
 
     /**
-     * @return the locationGenerator
+     * @return the default locationGenerator
      */
     public static Generator<Location> getLocationGenerator() {
-        return locationGenerator;
+        return defaultLocationGenerator;
     }
     /**
-     * @param locationGenerator the locationGenerator to set
+     * @param locationGenerator the default locationGenerator to set
      */
     public static void setLocationGenerator(Generator<Location> locationGenerator) {
-        CaseSimulator.locationGenerator = locationGenerator;
+        CaseSimulator.defaultLocationGenerator = locationGenerator;
     }
 
     /**
-     * @return the patientGenerator
+     * @return the default patientGenerator
      */
     public static Generator<Patient> getPatientGenerator() {
-        return patientGenerator;
+        return defaultPatientGenerator;
     }
     /**
-     * @param patientGenerator the patientGenerator to set
+     * @param patientGenerator the default patientGenerator to set
      */
     public static void setPatientGenerator(Generator<Patient> patientGenerator) {
-        CaseSimulator.patientGenerator = patientGenerator;
+        CaseSimulator.defaultPatientGenerator = patientGenerator;
     }
 
     /**
-     * @return the addressGenerator
+     * @return the default addressGenerator
      */
     public static Generator<Address> getAddressGenerator() {
-        return addressGenerator;
+        return defaultAddressGenerator;
     }
     /**
-     * @param addressGenerator the AddressGenerator to set
+     * @param addressGenerator the default AddressGenerator to set
      */
     public static void setAddressGenerator(Generator<Address> addressGenerator) {
-        CaseSimulator.addressGenerator = addressGenerator;
+        CaseSimulator.defaultAddressGenerator = addressGenerator;
+    }
+
+    /**
+     * @return the sink receiving the outputs of this simulation
+     */
+    public SimulationSink getSink() {
+        return sink;
     }
     /**
      * @return the startingCount
@@ -191,32 +463,36 @@ public class CaseSimulator {
      * @return the sum of case counts for each hospital.
      */
     public int getTotalCases() {
-        return hospitals.stream().collect(Collectors.summingInt(h -> h.getHospitalBedsUsed()));
+        int total = 0;
+        for (Hospital h: hospitalList) {
+            total += h.getHospitalBedsUsed();
+        }
+        return total;
     }
     /**
-     * @return the startDate
+     * @return the start day as an epoch day
      */
-    public Date getStartDate() {
-        return startDate;
+    public int getStartDay() {
+        return startDay;
     }
     /**
-     * @param startDate the startDate to set
+     * @param startDay the start day to set as an epoch day
      */
-    public void setStartDate(Date startDate) {
-        this.startDate = startDate;
+    public void setStartDay(int startDay) {
+        this.startDay = startDay;
         adjustRateOfChange();
     }
     /**
-     * @return the endDate
+     * @return the end day as an epoch day
      */
-    public Date getEndDate() {
-        return endDate;
+    public int getEndDay() {
+        return endDay;
     }
     /**
-     * @param endDate the endDate to set
+     * @param endDay the end day to set as an epoch day
      */
-    public void setEndDate(Date endDate) {
-        this.endDate = endDate;
+    public void setEndDay(int endDay) {
+        this.endDay = endDay;
         adjustRateOfChange();
     }
 
@@ -225,10 +501,10 @@ public class CaseSimulator {
      * starting and ending number of cases.
      */
     private void adjustRateOfChange() {
-        if (startDate == null || endDate == null) {
+        int days = endDay - startDay;
+        if (days <= 0) {
             return;
         }
-        int days = lengthInDays(startDate, endDate);
         dailyRateOfChange = ((double)(endingCases - startingCases))/days;
     }
 
@@ -256,49 +532,88 @@ public class CaseSimulator {
     /**
      * Create the initial set of cases for the hospitals.
      */
-    public void createCases(int total, Date day) {
+    public void createCases(int total, int day) {
         // For each hospital, create the initial cases.
         // The initial number of cases is set to startingCount to ensure the appropriate start value.
         int totalBeds = hospitals.stream().collect(Collectors.summingInt(h -> h.getHospitalBeds()));
-        boolean isInitial = day.equals(startDate);
+        boolean isInitial = day == startDay;
 
-        Calendar cal = Calendar.getInstance();
-        for (Hospital h: hospitals) {
+        // Select patients for each hospital in hospital order, so that the patients
+        // assigned to a hospital do not depend on the number of threads.
+        List<List<Patient>> selected = new ArrayList<>(hospitalList.size());
+        for (Hospital h: hospitalList) {
 
             // Then determine number to create.
             int numCasesToCreate = (h.getHospitalBeds() * total) / totalBeds;
+            List<Patient> toAdd = new ArrayList<>(numCasesToCreate);
             for (int i = 0; i < numCasesToCreate; i++) {
-                if (patients.size() == 3980) {
-                    LOGGER.info("Got here!");
-                }
-                Case c = new Case(day, isInitial);
-                if ("21a35eab-cafe-49df-917d-5ceee14f223b".equals(c.getPatientId())) {
-                    LOGGER.info("Got here: {}", parser.encodeResourceToString(c.getPatient()));
-                }
-                if (!patients.add(c.getPatientId())) {
+                Patient p = Case.selectPatient(patientGenerator, demographics, random);
+                if (!patients.add(p.getIdElement().getIdPart())) {
                     LOGGER.warn("Duplicate Patient Added");
                 }
-                cal.setTime(day);
-                h.addCase(c);
+                toAdd.add(p);
             }
+            selected.add(toAdd);
             // Recompute total and totalBeds to adjust for rounding
             // errors.
             total -= numCasesToCreate;
             totalBeds -= h.getHospitalBeds();
             LOGGER.debug("Hospital: {}\tCases Added: {}", h.getName(), numCasesToCreate);
         }
+
+        // Create the cases for each hospital using the hospital's random stream.
+        List<List<Case>> created = new ArrayList<>(Collections.nCopies(hospitalList.size(), null));
+        forEachHospital(i -> {
+            Hospital h = hospitalList.get(i);
+            List<Case> cases = new ArrayList<>(selected.get(i).size());
+            for (Patient p: selected.get(i)) {
+                cases.add(new Case(day, isInitial, p, h.getRandom()));
+            }
+            created.set(i, cases);
+        });
+
+        // Admit the cases.  Patients may be shared with other simulations, so they are
+        // not modified here; the case keeps the date offset for the patient.
+        for (int i = 0; i < hospitalList.size(); i++) {
+            for (Case c: created.get(i)) {
+                hospitalList.get(i).addCase(c);
+            }
+        }
+    }
+
+    /**
+     * Run an action for the index of each hospital in hospitalList, in parallel
+     * if this simulator has a pool.
+     * @param action    The action to run.
+     */
+    private void forEachHospital(IntConsumer action) {
+        if (pool == null) {
+            IntStream.range(0, hospitalList.size()).forEach(action);
+            return;
+        }
+        try {
+            pool.submit(() -> IntStream.range(0, hospitalList.size()).parallel().forEach(action)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing hospitals", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Error processing hospitals", e.getCause());
+        }
     }
 
-    public void processActivity(Date day) {
+    public void processActivity(int day) {
+        currentDay = day;
         // For each case in each hospital, if it's end date is today, remove it
-        int totalCases = getTotalCases();
         int netChange = -removeInactiveCases(day);
 
         // Compute the target number of cases for the given day
-        int targetNumberOfCases = startingCases + (int)(lengthInDays(startDate, day) * this.dailyRateOfChange);
+        int targetNumberOfCases = startingCases + (int)((day - startDay) * this.dailyRateOfChange);
         // Adjust the number of cases based on the day of the week
         targetNumberOfCases = adjustForDayOfWeek(targetNumberOfCases, day);
-        totalCases = getTotalCases();
+        int totalCases = getTotalCases();
 
         // If more cases are needed
         if (totalCases < targetNumberOfCases) {
@@ -311,53 +626,39 @@ public class CaseSimulator {
 
     /**
      * Remove inactive cases for the given day
-     * @param day   The day for which to remove cases
+     * @param day   The epoch day for which to remove cases
      * @return  The number of cases removed.
      */
-    private int removeInactiveCases(Date day) {
-        String today = SDF.format(day);
-        int total = 0;
+    int removeInactiveCases(int day) {
+        int removed[] = new int[hospitalList.size()];
 
         // For each hospital
-        for (Hospital h: hospitals) {
-            List<Case> toRemove = new ArrayList<>();
-
-            // For each hoospital case
-            for (Iterator<Case> it = h.getCases().iterator(); it.hasNext();) {
-                Case c = it.next();
-                // If the end date is less than or equal to today
-                if (SDF.format(c.getEndDate()).compareTo(today) <= 0) {
-                    // Add the case to the list of cases to remove.
-                    toRemove.add(c);
-                }
-            }
-            // Remove each of the identified cases
-            toRemove.forEach(c -> h.removeCase(c));
-            total += toRemove.size();
-            LOGGER.debug("Hospital: {}\tCases Removed: {}", h.getName(), toRemove.size());
-        }
-        return total;
+        forEachHospital(i -> {
+            Hospital h = hospitalList.get(i);
+            // Discharge the cases whose end date is less than or equal to today
+            removed[i] = h.dischargeCases(day).size();
+            LOGGER.debug("Hospital: {}\tCases Removed: {}", h.getName(), removed[i]);
+        });
+        return IntStream.of(removed).sum();
     }
 
     /**
      * Adjust the number of cases based on the day of the week.
      * @param value The original target number of cases
-     * @param date  The date being adjusted for
+     * @param day   The epoch day being adjusted for
      * @return  The new target number of cases based on day oof week.
      */
-    int adjustForDayOfWeek(int value, Date date) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-        int dayOfWeek = cal.get(Calendar.DAY_OF_WEEK);
+    int adjustForDayOfWeek(int value, int day) {
+        int dayOfWeek = Days.dayOfWeek(day);
         // Adjust target number of cases to day of week (to represent weekend variation)
         // Use a waveform to adjust up or down, with the upper half occuring during the
         // week and the lower half over the weekend.
         double index[] = { -0.85, 0.31, 0.81, 1.00, 0.81, 0.31, -0.85 };
         double maxAdjustmentAmount = value * DAILY_VARIANCE;
-        double adjustmentAmount = maxAdjustmentAmount * index[dayOfWeek - Calendar.SUNDAY];
+        double adjustmentAmount = maxAdjustmentAmount * index[dayOfWeek];
 
         // Add some random variance
-        adjustmentAmount += (value * RANDOM_VARIANCE) * (Generator.RANDOM.nextFloat() - 0.5); // +/- random 2.5%
+        adjustmentAmount += (value * RANDOM_VARIANCE) * (random.nextFloat() - 0.5); // +/- random 2.5%
 
 
         return value + (int) Math.round(adjustmentAmount);
@@ -369,30 +670,236 @@ public class CaseSimulator {
     private void initializeHospitals() {
         Collection<Location> list = locationGenerator.getAll();
         for (Location l: list) {
-            hospitals.add(new Hospital(l));
+            Hospital h = new Hospital(l);
+            h.seed(seed);
+            hospitals.add(h);
+        }
+        hospitalList.addAll(hospitals);
+    }
+
+    /**
+     * @return the last day for which activity was processed, as an epoch day
+     */
+    public int getCurrentDay() {
+        return currentDay;
+    }
+
+    /**
+     * Write a checkpoint to the given file every interval days while running.
+     * @param checkpointFile    The file to write checkpoints to.
+     * @param interval  The number of days between checkpoints, or 0 to disable checkpoints.
+     */
+    public void setCheckpoint(File checkpointFile, int interval) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Process activity and report on each day from the current day to the end day,
+     * writing checkpoints as configured.
+     * @throws IOException  If there is an error writing a checkpoint.
+     */
+    public void run() throws IOException {
+        while (step()) {
+            // Keep going until the end day.
+        }
+    }
+
+    /**
+     * Process activity and report on the day after the current day, writing a
+     * checkpoint if one is due.  The start day is reported before the first step.
+     * @return  false if the simulation had already reached the end day.
+     * @throws IOException  If there is an error writing a checkpoint.
+     */
+    public boolean step() throws IOException {
+        if (currentDay >= endDay) {
+            return false;
+        }
+        if (currentDay == startDay) {
+            report(startDay);
+        }
+        int day = currentDay + 1;
+        processActivity(day);
+        report(day);
+        if (checkpointFile != null && checkpointInterval > 0 && (day - startDay) % checkpointInterval == 0) {
+            writeCheckpoint(checkpointFile);
+        }
+        return true;
+    }
+
+    /**
+     * Close the sink receiving the outputs of this simulation, and release its threads.
+     * @throws IOException  If there is an error closing the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        sink.close();
+    }
+
+    /**
+     * Write the state of the simulation to a compact binary checkpoint.  The checkpoint
+     * holds the hospitals, their current and historical cases as patient ids and days,
+     * the random streams owned by the simulation, and the patients remaining in the
+     * patient generator pool.  The file is replaced atomically.
+     *
+     * @param f The file to write the checkpoint to.
+     * @throws IOException  If there is an error writing the checkpoint.
+     */
+    public void writeCheckpoint(File f) throws IOException {
+        File temp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(startDay);
+            out.writeInt(endDay);
+            out.writeInt(startingCases);
+            out.writeInt(endingCases);
+            out.writeInt(currentDay);
+            out.writeLong(seed);
+            writeRandom(out, random);
+            out.writeInt(hospitalList.size());
+            for (Hospital h: hospitalList) {
+                out.writeUTF(h.getIdentifier());
+                writeRandom(out, h.getRandom());
+                Collection<Case> current = h.getCases();
+                out.writeInt(h.getAllCases().size());
+                for (Case c: h.getAllCases()) {
+                    out.writeUTF(c.getPatientId());
+                    out.writeInt(c.getStartDay());
+                    out.writeInt(c.getHospLOS());
+                    out.writeInt(c.getIcuLOS());
+                    out.writeInt(c.getOffset());
+                    out.writeBoolean(current.contains(c));
+                }
+            }
+            if (patientGenerator instanceof PatientGenerator) {
+                Collection<String> available = ((PatientGenerator) patientGenerator).getAvailable();
+                out.writeBoolean(true);
+                out.writeInt(available.size());
+                for (String id: available) {
+                    out.writeUTF(id);
+                }
+                writeRandom(out, ((PatientGenerator) patientGenerator).getRandom());
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+        Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Wrote checkpoint for {} to {}", Days.format(currentDay), f);
+    }
+
+    /**
+     * Restore a simulation from a checkpoint using the default generators.  The location
+     * and patient generators must be initialized with the same data used for the simulation
+     * that wrote the checkpoint.
+     *
+     * @param f The checkpoint file.
+     * @param parallelism   The number of threads used to process hospitals.
+     * @return  The restored simulation, ready to continue from the day after the checkpoint.
+     * @throws IOException  If there is an error reading the checkpoint, or it does not match the loaded data.
+     */
+    public static CaseSimulator resume(File f, int parallelism) throws IOException {
+        return builder().parallelism(parallelism).resume(f);
+    }
+
+    private static CaseSimulator restore(Builder b, File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f))))) {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                throw new IOException("Not a CaseSimulator checkpoint: " + f);
+            }
+            b.start(in.readInt()).end(in.readInt()).startingCases(in.readInt()).endingCases(in.readInt());
+            int current = in.readInt();
+            b.seed(in.readLong());
+            CaseSimulator sim = new CaseSimulator(b, false);
+            sim.currentDay = current;
+            sim.random = readRandom(in);
+
+            Map<String, Hospital> byId = new HashMap<>();
+            sim.hospitalList.forEach(h -> byId.put(h.getIdentifier(), h));
+            for (int i = in.readInt(); i > 0; i--) {
+                String id = in.readUTF();
+                Hospital h = byId.get(id);
+                if (h == null) {
+                    throw new IOException("Hospital " + id + " in checkpoint was not found");
+                }
+                h.setRandom(readRandom(in));
+                for (int j = in.readInt(); j > 0; j--) {
+                    String patientId = in.readUTF();
+                    int caseStart = in.readInt(), hospLOS = in.readInt(), icuLOS = in.readInt(), offset = in.readInt();
+                    boolean isCurrent = in.readBoolean();
+                    Patient p = sim.patientGenerator.generate(Collections.singletonMap("id", patientId));
+                    if (p == null) {
+                        throw new IOException("Patient " + patientId + " in checkpoint was not found");
+                    }
+                    Case c = new Case(p, caseStart, hospLOS, icuLOS, offset);
+                    sim.patients.add(patientId);
+                    h.restoreCase(c, isCurrent);
+                }
+            }
+            if (in.readBoolean()) {
+                List<String> available = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    available.add(in.readUTF());
+                }
+                Random patientRandom = readRandom(in);
+                if (sim.patientGenerator instanceof PatientGenerator) {
+                    ((PatientGenerator) sim.patientGenerator).setAvailable(available);
+                    ((PatientGenerator) sim.patientGenerator).setRandom(patientRandom);
+                }
+            }
+            LOGGER.info("Resumed from checkpoint for {} in {}", Days.format(current), f);
+            return sim;
+        }
+    }
+
+    private static void writeRandom(DataOutputStream out, Random r) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try (ObjectOutputStream o = new ObjectOutputStream(b)) {
+            o.writeObject(r);
+        }
+        out.writeInt(b.size());
+        b.writeTo(out);
+    }
+
+    private static Random readRandom(DataInputStream in) throws IOException {
+        byte data[] = new byte[in.readInt()];
+        in.readFully(data);
+        try (ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            o.setObjectInputFilter(info ->
+                info.serialClass() == null || info.serialClass() == Random.class ?
+                    ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED);
+            return (Random) o.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot read random state", e);
         }
     }
 
     /**
      * Run a simulation
      * @param args  The start and stop date
-     * @throws ParseException
      * @throws IOException
      */
-    public static void main(String args[]) throws ParseException, IOException {
+    public static void main(String args[]) throws IOException {
+        boolean resume = args.length > 1 && "-resume".equals(args[0]);
         if (args.length == 0) {
             args = new String[]{ "20210101", "20210131", "3992", "2476" };
-        } else if (args.length < 4) {
-            System.out.println("Usage: CaseSimulator startDate stopDate startingCaseCount endingCaseCount");
+        } else if (args.length < 4 && !resume) {
+            System.out.println("Usage: CaseSimulator startDate stopDate startingCaseCount endingCaseCount [threads [checkpointDays]]");
+            System.out.println("       CaseSimulator -resume checkpointFile [threads [checkpointDays]]");
             System.exit(1);
         }
-        // Clean out an existing, or create a new storage location.
-        if (DATA_FOLDER.exists()) {
+        int argPos = resume ? 2 : 4;
+        int threads = args.length > argPos ? Integer.parseInt(args[argPos]) : 1;
+        int checkpointDays = args.length > argPos + 1 ? Integer.parseInt(args[argPos + 1]) : 0;
+        File checkpoint = resume ? new File(args[1]) : new File(DATA_FOLDER, "checkpoint.bin");
+
+        if (!resume && DATA_FOLDER.exists()) {
+            // Clean out an existing storage location, a resumed simulation continues the existing report.
             FileUtils.cleanDirectory(DATA_FOLDER);
-        } else {
-            DATA_FOLDER.mkdirs();
         }
-        OUT = new PrintWriter(new File(DATA_FOLDER, "report.txt"));
 
         // Create and initialize data generators
         LocationGenerator l = new LocationGenerator();
@@ -401,73 +908,69 @@ public class CaseSimulator {
         p.initialize();
         AddressGenerator a = new AddressGenerator();
         a.initialize();
-        CaseSimulator.setLocationGenerator(l);
-        CaseSimulator.setPatientGenerator(p);
-        CaseSimulator.setAddressGenerator(a);
 
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-        CaseSimulator sim = new CaseSimulator(sdf.parse(args[0]), sdf.parse(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]));
-        sim.report(sim.startDate);
-
-        Calendar day = Calendar.getInstance();
-        day.setTime(sim.startDate);
-        while (day.getTime().compareTo(sim.endDate) < 0) {
-            day.add(Calendar.DATE, 1);
-            sim.processActivity(day.getTime());
-            sim.report(day.getTime());
+        Builder builder = builder()
+            .locationGenerator(l).patientGenerator(p).addressGenerator(a)
+            .sink(new FileSink(DATA_FOLDER, resume).setEcho(System.out))
+            .parallelism(threads)
+            .checkpoint(checkpoint, checkpointDays);
+        if (!resume) {
+            builder.start(Days.parse(args[0])).end(Days.parse(args[1]))
+                .startingCases(Integer.parseInt(args[2])).endingCases(Integer.parseInt(args[3]));
+        }
+        try (CaseSimulator sim = resume ? builder.resume(checkpoint) : builder.build()) {
+            sim.run();
+            sim.writeClinicalData();
         }
-        sim.collectAndWriteClinicalData(DATA_FOLDER);
     }
 
     /**
      * For each case, collect the clinical data associated with the patient in it,
-     * and write it to a file associated with the patient.
+     * and write it to the sink.
      * @throws IOException  If there is an error writing the data.
      */
-    private void collectAndWriteClinicalData(File storageLocation) throws IOException {
+    public void writeClinicalData() throws IOException {
 
-        Set<String> allPatients = new HashSet<>();
+        outputPatients.clear();
 
         // For each hospital
         int totalPatients = 0;
         for (Hospital h: hospitals) {
-            // Create a folder for the cases for a given hospital location
-            File hDir = new File(storageLocation, h.getLocation().getIdElement().getIdPart());
-            if (!hDir.exists()) {
-                hDir.mkdirs();
-            }
-
             // For all cases that occurred at the hospital
             for (Case c: h.getAllCases()) {
-                // Get the matching patient
-                String patientId = c.getPatient().getIdElement().getIdPart();
-                allPatients.add(patientId);
-                Patient p = c.getPatient();
-                //getPatientGenerator().generate(Collections.singletonMap("id", c.getPatientId()));
-
-                // Set the file location for the data for this patient.
-                File destination = new File(hDir, patientId + ".ndjson");
-                p.setUserData("file", destination);
+                // Copy the matching patient, since the loaded patient may be shared
+                Patient p = copyForOutput(c);
+                outputPatients.put(p.getIdElement().getIdPart(), p);
 
                 // Select an address for the patient appropriate to the location
-                adjustPatientAddressForLocation(h.getLocation(), p);
+                if (addressGenerator != null) {
+                    adjustPatientAddressForLocation(h, p);
+                }
 
-                // Write the patient record to the file
-                writeData(p, p);
+                // Write the patient record
+                shiftDates(p, p.getUserInt("offset"));
+                sink.patient(h, p);
             }
             printf("%-64s%6d\n", h.getName(), h.getAllCases().size());
             totalPatients += h.getAllCases().size();
         }
-        printf("%-64s%6d %6d\n", "Total", allPatients.size(), totalPatients);
+        printf("%-64s%6d %6d\n", "Total", outputPatients.size(), totalPatients);
 
         // Collect and store additional clinical data for each patient.
-        storeResourcesForPatients(Encounter.class, "encounters.csv", allPatients);
-        storeResourcesForPatients(Condition.class, "conditions.csv", allPatients);
-        storeResourcesForPatients(AllergyIntolerance.class, "allergies.csv", allPatients);
-        storeResourcesForPatients(ImagingStudy.class, "imaging_studies.csv", allPatients);
-        storeResourcesForPatients(MedicationStatement.class, "medications.csv", allPatients);
-        storeResourcesForPatients(Observation.class, "observations.csv", allPatients);
-        storeResourcesForPatients(Procedure.class, "procedures.csv", allPatients);
+        storeResourcesForPatients(outputPatients.keySet());
+    }
+
+    /**
+     * Copy the patient for a case, with the data needed to write the patient's records.
+     * @param c The case.
+     * @return  The copy of the patient.
+     */
+    private static Patient copyForOutput(Case c) {
+        Patient source = c.getPatient(), p = source.copy();
+        p.setUserData("encounter", source.getUserData("encounter"));
+        p.setUserData("icu", source.getUserData("icu"));
+        p.setUserData("offset", c.getOffset());
+        return p;
     }
 
     /**
@@ -475,57 +978,69 @@ public class CaseSimulator {
      * that 50% of patients are within the Hospital Service Area, and 100%
      * are within the Hospital Referral Region.
      *
-     * @param hospitalLocation  The location of the hospital associated with the patient.
+     * @param h   The hospital associated with the patient.
      * @param p The patient
      */
-    private void adjustPatientAddressForLocation(Location hospitalLocation, Patient p) {
-        String zip = hospitalLocation.getAddress().getPostalCode();
+    private void adjustPatientAddressForLocation(Hospital h, Patient p) {
+        String zip = h.getLocation().getAddress().getPostalCode();
 
-        Address newLoc = getAddressGenerator().generate(Collections.singletonMap("zip", zip));
+        Map<String, String> properties = Collections.singletonMap("zip", zip);
+        // Use the hospital's random stream when possible, so that addresses don't depend on other simulations
+        Address newLoc = addressGenerator instanceof AddressGenerator ?
+            ((AddressGenerator) addressGenerator).generate(properties, h.getRandom()) :
+            addressGenerator.generate(properties);
         p.getAddress().clear();
         p.getAddress().add(newLoc);
     }
 
     /**
-     * Store the clinical resources associated with the patient.
-     * @param <T>   The resource type.
-     * @param type  The class representing the resource type.
-     * @param file  The file where the resource is loaded.
+     * Store the clinical resources associated with the patients.  All of the clinical
+     * data tables are read concurrently, and the resources written from this thread.
      * @param patients  The patients for whom data should be stored.
+     * @throws IOException  If there is an error reading the data.
      */
-    private <T extends Resource> void storeResourcesForPatients(Class<T> type, String file, Set<String> patients) {
-        int count[] = new int[2];
-        printf("Reading %s Resources\n", type.getSimpleName());
-        Set<String> foundPatients = new HashSet<String>();
-        CsvResourceLoader.createResources(
-            type, PatientGenerator.DATA_URL + file, CsvResourceLoader.getMap(type.getSimpleName()),
-            r -> {
-                Reference pat = getPatientReference(r);
-                int scale = (r instanceof Observation) ? 1000 : 100;
-                if (pat != null) {
-                    Patient patient = getPatientByReference(pat);
-                    if (patient != null) {
-                        try {
-                            writeData(patient, r);
-                            foundPatients.add(pat.getReferenceElement().getIdPart());
-                        } catch (DataFormatException | IOException e) {
-                            LOGGER.error("Unexcpected exception writing resource {}", r.getId(), e);
-                        }
-                        updateCountAndStatus(count, scale);
-                    } else {
-                        LOGGER.error("Could not find {}", pat);
+    private void storeResourcesForPatients(Set<String> patients) throws IOException {
+        ClinicalDataPipeline pipeline = new ClinicalDataPipeline(PatientGenerator.getDataUrl())
+            .add(Encounter.class, "encounters.csv")
+            .add(Condition.class, "conditions.csv")
+            .add(AllergyIntolerance.class, "allergies.csv")
+            .add(ImagingStudy.class, "imaging_studies.csv")
+            .add(MedicationStatement.class, "medications.csv")
+            .add(Observation.class, "observations.csv")
+            .add(Procedure.class, "procedures.csv");
+
+        Map<ClinicalDataPipeline.Table, int[]> counts = new HashMap<>();
+        Map<ClinicalDataPipeline.Table, Set<String>> foundPatients = new HashMap<>();
+        for (ClinicalDataPipeline.Table t: pipeline.getTables()) {
+            printf("Reading %s Resources\n", t.getType().getSimpleName());
+            counts.put(t, new int[1]);
+            foundPatients.put(t, new HashSet<>());
+        }
+        pipeline.run("PATIENT", new CharSequenceSet(patients), (t, r) -> {
+            Reference pat = getPatientReference(r);
+            if (pat != null) {
+                Patient patient = getPatientByReference(pat);
+                if (patient != null) {
+                    try {
+                        writeData(patient, r);
+                        foundPatients.get(t).add(pat.getReferenceElement().getIdPart());
+                    } catch (DataFormatException | IOException e) {
+                        LOGGER.error("Unexcpected exception writing resource {}", r.getId(), e);
                     }
+                    counts.get(t)[0]++;
                 } else {
-                    LOGGER.error("No Patient Reference in {}", r.getId());
+                    LOGGER.error("Could not find {}", pat);
                 }
-                return true;
-            }, "PATIENT", p -> {
-                count[1]++;
-                return patients.contains(p);
-            }, 0);
-        println();
-        printf("Selected/Total %s records: %d/%d\n", type.getSimpleName(), count[0], count[1]);
-        printf("Selected/Total patients: %d/%d\n", foundPatients.size(), patients.size());
+            } else {
+                LOGGER.error("No Patient Reference in {}", r.getId());
+            }
+        });
+        for (ClinicalDataPipeline.Table t: pipeline.getTables()) {
+            String type = t.getType().getSimpleName();
+            printf("Selected/Total %s records: %d/%d\n", type, counts.get(t)[0], t.getRowsTested());
+            printf("Selected/Total %s patients: %d/%d\n", type, foundPatients.get(t).size(), patients.size());
+        }
+        LOGGER.info("Stored clinical data, loader {}", CsvResourceLoader.getMetrics());
     }
 
     /**
@@ -547,32 +1062,13 @@ public class CaseSimulator {
         return pat;
     }
 
-    /**
-     * Update the referenced count variable, and report status
-     * every scale events.
-     * @param count The count to update.
-     * @param scale The scale for status updates.
-     */
-    private static void updateCountAndStatus(int[] count, int scale) {
-        if ((++count[0]) % scale == 0) {
-            printf(".");
-            if (count[0]/scale % 100 == 0) {
-                println();
-            }
-        }
-    }
-
     /**
      * Get patient by reference.
      * @param pat   The referenced patient.
-     * @return  The matching patient from the Patient generator
+     * @return  The matching patient written for this simulation
      */
     private Patient getPatientByReference(Reference pat) {
-        String patId = pat.getReferenceElement().getIdPart();
-        Patient patient = getPatientGenerator().generate(
-                Collections.singletonMap("id", patId)
-            );
-        return patient;
+        return outputPatients.get(pat.getReferenceElement().getIdPart());
     }
 
     /**
@@ -580,14 +1076,9 @@ public class CaseSimulator {
      * @param patient   The patient whose data is being writteen
      * @param r The resource to store
      * @throws DataFormatException  If there is an error encoding the resource
-     * @throws IOException  If there is an error writing the string to the file.
+     * @throws IOException  If there is an error writing the resource to the sink.
      */
-    private void writeData(Patient patient, Resource r) throws DataFormatException, IOException {
-        // Get the date offset for patient related events
-        int dateOffset = patient.getUserInt("offset");
-        Calendar cal = Calendar.getInstance();
-        // Get the file where this patient's data is to be written.
-        File f = (File) patient.getUserData("file");
+    void writeData(Patient patient, Resource r) throws DataFormatException, IOException {
 
         // If this resource is an encounter, see if it's "the COVID-19 encounter"
         if (r instanceof Encounter) {
@@ -607,13 +1098,18 @@ public class CaseSimulator {
                 return;
             }
         }
-        for (BaseDateTimeType t: terser.getAllPopulatedChildElementsOfType(r, BaseDateTimeType.class)) {
-            // Shift events in time to match the encounter date
-            cal.setTime(t.getValue());
-            cal.add(Calendar.DATE, dateOffset);
-            t.setValue(cal.getTime());
-        }
-        FileUtils.writeStringToFile(f, parser.encodeResourceToString(r) + "\n", StandardCharsets.UTF_8, true);
+        // Shift events in time to match the encounter date
+        shiftDates(r, patient.getUserInt("offset"));
+        sink.resource(patient, r);
+    }
+
+    /**
+     * Shift all dates in a resource by the given number of days.
+     * @param r The resource to adjust.
+     * @param dateOffset    The number of days to shift by.
+     */
+    private void shiftDates(Resource r, int dateOffset) {
+        Dates.shiftAll(terser, r, dateOffset);
     }
 
     /**
@@ -644,23 +1140,17 @@ public class CaseSimulator {
     /**
      * Report on hospital and ICU bed utization for each hospital on the given date.
      * This data can be used to validate a measure counting hospital and ICU Bed Utilization
-     * @param day   The date for which the report is generated.
+     * @param day   The epoch day for which the report is generated.
      */
-    private void report(Date day) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        String reportDate = sdf.format(day);
+    private void report(int day) {
+        String reportDate = Days.format(day);
         printf("--------%s---------\n", reportDate);
         for (Hospital h: hospitals) {
-            printf("%s\t%s\t%d\t%d\n", reportDate, h.getName(), h.getHospitalBedsUsed(), h.getIcuBedsUsed(day));
+            sink.census(day, h, h.getHospitalBedsUsed(), h.getIcuBedsUsed(day));
         }
     }
 
-    private static void println() {
-        System.out.println();
-        OUT.println();
-    }
-    private static void printf(String fmt, Object ... args) {
-        System.out.printf(fmt, args);
-        OUT.printf(fmt, args);
+    private void printf(String fmt, Object ... args) {
+        sink.report(String.format(fmt, args));
     }
 }
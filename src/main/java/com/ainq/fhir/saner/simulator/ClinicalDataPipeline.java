@@ -0,0 +1,262 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ainq.fhir.saner.sampledata.ColumnFilter;
+import com.ainq.fhir.saner.sampledata.CsvResourceLoader;
+
+/**
+ * Reads several CSV tables concurrently, converting their rows to resources on a pool
+ * of worker threads, and hands the resources to a single writer on the calling thread.
+ * Each table is read on its own reader thread, which hands batches of rows to one pool
+ * of converter threads shared by all the tables.  The tables feed the writer through a
+ * bounded queue, so readers wait when the writer falls behind.  Resources from any one
+ * table reach the writer in table order.
+ */
+public class ClinicalDataPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClinicalDataPipeline.class);
+    /** The default capacity of the queue between the readers and the writer */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    /** The default number of converter threads shared by the tables */
+    public static final int DEFAULT_CONVERTERS = Runtime.getRuntime().availableProcessors();
+
+    /** The stage that receives the converted resources */
+    public interface ResourceWriter {
+        /**
+         * Write a resource.
+         * @param table The table the resource was read from.
+         * @param r The resource to write.
+         * @throws IOException  If an error occurs writing the resource.
+         */
+        void write(Table table, Resource r) throws IOException;
+    }
+
+    /** A table to be read by the pipeline */
+    public static class Table {
+        private final Class<? extends Resource> type;
+        private final String file;
+        private final AtomicInteger rowsTested = new AtomicInteger();
+        private int written;
+
+        private Table(Class<? extends Resource> type, String file) {
+            this.type = type;
+            this.file = file;
+        }
+
+        /**
+         * @return the type of resource created from the table
+         */
+        public Class<? extends Resource> getType() {
+            return type;
+        }
+
+        /**
+         * @return the name of the file containing the table
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return the number of rows tested by the filter
+         */
+        public int getRowsTested() {
+            return rowsTested.get();
+        }
+
+        /**
+         * @return the number of resources handed to the writer
+         */
+        public int getWritten() {
+            return written;
+        }
+    }
+
+    /** An entry in the queue, with a null resource marking the end of a table */
+    private static class Item {
+        private final Table table;
+        private final Resource resource;
+        private Item(Table table, Resource resource) {
+            this.table = table;
+            this.resource = resource;
+        }
+    }
+
+    private final String baseUrl;
+    private final List<Table> tables = new ArrayList<>();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int threads = 0;
+    private int converters = DEFAULT_CONVERTERS;
+
+    /**
+     * Create a pipeline for tables found at the given location.
+     * @param baseUrl   The URL of the folder containing the tables.
+     */
+    public ClinicalDataPipeline(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Add a table to the pipeline.
+     * @param type  The type of resource to create from the table.
+     * @param file  The name of the file containing the table.
+     * @return  This pipeline.
+     */
+    public ClinicalDataPipeline add(Class<? extends Resource> type, String file) {
+        tables.add(new Table(type, file));
+        return this;
+    }
+
+    /**
+     * @param queueCapacity The capacity of the queue between the readers and the writer.
+     * @return  This pipeline.
+     */
+    public ClinicalDataPipeline setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        return this;
+    }
+
+    /**
+     * @param threads   The number of reader threads, or 0 to use one per table.
+     * @return  This pipeline.
+     */
+    public ClinicalDataPipeline setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param converters    The number of threads converting the rows of all tables to resources,
+     *                      or 1 or fewer to convert them on the reader threads.
+     * @return  This pipeline.
+     */
+    public ClinicalDataPipeline setConverters(int converters) {
+        this.converters = converters;
+        return this;
+    }
+
+    /**
+     * @return the tables in this pipeline.
+     */
+    public List<Table> getTables() {
+        return tables;
+    }
+
+    /**
+     * Read all tables, passing the resources for rows whose field matches the filter to the writer.
+     * @param field The field to filter rows on.
+     * @param filter    The filter to apply to the field.
+     * @param writer    The writer to receive the resources.
+     * @throws IOException  If the writer reports an error.
+     */
+    public void run(String field, Predicate<String> filter, ResourceWriter writer) throws IOException {
+        if (tables.isEmpty()) {
+            return;
+        }
+        int poolSize = threads <= 0 ? tables.size() : Math.min(threads, tables.size());
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "csv-reader-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger converterCount = new AtomicInteger();
+        ExecutorService convert = converters <= 1 ? null : Executors.newFixedThreadPool(converters, r -> {
+            Thread t = new Thread(r, "csv-convert-" + converterCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Each table may read two batches per converter ahead of the writer, shared out among the tables
+        int batches = Math.max(2, 2 * converters / tables.size());
+        BlockingQueue<Item> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        List<Future<?>> readers = new ArrayList<>();
+        try {
+            for (Table t: tables) {
+                readers.add(executor.submit(() -> read(t, field, filter, queue, cancelled, convert, batches)));
+            }
+            int remaining = tables.size();
+            while (remaining > 0) {
+                Item item = queue.take();
+                if (item.resource == null) {
+                    remaining--;
+                } else {
+                    item.table.written++;
+                    writer.write(item.table, item.resource);
+                }
+            }
+            for (Future<?> f: readers) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading tables", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Error reading tables", e.getCause());
+        } finally {
+            cancelled.set(true);
+            executor.shutdownNow();
+            if (convert != null) {
+                convert.shutdownNow();
+            }
+        }
+    }
+
+    private void read(Table t, String field, Predicate<String> filter, BlockingQueue<Item> queue, AtomicBoolean cancelled,
+        Executor convert, int batches) {
+        ColumnFilter test = ColumnFilter.of(filter), counted = v -> {
+            t.rowsTested.incrementAndGet();
+            return test.matches(v);
+        };
+        String map[] = CsvResourceLoader.getMap(t.type.getSimpleName());
+        try {
+            if (convert == null) {
+                CsvResourceLoader.createResources(t.type, baseUrl + t.file, map, r -> put(queue, new Item(t, r), cancelled), field, counted, 0);
+            } else {
+                CsvResourceLoader.createResources(t.type, baseUrl + t.file, map, r -> put(queue, new Item(t, r), cancelled), field, counted, 0, convert, batches, true);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Error reading {}", t.file, e);
+            throw e;
+        } finally {
+            put(queue, new Item(t, null), cancelled);
+        }
+    }
+
+    /**
+     * Put an item in the queue, waiting for space unless the pipeline has been cancelled.
+     * @return  true if the item was queued, false if the pipeline was cancelled.
+     */
+    private static boolean put(BlockingQueue<Item> queue, Item item, AtomicBoolean cancelled) {
+        try {
+            while (!cancelled.get()) {
+                if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.util.Arrays;
+
+/**
+ * Counts the number of intervals of epoch days covering each day.  Intervals are
+ * recorded in a difference array, and the counts are the prefix sums of that array,
+ * which are computed lazily and only recomputed from the earliest day changed since
+ * the last query.  Since intervals are mostly added at or near the day being queried,
+ * both adding an interval and getting the count for a day are effectively O(1).
+ */
+final class DayCounts {
+    private static final int INITIAL_SIZE = 64;
+    /** The epoch day of the first entry in the arrays */
+    private int base;
+    /** The change in the count on each day */
+    private int diff[] = new int[0];
+    /** The count on each day, valid for entries before valid */
+    private int counts[] = new int[0];
+    private int valid = 0;
+
+    /**
+     * Add (or with a negative amount, remove) an interval of days.
+     * @param from  The first epoch day in the interval.
+     * @param to    The epoch day after the last day in the interval.
+     * @param amount    The amount to add to the count for each day in the interval.
+     */
+    void add(int from, int to, int amount) {
+        if (to <= from) {
+            return;
+        }
+        ensureRange(from, to);
+        diff[from - base] += amount;
+        diff[to - base] -= amount;
+        valid = Math.min(valid, from - base);
+    }
+
+    /**
+     * @param day   The epoch day.
+     * @return  The count for the day.
+     */
+    int get(int day) {
+        int index = day - base;
+        if (index < 0 || diff.length == 0) {
+            return 0;
+        }
+        if (index >= diff.length) {
+            // Every interval has ended by the last entry.
+            index = diff.length - 1;
+        }
+        if (index >= valid) {
+            int sum = valid == 0 ? 0 : counts[valid - 1];
+            for (int i = valid; i <= index; i++) {
+                sum += diff[i];
+                counts[i] = sum;
+            }
+            valid = index + 1;
+        }
+        return counts[index];
+    }
+
+    private void ensureRange(int from, int to) {
+        if (diff.length == 0) {
+            base = from;
+            diff = new int[Math.max(INITIAL_SIZE, to - from + 1)];
+            counts = new int[diff.length];
+            return;
+        }
+        if (from < base) {
+            // Grow downward, shifting the existing entries up
+            int shift = Math.max(base - from, INITIAL_SIZE);
+            int newDiff[] = new int[diff.length + shift];
+            System.arraycopy(diff, 0, newDiff, shift, diff.length);
+            diff = newDiff;
+            counts = new int[diff.length];
+            base -= shift;
+            valid = 0;
+        }
+        if (to - base >= diff.length) {
+            int size = Math.max(diff.length * 2, to - base + 1);
+            diff = Arrays.copyOf(diff, size);
+            counts = Arrays.copyOf(counts, size);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+import org.hl7.fhir.r4.model.DateTimeType;
+
+/**
+ * The simulator represents days as int epoch days (days since 1970-01-01 in the
+ * default time zone).  This class converts between epoch days and the date
+ * representations used at the input and output boundaries of the simulation.
+ */
+public final class Days {
+    private Days() {
+    }
+
+    /**
+     * Convert a date to the epoch day on which it falls in the default time zone.
+     * @param date  The date to convert.
+     * @return  The epoch day for the date.
+     */
+    public static int of(Date date) {
+        return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+
+    /**
+     * Parse a date in yyyyMMdd format into an epoch day.
+     * @param value The date to parse.
+     * @return  The epoch day for the date.
+     */
+    public static int parse(String value) {
+        return (int) LocalDate.parse(value, DateTimeFormatter.BASIC_ISO_DATE).toEpochDay();
+    }
+
+    /**
+     * Format an epoch day in yyyy-MM-dd format.
+     * @param day   The epoch day.
+     * @return  The formatted day.
+     */
+    public static String format(int day) {
+        return LocalDate.ofEpochDay(day).toString();
+    }
+
+    /**
+     * @param day   The epoch day.
+     * @return  The start of the day in the default time zone.
+     */
+    public static Date toDate(int day) {
+        return Date.from(LocalDate.ofEpochDay(day).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * @param day   The epoch day.
+     * @return  The start of the day as a FHIR dateTime.
+     */
+    public static DateTimeType toDateTimeType(int day) {
+        return new DateTimeType(toDate(day));
+    }
+
+    /**
+     * Return the day of the week for an epoch day, with Sunday as 0 and Saturday as 6.
+     * @param day   The epoch day.
+     * @return  The day of the week.
+     */
+    public static int dayOfWeek(int day) {
+        // 1970-01-01 was a Thursday
+        return Math.floorMod(day + 4, 7);
+    }
+}
@@ -0,0 +1,162 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Draws the demographics of a case (race, ethnicity, age and gender) from a target population,
+ * as the properties passed to a patient generator.  Race, ethnicity, age group and gender are
+ * independent, and the whole combination is drawn at once from a precomputed alias table, so a
+ * draw takes constant time however many combinations there are.  The age is then drawn
+ * uniformly within the age group.
+ *
+ * A sampler is not modified once created, and may be used from several threads with their own
+ * sources of random numbers.
+ */
+public final class DemographicSampler {
+    private final String races[][];
+    private final String ethnicities[];
+    private final int ageBounds[];
+    private final String genders[] = { "male", "female" };
+    private final AliasTable table;
+
+    /**
+     * Create a sampler.  Weights need not add up to one.
+     *
+     * @param races The race codes.
+     * @param raceWeights   The weight of each race.
+     * @param multipleRaces The weight of having two races, which are drawn from the races by their weights.
+     * @param ethnicities   The ethnicity codes.
+     * @param ethnicityWeights  The weight of each ethnicity.
+     * @param ageBounds The lower bound of each age group, followed by the upper bound of the last.
+     * @param ageWeights    The weight of each age group.
+     * @param male  The proportion of males.
+     */
+    public DemographicSampler(String races[], double raceWeights[], double multipleRaces,
+        String ethnicities[], double ethnicityWeights[], int ageBounds[], double ageWeights[], double male) {
+        if (races.length != raceWeights.length || ethnicities.length != ethnicityWeights.length ||
+            ageBounds.length != ageWeights.length + 1) {
+            throw new IllegalArgumentException("Each value must have a weight");
+        }
+        this.ethnicities = ethnicities.clone();
+        this.ageBounds = ageBounds.clone();
+
+        // Single races, followed by each pair of races
+        int pairs = races.length * (races.length - 1) / 2;
+        this.races = new String[races.length + pairs][];
+        double raceOption[] = new double[this.races.length], pairTotal = 0;
+        for (int i = 0, k = races.length; i < races.length; i++) {
+            this.races[i] = new String[] { races[i] };
+            raceOption[i] = raceWeights[i];
+            for (int j = i + 1; j < races.length; j++, k++) {
+                this.races[k] = new String[] { races[i], races[j] };
+                raceOption[k] = raceWeights[i] * raceWeights[j];
+                pairTotal += raceOption[k];
+            }
+        }
+        for (int k = races.length; k < raceOption.length && pairTotal > 0; k++) {
+            raceOption[k] *= multipleRaces / pairTotal;
+        }
+
+        double weights[] = new double[this.races.length * ethnicities.length * ageWeights.length * genders.length];
+        int i = 0;
+        for (double r: raceOption) {
+            for (double e: ethnicityWeights) {
+                for (double a: ageWeights) {
+                    weights[i++] = r * e * a * male;
+                    weights[i++] = r * e * a * (1 - male);
+                }
+            }
+        }
+        table = new AliasTable(weights);
+    }
+
+    /**
+     * @return  A sampler for the population of the United States, by the 2019 census estimates.
+     */
+    public static DemographicSampler usPopulation() {
+        return new DemographicSampler(
+            new String[] { "2106-3", "2054-5", "1002-5", "2028-9", "2076-8" },
+            // White, Black or African American, American Indian or Alaska Native, Asian, Native Hawaiian or Other Pacific Islander
+            new double[] { 0.654, 0.238, 0.007, 0.079, 0.001 }, 0.021,
+            new String[] { "2135-2", "2186-5" },
+            // Hispanic, Non-Hispanic
+            new double[] { 0.256, 0.744 },
+            new int[] { 0, 5, 10, 15, 20, 25, 35, 45, 55, 60, 65, 75, 85, 100 },
+            new double[] { 0.060, 0.057, 0.063, 0.060, 0.063, 0.163, 0.136, 0.124, 0.062, 0.061, 0.087, 0.045, 0.020 },
+            0.479);
+    }
+
+    /**
+     * Draw the demographics for a case.
+     * @param random    The source of random numbers.
+     * @return  The properties for {@link com.ainq.fhir.saner.sampledata.Generator#generate(Map)}: race0,
+     *          race1 for a second race, ethnicity, age and gender.
+     */
+    public Map<String, String> sample(Random random) {
+        int i = table.sample(random);
+        int gender = i % genders.length;
+        i /= genders.length;
+        int ageGroup = i % (ageBounds.length - 1);
+        i /= ageBounds.length - 1;
+        int ethnicity = i % ethnicities.length;
+        String race[] = races[i / ethnicities.length];
+
+        Map<String, String> properties = new HashMap<>();
+        for (int r = 0; r < race.length; r++) {
+            properties.put("race" + r, race[r]);
+        }
+        properties.put("ethnicity", ethnicities[ethnicity]);
+        int age = ageBounds[ageGroup] + random.nextInt(ageBounds[ageGroup + 1] - ageBounds[ageGroup]);
+        properties.put("age", Integer.toString(age));
+        properties.put("gender", genders[gender]);
+        return properties;
+    }
+
+    /**
+     * Vose's alias method: each of n columns holds a value and, for the rest of its height,
+     * an alias, so a value is drawn with one random column and one random comparison.
+     */
+    private static final class AliasTable {
+        private final double probability[];
+        private final int alias[];
+
+        private AliasTable(double weights[]) {
+            int n = weights.length;
+            double total = 0;
+            for (double w: weights) {
+                total += w;
+            }
+            probability = new double[n];
+            alias = new int[n];
+            double scaled[] = new double[n];
+            Deque<Integer> small = new ArrayDeque<>(), large = new ArrayDeque<>();
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * n / total;
+                (scaled[i] < 1 ? small : large).push(i);
+            }
+            while (!small.isEmpty() && !large.isEmpty()) {
+                int s = small.pop(), l = large.pop();
+                probability[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] -= 1 - scaled[s];
+                (scaled[l] < 1 ? small : large).push(l);
+            }
+            // What is left is 1 but for rounding
+            while (!large.isEmpty()) {
+                probability[large.pop()] = 1;
+            }
+            while (!small.isEmpty()) {
+                probability[small.pop()] = 1;
+            }
+        }
+
+        private int sample(Random random) {
+            int i = random.nextInt(probability.length);
+            return random.nextDouble() < probability[i] ? i : alias[i];
+        }
+    }
+}
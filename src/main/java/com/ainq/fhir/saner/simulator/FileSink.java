@@ -0,0 +1,109 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Writes the outputs of a simulation to a folder.  The report is written to
+ * report.txt, and the resources for each patient to hospitalId/patientId.ndjson.
+ */
+public class FileSink implements SimulationSink {
+    private final File folder;
+    private final PrintWriter out;
+    private final NdjsonWriterPool writers;
+    /** The file for each patient that has been written */
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private PrintStream echo;
+
+    /**
+     * Create a sink writing to the given folder, replacing any existing report.
+     * @param folder    The folder to write to.
+     * @throws IOException  If the report cannot be created.
+     */
+    public FileSink(File folder) throws IOException {
+        this(folder, false);
+    }
+
+    /**
+     * Create a sink writing to the given folder.
+     * @param folder    The folder to write to.
+     * @param append    True to append to an existing report, as when resuming a simulation.
+     * @throws IOException  If the report cannot be created.
+     */
+    public FileSink(File folder, boolean append) throws IOException {
+        this.folder = folder;
+        folder.mkdirs();
+        out = new PrintWriter(new FileWriter(new File(folder, "report.txt"), append));
+        writers = new NdjsonWriterPool(FhirContext.forR4().newJsonParser().setPrettyPrint(false));
+    }
+
+    /**
+     * @param echo  A stream to which report text is also written, or null for none.
+     * @return  This sink.
+     */
+    public FileSink setEcho(PrintStream echo) {
+        this.echo = echo;
+        return this;
+    }
+
+    /**
+     * @return the folder written to
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    @Override
+    public void census(int day, Hospital hospital, int hospitalBedsUsed, int icuBedsUsed) {
+        report(String.format("%s\t%s\t%d\t%d\n", Days.format(day), hospital.getName(), hospitalBedsUsed, icuBedsUsed));
+    }
+
+    @Override
+    public synchronized void report(String text) {
+        out.print(text);
+        if (echo != null) {
+            echo.print(text);
+        }
+    }
+
+    @Override
+    public void patient(Hospital hospital, Patient patient) throws IOException {
+        // Create a folder for the cases for a given hospital location
+        File hDir = new File(folder, hospital.getLocation().getIdElement().getIdPart());
+        if (!hDir.exists()) {
+            hDir.mkdirs();
+        }
+        String patientId = patient.getIdElement().getIdPart();
+        File destination = new File(hDir, patientId + ".ndjson");
+        files.put(patientId, destination);
+        writers.write(destination, patient);
+    }
+
+    @Override
+    public void resource(Patient patient, Resource r) throws IOException {
+        File f = files.get(patient.getIdElement().getIdPart());
+        if (f == null) {
+            throw new IOException("No file for patient " + patient.getIdElement().getIdPart());
+        }
+        writers.write(f, r);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writers.close();
+        } finally {
+            out.close();
+        }
+    }
+}
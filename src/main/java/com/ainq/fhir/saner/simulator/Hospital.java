@@ -1,9 +1,17 @@
 package com.ainq.fhir.saner.simulator;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import org.hl7.fhir.r4.model.IntegerType;
@@ -14,7 +22,12 @@ public class Hospital {
     private static int hospitalCount = 0;
 
     /** Cases assigned to this facility */
-    private List<Case> currentCases = new ArrayList<>(), allCases = new ArrayList<>();
+    private Set<Case> currentCases = new LinkedHashSet<>();
+    private List<Case> allCases = new ArrayList<>();
+    /** Current cases bucketed by the epoch day of their end date */
+    private NavigableMap<Integer, List<Case>> dischargeCalendar = new TreeMap<>();
+    /** Hospital and ICU beds in use on each day by the cases at this hospital */
+    private final DayCounts bedsUsed = new DayCounts(), icuBedsUsed = new DayCounts();
     /** Name used for the hospital location */
     private String  name;
     /** Identifier used for the hospital location */
@@ -22,6 +35,8 @@ public class Hospital {
     /** Total beds and ventilators for the facility */
     private int icuBeds, hospitalBeds, emergencyBeds, ventilators;
     private Location location;
+    /** The source of random values for cases at this hospital */
+    private Random random = new Random();
 
     public Hospital() {
         identifier = generateIdentifier();
@@ -126,8 +141,8 @@ public class Hospital {
     /**
      * @return the list of current cases
      */
-    public List<Case> getCases() {
-        return Collections.unmodifiableList(currentCases);
+    public Collection<Case> getCases() {
+        return Collections.unmodifiableCollection(currentCases);
     }
 
     /**
@@ -145,28 +160,79 @@ public class Hospital {
     public void addCase(Case theCase) {
         currentCases.add(theCase);
         allCases.add(theCase);
+        dischargeCalendar.computeIfAbsent(theCase.getEndDay(), k -> new ArrayList<>()).add(theCase);
+        count(theCase, 1);
     }
 
     /**
-     * Remove a case
+     * Add the days of a case's stay to the daily bed counts.
+     * @param theCase   The case.
+     * @param amount    1 to add the case, -1 to remove it.
+     */
+    private void count(Case theCase, int amount) {
+        bedsUsed.add(theCase.getStartDay(), theCase.getEndDay(), amount);
+        if (theCase.hasICUStay()) {
+            icuBedsUsed.add(theCase.getIcuStartDay(), theCase.getIcuEndDay(), amount);
+        }
+    }
+
+    /**
+     * Restore a case from a checkpoint.
+     * @param theCase   The case to restore.
+     * @param isCurrent True if the case had not yet been discharged.
+     */
+    void restoreCase(Case theCase, boolean isCurrent) {
+        if (isCurrent) {
+            addCase(theCase);
+        } else {
+            allCases.add(theCase);
+            count(theCase, 1);
+        }
+    }
+
+    /**
+     * Remove a case. The case is no longer counted as using beds on any day.
      * @param theCase The case to remove.
-     * @param day
      */
     public void removeCase(Case theCase) {
-        currentCases.remove(theCase);
+        if (currentCases.remove(theCase)) {
+            count(theCase, -1);
+            int endDay = theCase.getEndDay();
+            List<Case> bucket = dischargeCalendar.get(endDay);
+            if (bucket != null && bucket.remove(theCase) && bucket.isEmpty()) {
+                dischargeCalendar.remove(endDay);
+            }
+        }
     }
 
     /**
-     * @param day The day to check at.
+     * Discharge all current cases whose end date is on or before the given day.
+     * Only the cases leaving are touched, the rest of the census is not examined.
+     *
+     * @param day   The epoch day for which to discharge cases.
+     * @return  The cases that were discharged.
+     */
+    public List<Case> dischargeCases(int day) {
+        List<Case> discharged = new ArrayList<>();
+        Map<Integer, List<Case>> due = dischargeCalendar.headMap(day, true);
+        for (Iterator<List<Case>> it = due.values().iterator(); it.hasNext();) {
+            for (Case c: it.next()) {
+                currentCases.remove(c);
+                discharged.add(c);
+            }
+            it.remove();
+        }
+        return discharged;
+    }
+
+    /**
+     * Get the number of ICU beds used on a day, counting the cases whose ICU stay
+     * started on or before the day and ends after it.
+     * @param day The epoch day to check at.
      * @return the icuBedsUsed
      */
-    public int getIcuBedsUsed(Date day) {
-        String today = CaseSimulator.SDF.format(day);
-        return (int) currentCases.stream()
-            .filter(
-                c -> c.hasICUStay() &&
-                CaseSimulator.SDF.format(c.getIcuStart()).compareTo(today) >= 0)
-            .count();
+    public int getIcuBedsUsed(int day) {
+        return icuBedsUsed.get(day);
     }
 
     /**
@@ -176,6 +242,40 @@ public class Hospital {
         return currentCases.size();
     }
 
+    /**
+     * Get the number of hospital beds used on a day, counting the cases whose stay
+     * started on or before the day and ends after it.
+     * @param day The epoch day to check at.
+     * @return the number of hospital beds used on the day.
+     */
+    public int getHospitalBedsUsed(int day) {
+        return bedsUsed.get(day);
+    }
+
+    /**
+     * Seed the random stream for this hospital. The stream depends only on the seed and
+     * the hospital identifier, so it is the same no matter which thread processes the hospital.
+     * @param seed  The seed for the simulation.
+     */
+    public void seed(long seed) {
+        long mixed = seed ^ (identifier == null ? 0 : identifier.hashCode() * 0x9E3779B97F4A7C15L);
+        random = new Random(new SplittableRandom(mixed).nextLong());
+    }
+
+    /**
+     * @return the source of random values for cases at this hospital
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * @param random the source of random values for cases at this hospital
+     */
+    void setRandom(Random random) {
+        this.random = random;
+    }
+
     /**
      * @return the location
      */
@@ -0,0 +1,110 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Keeps the outputs of a simulation in memory, for tests and for embedding the
+ * simulator in other applications.
+ */
+public class MemorySink implements SimulationSink {
+    /** The census for a hospital on a day */
+    public static class Census {
+        private final int day;
+        private final Hospital hospital;
+        private final int hospitalBedsUsed, icuBedsUsed;
+
+        private Census(int day, Hospital hospital, int hospitalBedsUsed, int icuBedsUsed) {
+            this.day = day;
+            this.hospital = hospital;
+            this.hospitalBedsUsed = hospitalBedsUsed;
+            this.icuBedsUsed = icuBedsUsed;
+        }
+
+        /**
+         * @return the epoch day
+         */
+        public int getDay() {
+            return day;
+        }
+
+        /**
+         * @return the hospital
+         */
+        public Hospital getHospital() {
+            return hospital;
+        }
+
+        /**
+         * @return the number of hospital beds in use
+         */
+        public int getHospitalBedsUsed() {
+            return hospitalBedsUsed;
+        }
+
+        /**
+         * @return the number of ICU beds in use
+         */
+        public int getIcuBedsUsed() {
+            return icuBedsUsed;
+        }
+    }
+
+    private final List<Census> census = new ArrayList<>();
+    private final StringBuilder report = new StringBuilder();
+    /** The resources for each patient, starting with the patient, in the order written */
+    private final Map<String, List<Resource>> resources = new LinkedHashMap<>();
+
+    @Override
+    public synchronized void census(int day, Hospital hospital, int hospitalBedsUsed, int icuBedsUsed) {
+        census.add(new Census(day, hospital, hospitalBedsUsed, icuBedsUsed));
+    }
+
+    @Override
+    public synchronized void report(String text) {
+        report.append(text);
+    }
+
+    @Override
+    public synchronized void patient(Hospital hospital, Patient patient) {
+        List<Resource> list = new ArrayList<>();
+        list.add(patient);
+        resources.put(patient.getIdElement().getIdPart(), list);
+    }
+
+    @Override
+    public synchronized void resource(Patient patient, Resource r) {
+        resources.computeIfAbsent(patient.getIdElement().getIdPart(), k -> new ArrayList<>()).add(r);
+    }
+
+    /**
+     * @return the census records in the order written
+     */
+    public synchronized List<Census> getCensus() {
+        return Collections.unmodifiableList(new ArrayList<>(census));
+    }
+
+    /**
+     * @return the text of the report
+     */
+    public synchronized String getReport() {
+        return report.toString();
+    }
+
+    /**
+     * @return the resources written for each patient, by patient id
+     */
+    public synchronized Map<String, List<Resource>> getResources() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(resources));
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,153 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * A pool of open, buffered writers for NDJSON files.  Resources are encoded
+ * directly into the writer for their file.  When more than the maximum number of
+ * files are open, the least recently used writer is flushed and closed.  A file
+ * that is written to again after being closed is reopened for append.  Writers are
+ * only flushed when closed or when {@link #flush()} is called, not by the parser
+ * after each resource.
+ */
+public class NdjsonWriterPool implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NdjsonWriterPool.class);
+    /** The default maximum number of files held open at once */
+    public static final int DEFAULT_MAX_OPEN = 256;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final IParser parser;
+    private final int maxOpen;
+    private final Map<File, PooledWriter> writers;
+
+    /**
+     * Create a pool holding at most DEFAULT_MAX_OPEN open files.
+     * @param parser    The parser used to encode resources, which must not be pretty printing.
+     */
+    public NdjsonWriterPool(IParser parser) {
+        this(parser, DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * Create a pool holding at most maxOpen open files.
+     * @param parser    The parser used to encode resources, which must not be pretty printing.
+     * @param maxOpen   The maximum number of files held open at once.
+     */
+    public NdjsonWriterPool(IParser parser, int maxOpen) {
+        this.parser = parser;
+        this.maxOpen = Math.max(1, maxOpen);
+        this.writers = new LinkedHashMap<File, PooledWriter>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, PooledWriter> eldest) {
+                if (size() <= NdjsonWriterPool.this.maxOpen) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (IOException e) {
+                    LOGGER.error("Error closing {}", eldest.getKey(), e);
+                    // Don't leave the closed writer in the pool
+                    remove(eldest.getKey());
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Append a resource as a single line to the given file.
+     * @param f The file to write to.
+     * @param r The resource to write.
+     * @throws IOException  If an error occurs writing the resource.
+     */
+    public synchronized void write(File f, Resource r) throws IOException {
+        PooledWriter w = writers.get(f);
+        if (w == null) {
+            w = new PooledWriter(new OutputStreamWriter(new FileOutputStream(f, true), StandardCharsets.UTF_8));
+            writers.put(f, w);
+        }
+        parser.encodeResourceToWriter(r, w);
+        w.write('\n');
+    }
+
+    /**
+     * @return The number of files currently open.
+     */
+    public synchronized int getOpenCount() {
+        return writers.size();
+    }
+
+    /**
+     * Flush all open writers.
+     * @throws IOException  If an error occurs flushing a writer.
+     */
+    public synchronized void flush() throws IOException {
+        for (PooledWriter w: writers.values()) {
+            w.flushBuffer();
+        }
+    }
+
+    /**
+     * Flush and close all open writers.
+     * @throws IOException  If an error occurs closing a writer. All writers are closed regardless.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (Iterator<Map.Entry<File, PooledWriter>> it = writers.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<File, PooledWriter> e = it.next();
+            try {
+                e.getValue().close();
+            } catch (IOException ex) {
+                LOGGER.error("Error closing {}", e.getKey(), ex);
+                if (error == null) {
+                    error = ex;
+                }
+            }
+            it.remove();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * A buffered writer that ignores flush(), which the parser calls after encoding
+     * each resource, so that the buffer is only written when full, flushed by the pool,
+     * or closed.
+     */
+    private static final class PooledWriter extends BufferedWriter {
+        private PooledWriter(Writer out) {
+            super(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public void flush() {
+            // Flushed only by the pool
+        }
+
+        private void flushBuffer() throws IOException {
+            super.flush();
+        }
+    }
+}
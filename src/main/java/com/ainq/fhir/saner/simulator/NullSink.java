@@ -0,0 +1,36 @@
+package com.ainq.fhir.saner.simulator;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Discards the outputs of a simulation, for benchmarks and for runs where
+ * only the state of the simulation is of interest.
+ */
+public final class NullSink implements SimulationSink {
+    /** The shared instance */
+    public static final NullSink INSTANCE = new NullSink();
+
+    private NullSink() {
+    }
+
+    @Override
+    public void census(int day, Hospital hospital, int hospitalBedsUsed, int icuBedsUsed) {
+    }
+
+    @Override
+    public void report(String text) {
+    }
+
+    @Override
+    public void patient(Hospital hospital, Patient patient) {
+    }
+
+    @Override
+    public void resource(Patient patient, Resource r) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,118 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ainq.fhir.saner.sampledata.ReferenceData;
+
+/**
+ * Runs several simulations concurrently against the same loaded reference data.
+ * Each scenario is described by a builder, which sets its days, case counts, seed
+ * and sink; the runner supplies the generators.  Each simulation has its own patient
+ * pool and random streams, all derived from its seed, so its results are the same as
+ * when it is run alone.
+ */
+public class ScenarioRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScenarioRunner.class);
+
+    private final ReferenceData data;
+    private final List<CaseSimulator.Builder> scenarios = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean writeClinicalData = false;
+
+    /**
+     * Create a runner for scenarios using the given reference data.
+     * @param data  The reference data shared by the scenarios.
+     */
+    public ScenarioRunner(ReferenceData data) {
+        this.data = data;
+    }
+
+    /**
+     * Add a scenario.
+     * @param scenario  The builder for the scenario.  Its generators are replaced by those from the reference data.
+     * @return  This runner.
+     */
+    public ScenarioRunner add(CaseSimulator.Builder scenario) {
+        scenarios.add(scenario);
+        return this;
+    }
+
+    /**
+     * @param threads   The number of scenarios to run at once.
+     * @return  This runner.
+     */
+    public ScenarioRunner setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * @param writeClinicalData True to write the patients and clinical data for each scenario when it finishes.
+     * @return  This runner.
+     */
+    public ScenarioRunner setWriteClinicalData(boolean writeClinicalData) {
+        this.writeClinicalData = writeClinicalData;
+        return this;
+    }
+
+    /**
+     * Run all scenarios, closing each simulation when it finishes.
+     * @return  The finished simulations, in the order the scenarios were added.
+     * @throws IOException  If a scenario reports an error.
+     */
+    public List<CaseSimulator> run() throws IOException {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, scenarios.size())), r -> {
+            Thread t = new Thread(r, "scenario-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<CaseSimulator>> results = new ArrayList<>();
+        try {
+            for (CaseSimulator.Builder b: scenarios) {
+                b.locationGenerator(data.getLocationGenerator())
+                    .patientGenerator(data.newPatientGenerator(b.getSeed()))
+                    .addressGenerator(data.getAddressGenerator());
+                results.add(executor.submit(() -> runScenario(b)));
+            }
+            List<CaseSimulator> finished = new ArrayList<>(results.size());
+            for (Future<CaseSimulator> f: results) {
+                finished.add(f.get());
+            }
+            return finished;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running scenarios", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Error running scenario", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CaseSimulator runScenario(CaseSimulator.Builder b) throws IOException {
+        try (CaseSimulator sim = b.build()) {
+            sim.run();
+            if (writeClinicalData) {
+                sim.writeClinicalData();
+            }
+            return sim;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error running scenario", e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ainq.fhir.saner.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Receives the outputs of a simulation: the daily census for each hospital, the
+ * text of the simulation report, and the patient and clinical resources for the
+ * cases.  Resources are passed to the sink after their dates have been shifted to
+ * match the simulated case.
+ */
+public interface SimulationSink extends Closeable {
+    /**
+     * Record the number of beds in use at a hospital on a day.
+     * @param day   The epoch day.
+     * @param hospital  The hospital.
+     * @param hospitalBedsUsed  The number of hospital beds in use.
+     * @param icuBedsUsed   The number of ICU beds in use.
+     */
+    void census(int day, Hospital hospital, int hospitalBedsUsed, int icuBedsUsed);
+
+    /**
+     * Append text to the simulation report.
+     * @param text  The text to append.
+     */
+    void report(String text);
+
+    /**
+     * Write the patient for a case at a hospital.  This is called before any
+     * resources are written for the patient.
+     * @param hospital  The hospital where the case occurred.
+     * @param patient   The patient.
+     * @throws IOException  If there is an error writing the patient.
+     */
+    void patient(Hospital hospital, Patient patient) throws IOException;
+
+    /**
+     * Write a clinical resource for a patient.
+     * @param patient   The patient the resource belongs to.
+     * @param r The resource to write.
+     * @throws IOException  If there is an error writing the resource.
+     */
+    void resource(Patient patient, Resource r) throws IOException;
+}
@@ -0,0 +1,135 @@
+package com.ainq.fhir.saner.sampledata.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.ArchiveCache;
+import com.sun.net.httpserver.HttpServer;
+
+class ArchiveCacheTest {
+    private static final String PATIENTS = "Id,FIRST\np1,Ann\np2,Bob\n";
+    private static final String ENCOUNTERS = "Id,PATIENT\ne1,p1\n";
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private String archive;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("data/patients.csv"));
+            zip.write(PATIENTS.getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("data/encounters.csv"));
+            zip.write(ENCOUNTERS.getBytes(StandardCharsets.UTF_8));
+        }
+        byte content[] = bytes.toByteArray();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/data.zip", ex -> {
+            downloads.incrementAndGet();
+            ex.sendResponseHeaders(200, content.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(content);
+            }
+        });
+        server.createContext("/truncated.zip", ex -> {
+            byte part[] = Arrays.copyOf(content, content.length / 2);
+            ex.sendResponseHeaders(200, part.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(part);
+            }
+        });
+        server.start();
+        archive = "http://localhost:" + server.getAddress().getPort() + "/data.zip";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testArchiveIsDownloadedOnce() throws IOException {
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile())) {
+            assertEquals(PATIENTS, read(cache, "jar:" + archive + "!/data/patients.csv"));
+            assertEquals(ENCOUNTERS, read(cache, "jar:" + archive + "!/data/encounters.csv"));
+            assertEquals(PATIENTS, read(cache, "jar:" + archive + "!/data/patients.csv"));
+            assertThrows(IOException.class, () -> read(cache, "jar:" + archive + "!/data/missing.csv"));
+        }
+        assertEquals(1, downloads.get());
+
+        // A new cache in the same folder uses the stored copy, even when offline
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile()).setOffline(true)) {
+            assertEquals(ENCOUNTERS, read(cache, "jar:" + archive + "!/data/encounters.csv"));
+        }
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    void testDamagedCopyIsReplaced() throws IOException {
+        Path f;
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile())) {
+            f = cache.getArchive(archive).toPath();
+        }
+        Files.write(f, new byte[] { 1, 2, 3 });
+
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile()).setOffline(true)) {
+            assertThrows(IOException.class, () -> cache.getArchive(archive));
+        }
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile())) {
+            assertEquals(PATIENTS, read(cache, "jar:" + archive + "!/data/patients.csv"));
+        }
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    void testTruncatedDownloadIsNotCached() throws IOException {
+        String truncated = "http://localhost:" + server.getAddress().getPort() + "/truncated.zip";
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile())) {
+            assertThrows(IOException.class, () -> cache.getArchive(truncated));
+        }
+        try (ArchiveCache cache = new ArchiveCache(dir.toFile()).setOffline(true)) {
+            assertThrows(IOException.class, () -> cache.getArchive(truncated));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.noneMatch(f -> f.toString().endsWith(".zip") || f.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void testOfflineWithEmptyCacheFails() {
+        ArchiveCache cache = new ArchiveCache(dir.resolve("empty").toFile()).setOffline(true);
+        assertThrows(IOException.class, () -> read(cache, "jar:" + archive + "!/data/patients.csv"));
+        assertEquals(0, downloads.get());
+    }
+
+    private static String read(ArchiveCache cache, String url) throws IOException {
+        try (InputStream in = cache.open(url)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
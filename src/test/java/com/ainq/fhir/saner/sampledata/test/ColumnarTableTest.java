@@ -0,0 +1,160 @@
+package com.ainq.fhir.saner.sampledata.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Encounter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.ColumnarTable;
+import com.ainq.fhir.saner.sampledata.CsvResourceLoader;
+import com.ainq.fhir.saner.sampledata.RowCursor;
+import com.ainq.fhir.saner.sampledata.RowSource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+class ColumnarTableTest {
+    private static final String ENCOUNTERS =
+        "Id,START,STOP,PATIENT,PROVIDER,ENCOUNTERCLASS,CODE,REASONCODE,REASONDESCRIPTION\n"
+        + "e1,2020-03-01T10:00:00Z,2020-03-05T10:00:00Z,p1,d1,inpatient,1505002,840539006,COVID-19\n"
+        + "e2,2020-03-02T11:30:15Z,,p2,d1,wellness,1505002,,\n"
+        + "e3,2020-03-03T00:00:00Z,2020-03-04T00:00:00Z,p1,d2,ambulatory,185349003,\"840539006\",\"COVID-19, suspected\"\n"
+        + "e4,2020-03-04T09:00:00Z,2020-03-04T10:00:00Z,p3,d2,emergency,50849002,,\n";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testRowsRoundTrip() throws IOException {
+        // The last row is short, so has no values for the last five columns
+        Files.write(dir.resolve("encounters.csv"), (ENCOUNTERS + "e5,2020-03-05,2020-03-06T10:00:00Z,p4\n").getBytes(StandardCharsets.UTF_8));
+        List<String[]> expected = read(CsvResourceLoader.openRows(dir.resolve("encounters.csv").toUri().toString()));
+        ColumnarTable.convert(dir.toUri().toString(), dir.toFile(), "encounters.csv");
+        File col = dir.resolve("encounters" + ColumnarTable.EXTENSION).toFile();
+
+        try (ColumnarTable t = ColumnarTable.open(col)) {
+            assertEquals(5, t.getRowCount());
+            assertEquals("2020-03-02T11:30:15Z", t.get(1, 1));
+            assertEquals("", t.get(1, 2));
+            assertEquals("2020-03-05", t.get(4, 1));
+            assertNull(t.get(4, 4));
+            List<String[]> actual = read(t.rows());
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), actual.get(i), "Row " + i);
+            }
+        }
+    }
+
+    @Test
+    void testLoaderUsesColumnarTable() throws IOException {
+        Files.write(dir.resolve("encounters.csv"), ENCOUNTERS.getBytes(StandardCharsets.UTF_8));
+        String csv = dir.resolve("encounters.csv").toUri().toString();
+        List<String> fromCsv = load(csv);
+
+        ColumnarTable.convert(dir.toUri().toString(), dir.toFile(), "encounters.csv");
+        Files.delete(dir.resolve("encounters.csv"));
+        assertEquals(fromCsv, load(csv));
+        assertEquals(fromCsv, load(dir.resolve("encounters" + ColumnarTable.EXTENSION).toUri().toString()));
+    }
+
+    @Test
+    void testPatientIdsShareOrdinalsAcrossTables() throws IOException {
+        Files.write(dir.resolve("patients.csv"), "Id,BIRTHDATE,FIRST\np2,1980-01-02,Bob\np1,1990-05-06,Ann\np3,2000-07-08,Cy\n"
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("encounters.csv"), ENCOUNTERS.getBytes(StandardCharsets.UTF_8));
+        // Patients are numbered in the order of patients.csv, whatever order the tables are converted in
+        ColumnarTable.convert(dir.toUri().toString(), dir.toFile(), "encounters.csv", "patients.csv");
+
+        try (ColumnarTable patients = ColumnarTable.open(dir.resolve("patients" + ColumnarTable.EXTENSION).toFile());
+             ColumnarTable encounters = ColumnarTable.open(dir.resolve("encounters" + ColumnarTable.EXTENSION).toFile())) {
+            for (int i = 0; i < patients.getRowCount(); i++) {
+                assertEquals(i, patients.getOrdinal(i, 0));
+            }
+            int expected[] = { 1, 0, 1, 2 };
+            for (int i = 0; i < encounters.getRowCount(); i++) {
+                assertEquals(expected[i], encounters.getOrdinal(i, 3));
+            }
+            assertEquals("p1", encounters.get(0, 3));
+            // The shared ids are read once for both tables
+            assertSame(patients.get(1, 0), encounters.get(0, 3));
+            assertThrows(IllegalArgumentException.class, () -> encounters.getOrdinal(0, 1));
+
+            // Dates are read without converting them to strings
+            RowCursor row = patients.rows().advance(-1, null);
+            assertEquals(LocalDate.parse("1980-01-02").toEpochDay(), row.getEpochDay(1));
+            assertEquals(RowCursor.NO_DAY, row.getEpochDay(2));
+            assertEquals(RowCursor.NO_SECOND, row.getEpochSecond(1));
+            assertEquals(Instant.parse("2020-03-02T11:30:15Z").getEpochSecond(), encounters.getEpochSecond(1, 1));
+            assertEquals(RowCursor.NO_SECOND, encounters.getEpochSecond(1, 2));
+        }
+    }
+
+    @Test
+    void testHighCardinalityColumnsAreStoredAsText() throws IOException {
+        int rows = ColumnarTable.DICTIONARY_LIMIT + 1000;
+        Instant start = Instant.parse("2020-03-01T00:00:00Z");
+        StringBuilder csv = new StringBuilder("Id,DATE,CODE,VALUE,UNITS\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append("o").append(i).append(',').append(start.plusSeconds(i)).append(',').append(i % 5);
+            if (i % 1000 != 999) {
+                // Every thousandth row is short, so has no value or units
+                csv.append(',').append(i % 1000 == 7 ? "" : "caf\u00e9 " + i).append(",mg");
+            }
+            csv.append('\n');
+        }
+        Files.write(dir.resolve("observations.csv"), csv.toString().getBytes(StandardCharsets.UTF_8));
+        List<String[]> expected = read(CsvResourceLoader.openRows(dir.resolve("observations.csv").toUri().toString()));
+        ColumnarTable.convert(dir.toUri().toString(), dir.toFile(), "observations.csv");
+
+        try (ColumnarTable t = ColumnarTable.open(dir.resolve("observations" + ColumnarTable.EXTENSION).toFile())) {
+            assertEquals(rows, t.getRowCount());
+            // Ids and values have too many distinct values for a dictionary; codes and units do not
+            assertThrows(IllegalArgumentException.class, () -> t.getOrdinal(0, 0));
+            assertThrows(IllegalArgumentException.class, () -> t.getOrdinal(1, 3));
+            assertEquals(2, t.getOrdinal(2, 2));
+            assertEquals(start.plusSeconds(rows - 1).getEpochSecond(), t.getEpochSecond(rows - 1, 1));
+            assertEquals(expected.get(1)[3], t.get(1, 3));
+            assertEquals("", t.get(7, 3));
+            assertNull(t.get(999, 3));
+            List<String[]> actual = read(t.rows());
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), actual.get(i), "Row " + i);
+            }
+        }
+    }
+
+    private static List<String> load(String url) {
+        IParser p = FhirContext.forR4().newJsonParser();
+        List<String> resources = new ArrayList<>();
+        CsvResourceLoader.createResources(Encounter.class, url, CsvResourceLoader.ENCOUNTER_MAP,
+            e -> resources.add(p.encodeResourceToString(e)), null, null, 0);
+        return resources;
+    }
+
+    private static List<String[]> read(RowSource rows) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        try (RowSource r = rows) {
+            for (String row[] = r.next(); row != null; row = r.next()) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,342 @@
+package com.ainq.fhir.saner.sampledata.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.ColumnarTable;
+import com.ainq.fhir.saner.sampledata.CsvResourceLoader;
+import com.ainq.fhir.saner.sampledata.IdGenerator;
+import com.ainq.fhir.saner.sampledata.LoaderMetrics;
+import com.ainq.fhir.saner.sampledata.LoaderMetricsMBean;
+
+class CsvMappingTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testRowsAreMappedToResources() throws IOException {
+        String url = write("observations.csv", "DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,VALUE,UNITS,TYPE\n"
+            + "2020-03-01,p1,e1,8310-5,Body temperature,37.5,Cel,numeric\n"
+            + "2020-03-02,p2,e2,72166-2,Tobacco smoking status,Never smoker,,text\n"
+            + "2020-03-03,p1,e3,8310-5,Body temperature,38.1,Cel,numeric\n");
+        List<Observation> found = new ArrayList<>();
+        CsvResourceLoader.createResources(Observation.class, url, CsvResourceLoader.OBSERVATION_MAP, found::add,
+            "PATIENT", "p1"::equals, -1);
+
+        assertEquals(2, found.size());
+        Observation o = found.get(1);
+        assertEquals("Patient/p1", o.getSubject().getReference());
+        assertEquals("Encounter/e3", o.getEncounter().getReference());
+        assertEquals("8310-5", o.getCode().getCodingFirstRep().getCode());
+        assertEquals("38.1", o.getValueQuantity().getValueElement().getValueAsString());
+        assertEquals("Cel", o.getValueQuantity().getUnit());
+
+        found.clear();
+        CsvResourceLoader.createResources(Observation.class, url, CsvResourceLoader.OBSERVATION_MAP, found::add,
+            null, null, -1);
+        assertEquals(3, found.size());
+        assertEquals("Never smoker", found.get(1).getValueStringType().getValue());
+        assertTrue(found.get(1).getValueStringType().hasValue());
+    }
+
+    @Test
+    void testFunctionsAndExtensions() throws IOException {
+        String url = write("patients.csv", "Id,BIRTHDATE,DEATHDATE,FIRST,LAST,RACE,ETHNICITY,GENDER,MARITAL,ADDRESS,CITY,STATE,COUNTY,ZIP,LAT,LON\n"
+            + "p1,1950-04-01,,Ann Marie,Smith,asian,hispanic,F,M,1 Main St,Boston,MA,Suffolk,02101,42.35,-71.06\n");
+        List<Patient> found = new ArrayList<>();
+        CsvResourceLoader.createResources(Patient.class, url, CsvResourceLoader.PATIENT_MAP, found::add, null, null, 1);
+
+        Patient p = found.get(0);
+        assertEquals("p1", p.getIdElement().getIdPart());
+        assertEquals("female", p.getGender().toCode());
+        assertEquals("Ann Marie", p.getNameFirstRep().getGivenAsSingleString());
+        Extension race = p.getExtensionByUrl("http://hl7.org/fhir/us/core/StructureDefinition/us-core-race")
+            .getExtensionByUrl("ombCategory");
+        assertEquals("2028-9", ((Coding) race.getValue()).getCode());
+        assertFalse(p.hasDeceased());
+    }
+
+    @Test
+    void testParallelConversion() throws IOException {
+        StringBuilder b = new StringBuilder("Id,BIRTHDATE,FIRST,LAST,GENDER\n");
+        for (int i = 0; i < 5000; i++) {
+            b.append("p").append(i).append(",1950-04-01,First,Last,").append(i % 3 == 0 ? "F" : "M").append("\n");
+        }
+        String url = write("many.csv", b.toString());
+        String map[] = { "id", "%Id", "birthDate", "%BIRTHDATE", "name.given", "%FIRST", "gender", "mapGender(%GENDER)" };
+        List<String> sequential = new ArrayList<>(), ordered = new ArrayList<>(), unordered = new ArrayList<>();
+        CsvResourceLoader.createResources(Patient.class, url, map,
+            p -> sequential.add(p.getIdElement().getIdPart()), "GENDER", "M"::equals, 0);
+        CsvResourceLoader.createResources(Patient.class, url, map,
+            p -> ordered.add(p.getIdElement().getIdPart()), "GENDER", "M"::equals, 0, 4, true);
+        CsvResourceLoader.createResources(Patient.class, url, map,
+            p -> unordered.add(p.getIdElement().getIdPart()), "GENDER", "M"::equals, 0, 4, false);
+        assertEquals(sequential, ordered);
+        assertEquals(new HashSet<>(sequential), new HashSet<>(unordered));
+        assertEquals(sequential.size(), unordered.size());
+
+        // max and early termination
+        List<String> limited = new ArrayList<>();
+        CsvResourceLoader.createResources(Patient.class, url, map,
+            p -> limited.add(p.getIdElement().getIdPart()), null, null, 1000, 4, true);
+        assertEquals(1000, limited.size());
+        assertEquals("p999", limited.get(999));
+        limited.clear();
+        CsvResourceLoader.createResources(Patient.class, url, map,
+            p -> limited.add(p.getIdElement().getIdPart()) && limited.size() < 10, null, null, 0, 4, false);
+        assertEquals(10, limited.size());
+    }
+
+    @Test
+    void testGeneratedIdsAreDeterministic() throws IOException {
+        IdGenerator ids = CsvResourceLoader.getIdGenerator();
+        CsvResourceLoader.setIdGenerator(IdGenerator.nameBased("saner"));
+        try {
+            StringBuilder b = new StringBuilder("START,PATIENT,ENCOUNTER,CODE,DESCRIPTION\n");
+            for (int i = 0; i < 1000; i++) {
+                b.append("2020-03-01,p").append(i % 10).append(",e").append(i).append(",840539006,COVID-19\n");
+            }
+            String url = write("conditions.csv", b.toString());
+            List<String> first = new ArrayList<>(), second = new ArrayList<>(), parallel = new ArrayList<>(), filtered = new ArrayList<>();
+            CsvResourceLoader.createResources(Condition.class, url, CsvResourceLoader.CONDITION_MAP, c -> first.add(c.getIdElement().getIdPart()), null, null, 0);
+            CsvResourceLoader.createResources(Condition.class, url, CsvResourceLoader.CONDITION_MAP, c -> second.add(c.getIdElement().getIdPart()), null, null, 0);
+            CsvResourceLoader.createResources(Condition.class, url, CsvResourceLoader.CONDITION_MAP, c -> parallel.add(c.getIdElement().getIdPart()), null, null, 0, 4, true);
+            CsvResourceLoader.createResources(Condition.class, url, CsvResourceLoader.CONDITION_MAP, c -> filtered.add(c.getIdElement().getIdPart()), "PATIENT", "p3"::equals, 0);
+            assertEquals(first, second);
+            assertEquals(first, parallel);
+            assertEquals(1000, new HashSet<>(first).size());
+            // A row has the same id however the table is filtered
+            assertEquals(first.get(3), filtered.get(0));
+            assertEquals(first.get(13), filtered.get(1));
+            // uuid5(NAMESPACE_URL, "saner/conditions/0")
+            assertEquals("de20519a-95e5-5fbd-9ae1-26be4296705d", first.get(0));
+        } finally {
+            CsvResourceLoader.setIdGenerator(ids);
+        }
+    }
+
+    @Test
+    void testCounterIdsAreUnique() throws InterruptedException {
+        IdGenerator ids = IdGenerator.counter();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    seen.add(ids.newId("observations", i));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        assertEquals(20000, seen.size());
+    }
+
+    @Test
+    void testStreamResources() throws IOException {
+        String url = write("patients.csv", "Id,GENDER\np1,F\np2,M\np3,F\np4,F\n");
+        String map[] = { "id", "%Id", "gender", "mapGender(%GENDER)" };
+        try (Stream<Patient> s = CsvResourceLoader.streamResources(Patient.class, url, map, "GENDER", "F"::equals)) {
+            assertEquals(Arrays.asList("p1", "p3"), s.limit(2).map(p -> p.getIdElement().getIdPart()).collect(Collectors.toList()));
+        }
+        assertEquals(4, CsvResourceLoader.streamResources(Patient.class, url, map, null, null).count());
+
+        // Nothing is opened until the stream is used
+        Stream<Patient> missing = CsvResourceLoader.streamResources(Patient.class, url + ".missing", map, null, null);
+        assertThrows(UncheckedIOException.class, () -> missing.count());
+    }
+
+    @Test
+    void testPublishResources() throws IOException {
+        String url = write("patients.csv", "Id,GENDER\np1,F\np2,M\np3,F\np4,F\n");
+        String map[] = { "id", "%Id", "gender", "mapGender(%GENDER)" };
+        List<String> received = new ArrayList<>();
+        List<String> events = new ArrayList<>();
+        Flow.Publisher<Patient> publisher = CsvResourceLoader.publishResources(Patient.class, url, map, null, null, Runnable::run);
+        Flow.Subscription subscription[] = { null };
+        publisher.subscribe(new Flow.Subscriber<Patient>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+            @Override
+            public void onNext(Patient item) {
+                received.add(item.getIdElement().getIdPart());
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                events.add("error");
+            }
+            @Override
+            public void onComplete() {
+                events.add("complete");
+            }
+        });
+        assertTrue(received.isEmpty());
+        subscription[0].request(1);
+        assertEquals(Arrays.asList("p1"), received);
+        subscription[0].request(2);
+        assertEquals(Arrays.asList("p1", "p2", "p3"), received);
+        subscription[0].request(5);
+        assertEquals(4, received.size());
+        assertEquals(Arrays.asList("complete"), events);
+
+        // Cancel stops delivery, and an invalid request is an error
+        received.clear();
+        events.clear();
+        publisher.subscribe(new Flow.Subscriber<Patient>() {
+            private Flow.Subscription s;
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                (this.s = s).request(Long.MAX_VALUE);
+            }
+            @Override
+            public void onNext(Patient item) {
+                received.add(item.getIdElement().getIdPart());
+                if (received.size() == 2) {
+                    s.cancel();
+                }
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                events.add("error");
+            }
+            @Override
+            public void onComplete() {
+                events.add("complete");
+            }
+        });
+        assertEquals(2, received.size());
+        assertTrue(events.isEmpty());
+        publisher.subscribe(new Flow.Subscriber<Patient>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(0);
+            }
+            @Override
+            public void onNext(Patient item) {
+                received.add(item.getIdElement().getIdPart());
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                events.add("error");
+            }
+            @Override
+            public void onComplete() {
+                events.add("complete");
+            }
+        });
+        assertEquals(Arrays.asList("error"), events);
+
+        // A subscriber that throws from onNext is cancelled and sent the error
+        received.clear();
+        events.clear();
+        publisher.subscribe(new Flow.Subscriber<Patient>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+                s.request(3);
+            }
+            @Override
+            public void onNext(Patient item) {
+                received.add(item.getIdElement().getIdPart());
+                if (received.size() == 2) {
+                    throw new IllegalStateException("Cannot accept " + item.getIdElement().getIdPart());
+                }
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                events.add(throwable.getMessage());
+            }
+            @Override
+            public void onComplete() {
+                events.add("complete");
+            }
+        });
+        subscription[0].request(5);
+        assertEquals(Arrays.asList("p1", "p2"), received);
+        assertEquals(Arrays.asList("Cannot accept p2"), events);
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        String content = "Id,GENDER\np1,F\np2,M\np3,F\n";
+        String url = write("patients.csv", content);
+        String map[] = { "id", "%Id", "gender", "mapGender(%GENDER)" };
+        LoaderMetricsMBean metrics = CsvResourceLoader.getMetrics();
+        metrics.reset();
+        CsvResourceLoader.createResources(Patient.class, url, map, p -> true, "GENDER", "F"::equals, 0);
+        assertEquals(3, metrics.getRowsRead());
+        assertEquals(1, metrics.getRowsFiltered());
+        assertEquals(2, metrics.getRowsConverted());
+        assertEquals(content.length(), metrics.getBytesRead());
+
+        CsvResourceLoader.createResources(Patient.class, url, map, p -> true, null, null, 0, 2, false);
+        assertEquals(6, metrics.getRowsRead());
+        assertEquals(5, metrics.getRowsConverted());
+
+        String bad[] = { "id", "%Id", "gender", "%SEX" };
+        assertThrows(RuntimeException.class, () -> CsvResourceLoader.createResources(Patient.class, url, bad, p -> true, null, null, 0));
+        CsvResourceLoader.createResources(Patient.class, url + ".missing", map, p -> true, null, null, 0);
+        assertEquals(Long.valueOf(1), metrics.getErrors().get("mapping"));
+        assertEquals(Long.valueOf(1), metrics.getErrors().get("io"));
+
+        // A columnar table read in place of the CSV counts its size
+        ColumnarTable.convert(dir.toUri().toString(), dir.toFile(), "patients.csv");
+        long bytes = metrics.getBytesRead();
+        CsvResourceLoader.createResources(Patient.class, url, map, p -> true, null, null, 0);
+        assertEquals(bytes + dir.resolve("patients" + ColumnarTable.EXTENSION).toFile().length(), metrics.getBytesRead());
+
+        // The same counters are available through JMX
+        ObjectName name = new ObjectName(LoaderMetrics.OBJECT_NAME);
+        assertEquals(metrics.getRowsRead(), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RowsRead"));
+        metrics.reset();
+        assertEquals(0L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RowsConverted"));
+    }
+
+    @Test
+    void testUnknownColumnIsAnError() throws IOException {
+        String url = write("bad.csv", "Id\np1\n");
+        String map[] = { "id", "%Id", "gender", "%GENDER" };
+        assertThrows(RuntimeException.class,
+            () -> CsvResourceLoader.createResources(Patient.class, url, map, p -> true, null, null, -1));
+        assertThrows(RuntimeException.class,
+            () -> CsvResourceLoader.createResources(Patient.class, url, map, p -> true, null, null, -1, 2, true));
+    }
+
+    private String write(String name, String content) throws IOException {
+        Path f = dir.resolve(name);
+        Files.write(f, content.getBytes(StandardCharsets.UTF_8));
+        return f.toUri().toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.ainq.fhir.saner.sampledata.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.ainq.fhir.saner.sampledata.CharSequenceSet;
+import com.ainq.fhir.saner.sampledata.ColumnFilter;
+import com.ainq.fhir.saner.sampledata.CsvRowSource;
+import com.ainq.fhir.saner.sampledata.RowCursor;
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvValidationException;
+
+class CsvRowSourceTest {
+    private static final String PIECES[] = { "a", " b ", "", ",", ",", "\"", "\"\"", "\\", "\n", "\r\n", "x y", "\t", "\"q,\"", "p1", "p2" };
+
+    @Test
+    void testRowsMatchOpenCsv() {
+        Random r = new Random(1);
+        ColumnFilter filter = new CharSequenceSet(Set.of("p1", "a"));
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder b = new StringBuilder("A,B,C\n");
+            for (int j = r.nextInt(30); j > 0; j--) {
+                b.append(PIECES[r.nextInt(PIECES.length)]);
+            }
+            String csv = b.toString();
+            assertEquals(readOpenCsv(csv, null), read(csv, null), csv);
+            assertEquals(readOpenCsv(csv, filter), read(csv, filter), csv);
+        }
+    }
+
+    @Test
+    void testCursorIsReused() throws IOException {
+        String csv = "Id,PATIENT,DESCRIPTION\no1,p1,plain\no2,p2,\"quoted, with comma\"\no3,p1\n";
+        try (CsvRowSource source = new CsvRowSource(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "test")) {
+            ColumnFilter p1 = new CharSequenceSet(Set.of("p1"));
+            RowCursor first = source.advance(1, p1);
+            assertEquals("o1", first.get(0));
+            assertEquals("plain", first.getChars(2).toString());
+            assertEquals(3, first.size());
+            RowCursor second = source.advance(1, p1);
+            assertSame(first, second);
+            assertEquals("o3", second.get(0));
+            assertEquals(2, second.size());
+            assertNull(second.get(2));
+            assertNull(source.advance(1, p1));
+        }
+        try (CsvRowSource source = new CsvRowSource(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "test")) {
+            source.advance(-1, null);
+            assertEquals("quoted, with comma", source.advance(-1, null).getChars(2).toString());
+        }
+    }
+
+    @Test
+    void testCharSequenceSet() {
+        CharSequenceSet set = new CharSequenceSet(Arrays.asList("p1", "p2", null, "p1", ""));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(new StringBuilder("p2")));
+        assertTrue(set.contains(""));
+        assertTrue(set.test("p1"));
+        assertFalse(set.contains("p3"));
+        assertFalse(set.contains(new StringBuilder("p")));
+        assertFalse(set.contains(null));
+    }
+
+    private static String read(String csv, ColumnFilter filter) {
+        List<String> rows = new ArrayList<>();
+        try (CsvRowSource source = new CsvRowSource(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "test")) {
+            for (String row[] = next(source, filter); row != null; row = next(source, filter)) {
+                rows.add(Arrays.toString(row) + row.length);
+            }
+        } catch (IOException e) {
+            return "error";
+        }
+        return rows.toString();
+    }
+
+    private static String[] next(CsvRowSource source, ColumnFilter filter) throws IOException {
+        return filter == null ? source.next() : source.next(1, filter);
+    }
+
+    private static String readOpenCsv(String csv, ColumnFilter filter) {
+        List<String> rows = new ArrayList<>();
+        try (CSVReader reader = new CSVReader(new StringReader(csv))) {
+            reader.readNext();
+            for (String row[] = reader.readNext(); row != null; row = reader.readNext()) {
+                if (filter == null || filter.test(row.length > 1 ? row[1] : null)) {
+                    rows.add(Arrays.toString(row) + row.length);
+                }
+            }
+        } catch (IOException | CsvValidationException e) {
+            return "error";
+        }
+        return rows.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package com.ainq.fhir.saner.sampledata.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.CsvResourceLoader;
+import com.ainq.fhir.saner.sampledata.Dates;
+import com.ainq.fhir.saner.sampledata.NdjsonEmitter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Checks that NdjsonEmitter writes the same JSON as creating resources with CsvResourceLoader,
+ * shifting their dates, and encoding them with HAPI, for every map in CsvResourceLoader.
+ */
+class NdjsonEmitterTest {
+    private static final FhirContext CONTEXT = FhirContext.forR4();
+    private static final String UUID = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+    private static final String TEXT[] = {
+        "", " ", "Body temperature", "COVID-19, suspected", "say \"hi\"", "back\\slash", "tab\there", "caf\u00e9 <b>&amp;</b>",
+        "line\u2028separator", "trailing ", "840539006"
+    };
+    private static final String DATES[] = {
+        "", "2020-03-01", "2020-03-07T23:30:00Z", "2020-10-31T10:00:00Z", "2020-03-08T01:30:00-05:00", "2019-12-31T23:59:59.123Z", "1950-04-01"
+    };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testEmitterMatchesHapiForEveryMap() throws Exception {
+        TimeZone tz = TimeZone.getDefault();
+        // Shift across a daylight saving time change, which moves UTC times by an hour
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        try {
+            int maps = 0;
+            for (Field f: CsvResourceLoader.class.getFields()) {
+                if (f.getName().endsWith("_MAP") && Modifier.isStatic(f.getModifiers())) {
+                    String map[] = (String[]) f.get(null);
+                    Class<? extends Resource> type = getType(map);
+                    compare(f.getName(), type, map, 0);
+                    compare(f.getName(), type, map, 17);
+                    compare(f.getName(), type, map, -400);
+                    maps++;
+                }
+            }
+            assertTrue(maps >= 9);
+        } finally {
+            TimeZone.setDefault(tz);
+        }
+    }
+
+    @Test
+    void testInvalidValuesAreErrors() throws IOException {
+        String map[] = { "id", "%Id", "birthDate", "%BIRTHDATE", "gender", "%GENDER" };
+        String good = write("good.csv", "Id,BIRTHDATE,GENDER\np1,1950-04-01,female\n");
+        assertEquals("{\"resourceType\":\"Patient\",\"id\":\"p1\",\"gender\":\"female\",\"birthDate\":\"1950-04-01\"}\n",
+            emit(Patient.class, good, map, 0));
+        String badDate = write("date.csv", "Id,BIRTHDATE,GENDER\np1,April 1st,female\n");
+        assertThrows(RuntimeException.class, () -> emit(Patient.class, badDate, map, 0));
+        String badCode = write("code.csv", "Id,BIRTHDATE,GENDER\np1,1950-04-01,F\n");
+        assertThrows(RuntimeException.class, () -> emit(Patient.class, badCode, map, 0));
+
+        // Only one type can be used for value[x]
+        String obs[] = { "valueString", "%VALUE", "valueQuantity.value", "%VALUE" };
+        String both = write("both.csv", "VALUE\n12\n");
+        assertThrows(RuntimeException.class, () -> emit(Observation.class, both, obs, 0));
+    }
+
+    private void compare(String name, Class<? extends Resource> type, String map[], int dateOffset) throws IOException {
+        List<String> columns = getColumns(map);
+        Random r = new Random(name.hashCode() + dateOffset);
+        IParser p = CONTEXT.newJsonParser();
+        FhirTerser terser = new FhirTerser(CONTEXT);
+        int errors = 0;
+        for (int row = 0; row < 60; row++) {
+            String url = write(name + row + ".csv", String.join(",", columns) + "\n" + randomRow(columns, r) + "\n");
+            String expected, actual;
+            try {
+                List<String> resources = new ArrayList<>();
+                CsvResourceLoader.createResources(type, url, map, res -> resources.add(encode(p, terser, res, dateOffset)), null, null, 0);
+                expected = resources.get(0);
+            } catch (RuntimeException e) {
+                expected = "error";
+                errors++;
+            }
+            try {
+                actual = emit(type, url, map, dateOffset);
+            } catch (RuntimeException e) {
+                actual = "error";
+            }
+            assertEquals(expected, actual.replaceAll(UUID, "uuid"), name + " " + Files.readString(dir.resolve(name + row + ".csv")));
+        }
+        // All but the Immunization map (whose date path is misspelled) should convert the rows without errors
+        assertTrue(errors == 0 || "IMMUNIZATION_MAP".equals(name), name);
+    }
+
+    private static String encode(IParser p, FhirTerser terser, Resource res, int dateOffset) {
+        Dates.shiftAll(terser, res, dateOffset);
+        return p.encodeResourceToString(res).replaceAll(UUID, "uuid") + "\n";
+    }
+
+    private static String emit(Class<? extends Resource> type, String url, String map[], int dateOffset) throws IOException {
+        StringWriter w = new StringWriter();
+        NdjsonEmitter.write(type, url, map, w, null, null, dateOffset);
+        return w.toString();
+    }
+
+    private static String randomRow(List<String> columns, Random r) {
+        List<String> values = new ArrayList<>();
+        boolean text = r.nextBoolean();
+        for (String c: columns) {
+            String v;
+            switch (c) {
+            case "TYPE":            v = text ? "text" : "numeric"; break;
+            case "VALUE":           v = text ? pick(r, TEXT) : pick(r, "", "37.5", "120", "-0.25", "1.50"); break;
+            case "GENDER":          v = pick(r, "", "M", "F", "x"); break;
+            case "RACE":            v = pick(r, "", "white", "black", "asian", "native", "other", "hawaiian"); break;
+            case "ETHNICITY":       v = pick(r, "", "hispanic", "nonhispanic"); break;
+            case "MARITAL":         v = pick(r, "", "M", "S"); break;
+            case "ENCOUNTERCLASS":  v = pick(r, "", "ambulatory", "inpatient", "emergency", "virtual"); break;
+            case "LAT": case "LON": v = pick(r, "", "42.35", "-71.0600", "0"); break;
+            case "NAME":            v = pick(r, "", "Dr. Ann Smith", "Bob", "Ann Marie Jones"); break;
+            default:
+                v = c.contains("DATE") || c.equals("START") || c.equals("STOP") ? pick(r, DATES) : pick(r, TEXT);
+            }
+            values.add(v.contains(",") || v.contains("\"") ? "\"" + v.replace("\"", "\"\"") + "\"" : v);
+        }
+        return String.join(",", values);
+    }
+
+    private static String pick(Random r, String... values) {
+        return values[r.nextInt(values.length)];
+    }
+
+    /** @return The columns used by a map, and TYPE, which is used by some functions */
+    private static List<String> getColumns(String map[]) {
+        Set<String> columns = new LinkedHashSet<>();
+        for (int i = 1; i < map.length; i += 2) {
+            int pos = map[i].indexOf('%');
+            if (pos >= 0) {
+                columns.add(map[i].substring(pos + 1).replace(")", ""));
+            }
+        }
+        columns.add("TYPE");
+        return new ArrayList<>(columns);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Resource> getType(String map[]) throws ClassNotFoundException {
+        if (map == CsvResourceLoader.IMMUNIZATION_MAP) {
+            return Immunization.class;
+        }
+        for (String type: new String[] { "Patient", "Encounter", "Condition", "AllergyIntolerance", "ImagingStudy",
+            "MedicationStatement", "Observation", "Practitioner", "Procedure" }) {
+            if (CsvResourceLoader.getMap(type) == map) {
+                return (Class<? extends Resource>) Class.forName("org.hl7.fhir.r4.model." + type);
+            }
+        }
+        throw new IllegalArgumentException("No resource type for map");
+    }
+
+    private String write(String name, String content) throws IOException {
+        Path f = dir.resolve(name);
+        Files.write(f, content.getBytes(StandardCharsets.UTF_8));
+        return f.toUri().toString();
+    }
+}
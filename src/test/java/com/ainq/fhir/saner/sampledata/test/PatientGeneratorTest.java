@@ -0,0 +1,261 @@
+package com.ainq.fhir.saner.sampledata.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.PatientGenerator;
+
+class PatientGeneratorTest {
+    private static final String RACES[] = { "white", "black", "asian" }, RACE_CODES[] = { "2106-3", "2054-5", "2028-9" };
+    private static final String ETHNICITIES[] = { "hispanic", "nonhispanic" }, ETHNICITY_CODES[] = { "2135-2", "2186-5" };
+    private static final int PATIENTS = 60;
+
+    @TempDir
+    Path dir;
+    PatientGenerator generator;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        StringBuilder patients = new StringBuilder("Id,BIRTHDATE,DEATHDATE,FIRST,LAST,MARITAL,RACE,ETHNICITY,GENDER,ADDRESS,CITY,STATE,COUNTY,ZIP,LAT,LON\n");
+        StringBuilder encounters = new StringBuilder("Id,START,STOP,PATIENT,PROVIDER,ENCOUNTERCLASS,CODE,REASONCODE,REASONDESCRIPTION\n");
+        for (int i = 0; i < PATIENTS; i++) {
+            String id = String.format("p%02d", i);
+            patients.append(String.format("%s,%d-06-15,,First%d,Last%d,M,%s,%s,%s,1 Main St,Boston,MA,Suffolk,02101,42.36,-71.06\n",
+                id, 2000 - 7 * (i % 11), i, i, RACES[i % 3], ETHNICITIES[i % 2], i % 5 < 2 ? "M" : "F"));
+            if (i % 10 != 9) {
+                // Every tenth patient has no COVID-19 admission, so is not hospitalized
+                encounters.append(String.format("e%d,2020-03-01T08:00:00Z,2020-03-08T08:00:00Z,%s,d1,inpatient,1505002,840539006,COVID-19\n", i, id));
+            }
+            if (i % 4 == 0) {
+                // An ICU stay during the admission
+                encounters.append(String.format("icu%d,2020-03-03T08:00:00Z,2020-03-05T08:00:00Z,%s,d1,inpatient,305351004,840539006,COVID-19\n", i, id));
+            } else if (i % 4 == 1) {
+                // An ICU stay after the admission, which is not counted
+                encounters.append(String.format("icu%d,2020-04-03T08:00:00Z,2020-04-05T08:00:00Z,%s,d1,inpatient,305351004,840539006,COVID-19\n", i, id));
+            }
+        }
+        Files.write(dir.resolve("patients.csv"), patients.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("encounters.csv"), encounters.toString().getBytes(StandardCharsets.UTF_8));
+        System.setProperty("saner.data.url", dir.toUri().toString());
+        generator = new PatientGenerator();
+        generator.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty("saner.data.url");
+    }
+
+    @Test
+    void testPatientsMatchRequestedStrata() {
+        assertEquals(PATIENTS - PATIENTS / 10, generator.getAll().size());
+        Random r = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            Map<String, String> properties = new HashMap<>();
+            if (r.nextBoolean()) {
+                properties.put("gender", r.nextBoolean() ? "male" : "female");
+            }
+            if (r.nextBoolean()) {
+                properties.put("age", Integer.toString(19 + 7 * r.nextInt(11)));
+            }
+            if (r.nextBoolean()) {
+                properties.put("race0", RACE_CODES[r.nextInt(RACE_CODES.length)]);
+            }
+            if (r.nextBoolean()) {
+                properties.put("ethnicity", ETHNICITY_CODES[r.nextInt(ETHNICITY_CODES.length)]);
+            }
+            Set<String> candidates = new HashSet<>();
+            for (Patient p: generator.getAll()) {
+                if (generator.getAvailable().contains(p.getIdElement().getIdPart()) && matches(p, properties)) {
+                    candidates.add(p.getIdElement().getIdPart());
+                }
+            }
+            int available = generator.getAvailable().size();
+            Patient p = generator.generate(properties);
+            // When no available patient matches, the request is relaxed, and the patient adjusted to match it
+            assertNotNull(p, properties.toString());
+            String id = p.getIdElement().getIdPart();
+            assertTrue(candidates.isEmpty() || candidates.contains(id), id + " does not match " + properties);
+            assertTrue(matches(p, properties), id + " was not adjusted to " + properties);
+            assertTrue(available == 1 || !generator.getAvailable().contains(id), id + " was selected twice");
+        }
+    }
+
+    @Test
+    void testEveryPatientIsSelectedOnceBeforeReset() {
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < generator.getAll().size(); i++) {
+            Patient p = generator.generate(new HashMap<>());
+            assertTrue(seen.add(p.getIdElement().getIdPart()), p.getIdElement().getIdPart() + " was selected twice");
+        }
+        // The pool is refilled once it runs out
+        assertEquals(generator.getAll().size(), generator.getAvailable().size());
+        assertNotNull(generator.generate(new HashMap<>()));
+    }
+
+    @Test
+    void testConcurrentSelectionNeverRepeatsAPatient() throws Exception {
+        int threads = 32, draws = 2 * generator.getAll().size();
+        AtomicInteger tickets = new AtomicInteger();
+        Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Random random = new Random(t);
+                futures.add(executor.submit(() -> {
+                    while (tickets.getAndIncrement() < draws) {
+                        Patient p = generator.generate(new HashMap<>(), random);
+                        counts.computeIfAbsent(p.getIdElement().getIdPart(), k -> new AtomicInteger()).incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> f: futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Every patient is selected once in each of the two epochs
+        assertEquals(generator.getAll().size(), counts.size());
+        for (Map.Entry<String, AtomicInteger> e: counts.entrySet()) {
+            assertEquals(2, e.getValue().get(), e.getKey());
+        }
+    }
+
+    @Test
+    void testSelectionIsUniform() {
+        Map<String, Integer> counts = new HashMap<>();
+        int rounds = 50 * generator.getAll().size();
+        for (int i = 0; i < rounds; i++) {
+            generator.reset();
+            counts.merge(generator.generate(new HashMap<>()).getIdElement().getIdPart(), 1, Integer::sum);
+        }
+        // Each patient is expected 50 times
+        assertEquals(generator.getAll().size(), counts.size());
+        for (Map.Entry<String, Integer> e: counts.entrySet()) {
+            assertTrue(e.getValue() > 20 && e.getValue() < 90, e.toString());
+        }
+    }
+
+    @Test
+    void testEachEpochDrawsANewOrder() throws IOException {
+        // Patients with the same demographics, which are all in one cell
+        Path cell = Files.createDirectory(dir.resolve("cell"));
+        StringBuilder patients = new StringBuilder("Id,BIRTHDATE,DEATHDATE,FIRST,LAST,MARITAL,RACE,ETHNICITY,GENDER,ADDRESS,CITY,STATE,COUNTY,ZIP,LAT,LON\n");
+        StringBuilder encounters = new StringBuilder("Id,START,STOP,PATIENT,PROVIDER,ENCOUNTERCLASS,CODE,REASONCODE,REASONDESCRIPTION\n");
+        for (int i = 0; i < 40; i++) {
+            patients.append(String.format("c%02d,1950-06-15,,First%d,Last%d,M,white,nonhispanic,F,1 Main St,Boston,MA,Suffolk,02101,42.36,-71.06\n", i, i, i));
+            encounters.append(String.format("e%d,2020-03-01T08:00:00Z,2020-03-08T08:00:00Z,c%02d,d1,inpatient,1505002,840539006,COVID-19\n", i, i));
+        }
+        Files.write(cell.resolve("patients.csv"), patients.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(cell.resolve("encounters.csv"), encounters.toString().getBytes(StandardCharsets.UTF_8));
+        System.setProperty("saner.data.url", cell.toUri().toString());
+        PatientGenerator one = new PatientGenerator();
+        one.initialize();
+
+        List<String> first = drawEpoch(one), second = drawEpoch(one);
+        assertEquals(new HashSet<>(first), new HashSet<>(second));
+        assertEquals(40, new HashSet<>(first).size());
+        // The second epoch is not the first one again, or the first started elsewhere
+        List<String> twice = new ArrayList<>(first);
+        twice.addAll(first);
+        assertEquals(-1, Collections.indexOfSubList(twice, second), second + " repeats " + first);
+
+        // Copies do not share an order
+        assertNotEquals(drawEpoch(new PatientGenerator(one)), drawEpoch(new PatientGenerator(one)));
+    }
+
+    private static List<String> drawEpoch(PatientGenerator g) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < g.getAll().size(); i++) {
+            ids.add(g.generate(new HashMap<>()).getIdElement().getIdPart());
+        }
+        return ids;
+    }
+
+    @Test
+    void testAvailablePatientsAreRestored() {
+        for (int i = 0; i < 10; i++) {
+            generator.generate(new HashMap<>());
+        }
+        List<String> available = new ArrayList<>(generator.getAvailable());
+        PatientGenerator copy = new PatientGenerator(generator);
+        assertEquals(generator.getAll().size(), copy.getAvailable().size());
+        copy.setAvailable(available);
+        assertEquals(new HashSet<>(available), new HashSet<>(copy.getAvailable()));
+        assertEquals("p00", copy.generate(Map.of("id", "p00")).getIdElement().getIdPart());
+    }
+
+    @Test
+    void testPatientsAreCreatedWhenSelected() {
+        Patient p = generator.generate(Map.of("id", "p04")), q = generator.generate(Map.of("id", "p04"));
+        assertNotSame(p, q);
+        assertEquals("First4", p.getNameFirstRep().getGivenAsSingleString());
+        assertEquals("female", p.getGender().toCode());
+        assertEquals(19 + 28, p.getUserData("age"));
+        assertEquals(7, p.getUserData("los"));
+        Encounter enc = (Encounter) p.getUserData("encounter"), icu = (Encounter) p.getUserData("icu");
+        assertEquals("e4", enc.getIdElement().getIdPart());
+        assertEquals("Patient/p04", enc.getSubject().getReference());
+        assertEquals("icu4", icu.getIdElement().getIdPart());
+        assertNull(generator.generate(Map.of("id", "p05")).getUserData("icu"));
+        assertNull(generator.generate(Map.of("id", "p09")));
+    }
+
+    private static boolean matches(Patient p, Map<String, String> properties) {
+        String gender = properties.get("gender"), age = properties.get("age");
+        if (gender != null && !gender.equals(p.getGender().toCode())) {
+            return false;
+        }
+        if (age != null && band((int) p.getUserData("age")) != band(Integer.parseInt(age))) {
+            return false;
+        }
+        for (String key: new String[] { "race0", "ethnicity" }) {
+            String code = properties.get(key);
+            if (code != null && !code.equals(code(p, "us-core-race")) && !code.equals(code(p, "us-core-ethnicity"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int band(int age) {
+        return age < 85 ? age / 5 : age < 110 ? 17 : 18;
+    }
+
+    private static String code(Patient p, String extension) {
+        return ((Coding) p.getExtensionByUrl("http://hl7.org/fhir/us/core/StructureDefinition/" + extension)
+            .getExtensionByUrl("ombCategory").getValue()).getCode();
+    }
+}
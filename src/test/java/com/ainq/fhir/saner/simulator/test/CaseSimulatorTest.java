@@ -0,0 +1,182 @@
+package com.ainq.fhir.saner.simulator.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.PatientGenerator;
+import com.ainq.fhir.saner.simulator.Case;
+import com.ainq.fhir.saner.simulator.CaseSimulator;
+import com.ainq.fhir.saner.simulator.Days;
+import com.ainq.fhir.saner.simulator.Hospital;
+import com.ainq.fhir.saner.simulator.MemorySink;
+
+class CaseSimulatorTest {
+    private static final int HOSPITALS = TestGenerators.HOSPITALS;
+
+    @Test
+    void testResultsDoNotDependOnThreadCount() throws IOException {
+        String serial = simulate(1), parallel = simulate(4);
+        assertTrue(serial.length() > 0);
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    void testResumeFromCheckpointRestoresState() throws IOException {
+        CaseSimulator.setLocationGenerator(new TestGenerators.Locations());
+        CaseSimulator.setPatientGenerator(new TestGenerators.Patients());
+        int start = Days.parse("20210101");
+        CaseSimulator sim = new CaseSimulator(start, start + 30, 400, 250, 42, 1);
+        for (int day = start + 1; day <= start + 10; day++) {
+            sim.processActivity(day);
+        }
+        Path dir = Files.createTempDirectory("checkpoint");
+        File f = dir.resolve("checkpoint.bin").toFile();
+        try {
+            sim.writeCheckpoint(f);
+            CaseSimulator resumed = CaseSimulator.resume(f, 2);
+            assertEquals(sim.getCurrentDay(), resumed.getCurrentDay());
+            assertEquals(state(sim), state(resumed));
+        } finally {
+            f.delete();
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void testResumedRunMatchesUninterruptedRun(@TempDir Path dir) throws IOException {
+        // Few enough patients that the patient generator runs out and is refilled during the run
+        TestGenerators.writeTables(dir, 300);
+        System.setProperty("saner.data.url", dir.toUri().toString());
+        try {
+            PatientGenerator patients = new PatientGenerator();
+            patients.initialize();
+            int start = Days.parse("20210101"), split = start + 12;
+            File f = dir.resolve("checkpoint.bin").toFile();
+
+            // Both runs select patients from copies seeded alike, and the resumed run restores the copy's state
+            MemorySink straight = new MemorySink();
+            try (CaseSimulator sim = builder(start, 1).patientGenerator(new PatientGenerator(patients, 1)).sink(straight).build()) {
+                sim.run();
+            }
+
+            MemorySink first = new MemorySink(), second = new MemorySink();
+            try (CaseSimulator sim = builder(start, 1).patientGenerator(new PatientGenerator(patients, 1))
+                    .sink(first).checkpoint(f, split - start).build()) {
+                while (sim.getCurrentDay() < split) {
+                    sim.step();
+                }
+            }
+            try (CaseSimulator sim = CaseSimulator.builder().locationGenerator(new TestGenerators.Locations())
+                    .patientGenerator(new PatientGenerator(patients)).parallelism(2).sink(second).resume(f)) {
+                assertEquals(split, sim.getCurrentDay());
+                sim.run();
+                assertEquals(start + 30, sim.getCurrentDay());
+            }
+
+            assertEquals(31 * HOSPITALS, first.getCensus().size() + second.getCensus().size());
+            assertEquals(census(straight), census(first) + census(second));
+            assertEquals(straight.getReport(), first.getReport() + second.getReport());
+        } finally {
+            System.clearProperty("saner.data.url");
+        }
+    }
+
+    private static String census(MemorySink sink) {
+        StringBuilder b = new StringBuilder();
+        for (MemorySink.Census c: sink.getCensus()) {
+            b.append(Days.format(c.getDay())).append(' ').append(c.getHospital().getName()).append(' ')
+                .append(c.getHospitalBedsUsed()).append(' ').append(c.getIcuBedsUsed()).append('\n');
+        }
+        return b.toString();
+    }
+
+    private String state(CaseSimulator sim) {
+        StringBuilder b = new StringBuilder();
+        for (Hospital h: sim.getHospitals()) {
+            b.append(h.getName()).append(' ').append(h.getHospitalBedsUsed()).append(' ')
+                .append(h.getIcuBedsUsed(sim.getCurrentDay())).append('\n');
+            for (Case c: h.getCases()) {
+                b.append(c.getPatientId()).append(' ').append(c.getStartDay()).append(' ')
+                    .append(c.getEndDay()).append(' ').append(c.getOffset()).append('\n');
+            }
+            b.append(h.getAllCases().size()).append('\n');
+        }
+        return b.toString();
+    }
+
+    @Test
+    void testSimulationsAreIndependent() throws IOException {
+        int start = Days.parse("20210101");
+        MemorySink first = new MemorySink(), second = new MemorySink();
+        try (CaseSimulator a = builder(start, 1).sink(first).build();
+             CaseSimulator b = builder(start, 1).sink(second).build()) {
+            // Interleave the two simulations
+            while (a.step() && b.step()) {
+                // Keep stepping
+            }
+            assertEquals(start + 30, a.getCurrentDay());
+            assertEquals(start + 30, b.getCurrentDay());
+        }
+        assertEquals(31 * HOSPITALS, first.getCensus().size());
+        assertEquals(first.getReport(), second.getReport());
+        assertTrue(first.getReport().startsWith("--------2021-01-01---------"));
+    }
+
+    @Test
+    void testCensusMatchesCases() throws IOException {
+        int start = Days.parse("20210101");
+        MemorySink sink = new MemorySink();
+        try (CaseSimulator sim = builder(start, 1).sink(sink).build()) {
+            sim.run();
+        }
+        for (MemorySink.Census c: sink.getCensus()) {
+            int day = c.getDay(), beds = 0, icuBeds = 0;
+            for (Case k: c.getHospital().getAllCases()) {
+                if (k.getStartDay() <= day && day < k.getEndDay()) {
+                    beds++;
+                }
+                if (k.hasICUStay() && k.getIcuStartDay() <= day && day < k.getIcuEndDay()) {
+                    icuBeds++;
+                }
+            }
+            assertEquals(beds, c.getHospitalBedsUsed());
+            assertEquals(beds, c.getHospital().getHospitalBedsUsed(day));
+            assertEquals(icuBeds, c.getIcuBedsUsed());
+        }
+    }
+
+    private CaseSimulator.Builder builder(int start, int threads) {
+        return CaseSimulator.builder()
+            .locationGenerator(new TestGenerators.Locations()).patientGenerator(new TestGenerators.Patients())
+            .start(start).end(start + 30).startingCases(400).endingCases(250)
+            .seed(42).parallelism(threads);
+    }
+
+    private String simulate(int threads) throws IOException {
+        int start = Days.parse("20210101");
+        MemorySink sink = new MemorySink();
+        CaseSimulator sim = builder(start, threads).sink(sink).build();
+        sim.run();
+        sim.close();
+        StringBuilder b = new StringBuilder();
+        for (MemorySink.Census c: sink.getCensus()) {
+            b.append(c.getDay()).append(' ').append(c.getHospital().getName()).append(' ')
+                .append(c.getHospitalBedsUsed()).append(' ').append(c.getIcuBedsUsed()).append('\n');
+        }
+        for (Hospital h: sim.getHospitals()) {
+            for (Case c: h.getAllCases()) {
+                b.append(h.getName()).append(' ').append(c.getPatientId()).append(' ')
+                    .append(c.getStartDay()).append(' ').append(c.getEndDay()).append('\n');
+            }
+        }
+        return b.toString();
+    }
+}
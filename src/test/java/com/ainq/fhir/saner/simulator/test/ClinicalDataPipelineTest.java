@@ -0,0 +1,109 @@
+package com.ainq.fhir.saner.simulator.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.CsvResourceLoader;
+import com.ainq.fhir.saner.sampledata.IdGenerator;
+import com.ainq.fhir.saner.simulator.ClinicalDataPipeline;
+
+class ClinicalDataPipelineTest {
+    private static final int ROWS = 2000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testTablesAreFilteredAndKeepTheirOrder() throws IOException {
+        writeTables();
+        ClinicalDataPipeline pipeline = new ClinicalDataPipeline(dir.toUri().toString())
+            .add(Encounter.class, "encounters.csv")
+            .add(Condition.class, "conditions.csv")
+            .setQueueCapacity(8);
+        Map<String, List<String>> seen = new HashMap<>();
+        Set<String> selected = Set.of("p1", "p7");
+        pipeline.run("PATIENT", selected::contains, (t, r) -> {
+            String key = r instanceof Encounter ? r.getIdElement().getIdPart() : ((Condition) r).getEncounter().getReference();
+            seen.computeIfAbsent(t.getFile(), k -> new ArrayList<>()).add(key);
+        });
+
+        List<String> expectedEncounters = new ArrayList<>(), expectedConditions = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 10 == 1 || i % 10 == 7) {
+                expectedEncounters.add("e" + i);
+                expectedConditions.add("Encounter/e" + i);
+            }
+        }
+        assertEquals(expectedEncounters, seen.get("encounters.csv"));
+        assertEquals(expectedConditions, seen.get("conditions.csv"));
+        for (ClinicalDataPipeline.Table t: pipeline.getTables()) {
+            assertEquals(ROWS, t.getRowsTested());
+            assertEquals(expectedEncounters.size(), t.getWritten());
+        }
+    }
+
+    @Test
+    void testRowsAreConvertedOffTheReaderThread() throws IOException {
+        writeTables();
+        // Conditions are given ids as they are converted, so the generator sees the converting threads
+        Set<String> converters = ConcurrentHashMap.newKeySet();
+        IdGenerator ids = CsvResourceLoader.getIdGenerator();
+        CsvResourceLoader.setIdGenerator((table, row) -> {
+            converters.add(Thread.currentThread().getName());
+            return ids.newId(table, row);
+        });
+        try {
+            // Several tables share one pool of converters, and each keeps its order
+            Map<ClinicalDataPipeline.Table, List<String>> conditions = new HashMap<>();
+            ClinicalDataPipeline pipeline = new ClinicalDataPipeline(dir.toUri().toString())
+                .add(Condition.class, "conditions.csv")
+                .add(Condition.class, "conditions.csv")
+                .add(Condition.class, "conditions.csv")
+                .setConverters(2);
+            pipeline.run("PATIENT", v -> true,
+                (t, r) -> conditions.computeIfAbsent(t, k -> new ArrayList<>()).add(((Condition) r).getEncounter().getReference()));
+            assertEquals(3, conditions.size());
+            for (List<String> table: conditions.values()) {
+                assertEquals(ROWS, table.size());
+                for (int i = 0; i < ROWS; i++) {
+                    assertEquals("Encounter/e" + i, table.get(i));
+                }
+            }
+        } finally {
+            CsvResourceLoader.setIdGenerator(ids);
+        }
+        assertFalse(converters.isEmpty());
+        for (String name: converters) {
+            assertTrue(name.equals("csv-convert-1") || name.equals("csv-convert-2"), name + " converted rows");
+        }
+    }
+
+    private void writeTables() throws IOException {
+        StringBuilder encounters = new StringBuilder("Id,START,STOP,PATIENT,PROVIDER,ENCOUNTERCLASS,CODE,REASONCODE,REASONDESCRIPTION\n");
+        StringBuilder conditions = new StringBuilder("START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION\n");
+        for (int i = 0; i < ROWS; i++) {
+            encounters.append("e").append(i).append(",2020-03-01T10:00:00Z,2020-03-05T10:00:00Z,p").append(i % 10)
+                .append(",d1,inpatient,1505002,840539006,COVID-19\n");
+            conditions.append("2020-03-01,,p").append(i % 10).append(",e").append(i).append(",840539006,COVID-19 ").append(i).append("\n");
+        }
+        Files.write(dir.resolve("encounters.csv"), encounters.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("conditions.csv"), conditions.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,71 @@
+package com.ainq.fhir.saner.simulator.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.ainq.fhir.saner.simulator.DemographicSampler;
+
+class DemographicSamplerTest {
+    private static final int DRAWS = 200000;
+
+    @Test
+    void testSamplesMatchTargetPopulation() {
+        DemographicSampler sampler = DemographicSampler.usPopulation();
+        Random random = new Random(1);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < DRAWS; i++) {
+            Map<String, String> properties = sampler.sample(random);
+            int age = Integer.parseInt(properties.get("age"));
+            assertTrue(age >= 0 && age < 100, properties.toString());
+            if (properties.containsKey("race1")) {
+                assertNotEquals(properties.get("race0"), properties.get("race1"));
+                counts.merge("multiple", 1, Integer::sum);
+            } else {
+                counts.merge(properties.get("race0"), 1, Integer::sum);
+            }
+            counts.merge(properties.get("ethnicity"), 1, Integer::sum);
+            counts.merge(properties.get("gender"), 1, Integer::sum);
+            if (age >= 25 && age < 35) {
+                counts.merge("25-34", 1, Integer::sum);
+            }
+        }
+        assertFraction(0.654, counts.get("2106-3"));
+        assertFraction(0.238, counts.get("2054-5"));
+        assertFraction(0.021, counts.get("multiple"));
+        assertFraction(0.256, counts.get("2135-2"));
+        assertFraction(0.479, counts.get("male"));
+        assertFraction(0.163, counts.get("25-34"));
+    }
+
+    @Test
+    void testValuesWithoutWeightAreNeverDrawn() {
+        DemographicSampler sampler = new DemographicSampler(
+            new String[] { "2106-3", "2054-5", "2028-9" }, new double[] { 1, 0, 3 }, 0,
+            new String[] { "2135-2", "2186-5" }, new double[] { 0, 1 },
+            new int[] { 20, 30, 40 }, new double[] { 1, 1 }, 1.0);
+        Random random = new Random(2);
+        int white = 0;
+        for (int i = 0; i < DRAWS; i++) {
+            Map<String, String> properties = sampler.sample(random);
+            assertNotEquals("2054-5", properties.get("race0"));
+            assertEquals(null, properties.get("race1"));
+            assertEquals("2186-5", properties.get("ethnicity"));
+            assertEquals("male", properties.get("gender"));
+            if ("2106-3".equals(properties.get("race0"))) {
+                white++;
+            }
+        }
+        assertFraction(0.25, white);
+    }
+
+    private static void assertFraction(double expected, int count) {
+        assertEquals(expected, (double) count / DRAWS, 0.005);
+    }
+}
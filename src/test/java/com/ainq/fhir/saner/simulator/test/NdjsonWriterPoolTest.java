@@ -0,0 +1,66 @@
+package com.ainq.fhir.saner.simulator.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.simulator.NdjsonWriterPool;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+class NdjsonWriterPoolTest {
+    private static final IParser parser = FhirContext.forR4().newJsonParser().setPrettyPrint(false);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testEvictedFilesAreAppended() throws IOException {
+        int files = 5, rounds = 4;
+        try (NdjsonWriterPool pool = new NdjsonWriterPool(parser, 2)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < files; i++) {
+                    Patient p = new Patient();
+                    p.setId(i + "-" + round);
+                    pool.write(new File(dir.toFile(), i + ".ndjson"), p);
+                    assertTrue(pool.getOpenCount() <= 2);
+                }
+            }
+        }
+        for (int i = 0; i < files; i++) {
+            List<String> lines = Files.readAllLines(dir.resolve(i + ".ndjson"), StandardCharsets.UTF_8);
+            assertEquals(rounds, lines.size());
+            for (int round = 0; round < rounds; round++) {
+                Patient p = parser.parseResource(Patient.class, lines.get(round));
+                assertEquals(i + "-" + round, p.getIdElement().getIdPart());
+            }
+        }
+    }
+
+    @Test
+    void testResourcesAreNotFlushedOneAtATime() throws IOException {
+        File f = new File(dir.toFile(), "buffered.ndjson");
+        try (NdjsonWriterPool pool = new NdjsonWriterPool(parser)) {
+            for (int i = 0; i < 10; i++) {
+                Patient p = new Patient();
+                p.setId(Integer.toString(i));
+                pool.write(f, p);
+            }
+            // The resources are still in the buffer
+            assertEquals(0, f.length());
+            pool.flush();
+            assertEquals(10, Files.readAllLines(f.toPath(), StandardCharsets.UTF_8).size());
+        }
+    }
+}
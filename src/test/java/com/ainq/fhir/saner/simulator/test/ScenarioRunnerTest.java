@@ -0,0 +1,81 @@
+package com.ainq.fhir.saner.simulator.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ainq.fhir.saner.sampledata.PatientGenerator;
+import com.ainq.fhir.saner.sampledata.ReferenceData;
+import com.ainq.fhir.saner.simulator.CaseSimulator;
+import com.ainq.fhir.saner.simulator.Days;
+import com.ainq.fhir.saner.simulator.MemorySink;
+import com.ainq.fhir.saner.simulator.ScenarioRunner;
+
+class ScenarioRunnerTest {
+    private static final String STARTS[] = { "20210101", "20210115", "20210201", "20210301" };
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty("saner.data.url");
+    }
+
+    @Test
+    void testConcurrentScenariosMatchScenariosRunAlone() throws IOException {
+        // Patients are selected at random, so each scenario must get the same patient generator when run alone
+        TestGenerators.writeTables(dir, 400);
+        System.setProperty("saner.data.url", dir.toUri().toString());
+        PatientGenerator loaded = new PatientGenerator();
+        loaded.initialize();
+        ReferenceData data = ReferenceData.of(new TestGenerators.Locations(), loaded, null);
+
+        ScenarioRunner runner = new ScenarioRunner(data).setThreads(STARTS.length);
+        List<MemorySink> sinks = new ArrayList<>();
+        for (int i = 0; i < STARTS.length; i++) {
+            MemorySink sink = new MemorySink();
+            sinks.add(sink);
+            runner.add(scenario(i).sink(sink));
+        }
+        assertEquals(STARTS.length, runner.run().size());
+
+        // Run alone in reverse order, so that no scenario follows the ones it followed before
+        for (int i = STARTS.length - 1; i >= 0; i--) {
+            MemorySink alone = new MemorySink();
+            new ScenarioRunner(data).add(scenario(i).sink(alone)).run();
+            assertEquals(alone.getReport(), sinks.get(i).getReport());
+            assertEquals(census(alone), census(sinks.get(i)));
+        }
+        // The loaded patients are not modified by the simulations
+        for (Patient p: loaded.getAll()) {
+            assertNull(p.getUserData("offset"));
+        }
+    }
+
+    private static String census(MemorySink sink) {
+        StringBuilder b = new StringBuilder();
+        for (MemorySink.Census c: sink.getCensus()) {
+            b.append(Days.format(c.getDay())).append(' ').append(c.getHospital().getName()).append(' ')
+                .append(c.getHospitalBedsUsed()).append(' ').append(c.getIcuBedsUsed()).append('\n');
+        }
+        return b.toString();
+    }
+
+    private CaseSimulator.Builder scenario(int i) {
+        int start = Days.parse(STARTS[i]);
+        return CaseSimulator.builder()
+            .start(start).end(start + 20 + 5 * i)
+            .startingCases(300 + 50 * i).endingCases(200 + 25 * i)
+            .seed(i).parallelism(2);
+    }
+}
@@ -0,0 +1,143 @@
+package com.ainq.fhir.saner.simulator.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+
+import com.ainq.fhir.saner.sampledata.Generator;
+import com.ainq.fhir.saner.simulator.Days;
+
+/**
+ * Small in-memory generators for simulator tests.
+ */
+class TestGenerators {
+    static final int HOSPITALS = 12;
+    static final int PATIENTS = 5000;
+
+    /**
+     * Write patients.csv and encounters.csv for a PatientGenerator, with a COVID-19 admission
+     * for each patient, and an ICU stay for every third patient.
+     * @param dir   The folder to write to.
+     * @param patients  The number of patients.
+     */
+    static void writeTables(Path dir, int patients) throws IOException {
+        String races[] = { "white", "black", "asian" };
+        StringBuilder p = new StringBuilder("Id,BIRTHDATE,DEATHDATE,FIRST,LAST,MARITAL,RACE,ETHNICITY,GENDER,ADDRESS,CITY,STATE,COUNTY,ZIP,LAT,LON\n");
+        StringBuilder e = new StringBuilder("Id,START,STOP,PATIENT,PROVIDER,ENCOUNTERCLASS,CODE,REASONCODE,REASONDESCRIPTION\n");
+        for (int i = 0; i < patients; i++) {
+            String id = String.format("p%05d", i);
+            p.append(String.format("%s,%d-06-15,,First%d,Last%d,M,%s,%s,%s,1 Main St,Boston,MA,Suffolk,02101,42.36,-71.06\n",
+                id, 1940 + i % 60, i, i, races[i % 3], i % 2 == 0 ? "hispanic" : "nonhispanic", i % 5 < 2 ? "M" : "F"));
+            e.append(String.format("e%d,2020-03-%02dT08:00:00Z,2020-03-%02dT08:00:00Z,%s,d1,inpatient,1505002,840539006,COVID-19\n",
+                i, 1 + i % 10, 3 + i % 10 + i % 7, id));
+            if (i % 3 == 0) {
+                e.append(String.format("icu%d,2020-03-%02dT08:00:00Z,2020-03-%02dT08:00:00Z,%s,d1,inpatient,305351004,840539006,COVID-19\n",
+                    i, 2 + i % 10, 3 + i % 10 + i % 7, id));
+            }
+        }
+        Files.write(dir.resolve("patients.csv"), p.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("encounters.csv"), e.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static class Locations implements Generator<Location> {
+        private final List<Location> locations = new ArrayList<>();
+
+        Locations() {
+            initialize();
+        }
+
+        @Override
+        public void initialize() {
+            for (int i = 0; i < HOSPITALS; i++) {
+                Location l = new Location();
+                l.setId("Loc-" + i);
+                l.setName("Hospital " + i);
+                l.addExtension("http://test.sanerproject.org/icubeds", new IntegerType(10 + i));
+                l.addExtension("http://test.sanerproject.org/beds", new IntegerType(100 + 10 * i));
+                locations.add(l);
+            }
+        }
+
+        @Override
+        public Location generate(Map<String, String> properties) {
+            return locations.get(0);
+        }
+
+        @Override
+        public Collection<Location> getAll() {
+            return locations;
+        }
+    }
+
+    static class Patients implements Generator<Patient> {
+        private final List<Patient> patients;
+        private int next = 0;
+
+        Patients() {
+            patients = new ArrayList<>();
+            initialize();
+        }
+
+        /** Share the patients of another generator, with a separate cursor */
+        Patients(Patients source) {
+            patients = source.patients;
+        }
+
+        @Override
+        public void initialize() {
+            long day = 24 * 60 * 60 * 1000l;
+            long base = Days.toDate(Days.parse("20200301")).getTime();
+            for (int i = 0; i < PATIENTS; i++) {
+                Patient p = new Patient();
+                p.setId(String.format("p%05d", i));
+                Date start = new Date(base + (i % 90) * day);
+                Encounter enc = new Encounter();
+                enc.setId("e" + i);
+                enc.setPeriod(new Period().setStart(start).setEnd(new Date(start.getTime() + (2 + i % 11) * day)));
+                p.setUserData("encounter", enc);
+                if (i % 4 == 0) {
+                    Encounter icu = new Encounter();
+                    icu.setId("i" + i);
+                    icu.setPeriod(new Period().setStart(enc.getPeriod().getEnd())
+                        .setEnd(new Date(enc.getPeriod().getEnd().getTime() + (1 + i % 5) * day)));
+                    p.setUserData("icu", icu);
+                }
+                patients.add(p);
+            }
+        }
+
+        @Override
+        public Patient generate(Map<String, String> properties) {
+            String id = properties.get("id");
+            if (id != null) {
+                return patients.get(Integer.parseInt(id.substring(1)));
+            }
+            if (next == patients.size()) {
+                reset();
+            }
+            return patients.get(next++);
+        }
+
+        @Override
+        public Collection<Patient> getAll() {
+            return patients;
+        }
+
+        @Override
+        public void reset() {
+            next = 0;
+        }
+    }
+}